@@ -0,0 +1,145 @@
+package de.hdmstuttgart.blueiot;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.os.SystemClock;
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+import java.util.Locale;
+
+/**
+ * Measures the frame time of the ball view at common display resolutions, drawing into an offscreen Bitmap instead of the Surface.
+ * The BallRenderer (dirty area, with and without the fading trail) is compared with redrawing the whole surface every frame, as the ball view did before.
+ * The results are written to the log (tag "BallRendererBenchmark").
+ */
+public class BallRendererBenchmark extends TestCase {
+    private static final String TAG = "BallRendererBenchmark";
+
+    //Common resolutions (portrait): 720p, 1080p and 1440p
+    private static final int[][] RESOLUTIONS = { { 720, 1280 }, { 1080, 1920 }, { 1440, 2560 } };
+
+    //Number of frames drawn per run, the first WARM_UP_FRAMES aren't recorded
+    private static final int FRAME_COUNT = 300;
+    private static final int WARM_UP_FRAMES = 30;
+
+    private static final float RADIUS = 50;
+
+    //Paints of the previous full redraw
+    private Paint circlePaint = new Paint();
+    private Rect fullRect = new Rect();
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        this.circlePaint.setColor(Color.GREEN);
+        this.circlePaint.setStyle(Paint.Style.FILL);
+    }
+
+    /**
+     * Moves the circle along a Lissajous curve, so it covers the whole surface
+     * @param frame The number of the frame
+     * @param width Width of the surface
+     * @param height Height of the surface
+     * @param position Array receiving the position of the circle
+     */
+    private static void getPosition(int frame, int width, int height, float[] position) {
+        position[0] = RADIUS + (width - 2 * RADIUS) * (0.5f + 0.5f * (float) Math.sin(frame * 0.05));
+        position[1] = RADIUS + (height - 2 * RADIUS) * (0.5f + 0.5f * (float) Math.cos(frame * 0.031));
+    }
+
+    /**
+     * Draws the frames with the BallRenderer, the Canvas is clipped to the dirty area like SurfaceHolder.lockCanvas(Rect) does
+     * @return The FrameStatistics of the run
+     */
+    private FrameStatistics runRenderer(Bitmap surface, boolean isFadingEnabled) {
+        BallRenderer renderer = new BallRenderer(RADIUS);
+        renderer.setSize(surface.getWidth(), surface.getHeight());
+        renderer.setFadingEnabled(isFadingEnabled);
+
+        Canvas canvas = new Canvas(surface);
+        FrameStatistics statistics = new FrameStatistics(4, 1);
+        float[] position = new float[2];
+        for (int frame = 0; frame < FRAME_COUNT; frame++) {
+            getPosition(frame, surface.getWidth(), surface.getHeight(), position);
+
+            long start = SystemClock.elapsedRealtimeNanos();
+            Rect dirtyRect = renderer.prepareFrame(position[0], position[1], false);
+            canvas.save();
+            canvas.clipRect(dirtyRect);
+            renderer.draw(canvas);
+            canvas.restore();
+            long frameNanos = SystemClock.elapsedRealtimeNanos() - start;
+
+            if (frame == WARM_UP_FRAMES) {
+                statistics.start();
+            }
+            if (frame >= WARM_UP_FRAMES) {
+                statistics.recordFrame(frameNanos, renderer.getDirtyPixels());
+            }
+        }
+        renderer.release();
+        return statistics;
+    }
+
+    /**
+     * Draws the frames the way the ball view did before: the whole surface is cleared (or blended for fading) and the circle is drawn
+     * @return The FrameStatistics of the run
+     */
+    private FrameStatistics runFullRedraw(Bitmap surface, boolean isFadingEnabled) {
+        Canvas canvas = new Canvas(surface);
+        this.fullRect.set(0, 0, surface.getWidth(), surface.getHeight());
+        FrameStatistics statistics = new FrameStatistics(4, 1);
+        float[] position = new float[2];
+        for (int frame = 0; frame < FRAME_COUNT; frame++) {
+            getPosition(frame, surface.getWidth(), surface.getHeight(), position);
+
+            long start = SystemClock.elapsedRealtimeNanos();
+            canvas.drawColor(isFadingEnabled ? Color.argb(10, 0, 0, 0) : Color.BLACK);
+            canvas.drawCircle(position[0], position[1], RADIUS, this.circlePaint);
+            long frameNanos = SystemClock.elapsedRealtimeNanos() - start;
+
+            if (frame == WARM_UP_FRAMES) {
+                statistics.start();
+            }
+            if (frame >= WARM_UP_FRAMES) {
+                statistics.recordFrame(frameNanos, (long) this.fullRect.width() * this.fullRect.height());
+            }
+        }
+        return statistics;
+    }
+
+    private void report(String mode, Bitmap surface, FrameStatistics statistics) {
+        Log.i(TAG, String.format(Locale.US, "%dx%d %s: %.3f ms avg., %.3f ms max., %d pixels/frame",
+                surface.getWidth(), surface.getHeight(), mode,
+                statistics.getAverageFrameMillis(), statistics.getMaxFrameMillis(), statistics.getAverageFramePixels()));
+    }
+
+    public void testFrameTimePerResolution() {
+        for (int[] resolution : RESOLUTIONS) {
+            Bitmap surface = Bitmap.createBitmap(resolution[0], resolution[1], Bitmap.Config.ARGB_8888);
+            try {
+                FrameStatistics full = runFullRedraw(surface, false);
+                FrameStatistics fullFading = runFullRedraw(surface, true);
+                FrameStatistics dirty = runRenderer(surface, false);
+                FrameStatistics dirtyFading = runRenderer(surface, true);
+
+                report("full redraw", surface, full);
+                report("full redraw, fading", surface, fullFading);
+                report("dirty area", surface, dirty);
+                report("dirty area, fading", surface, dirtyFading);
+
+                //Without the trail, only the two circles are drawn
+                assertTrue(dirty.getAverageFramePixels() < full.getAverageFramePixels());
+                assertTrue(dirtyFading.getAverageFramePixels() < fullFading.getAverageFramePixels());
+            }
+            finally {
+                surface.recycle();
+            }
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package de.hdmstuttgart.blueiot;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.os.Debug;
+import android.os.SystemClock;
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+import java.util.Locale;
+import java.util.UUID;
+
+/**
+ * Compares the allocations per sample of the previous parsing (BluetoothGattCharacteristic.getStringValue(), String.split(), String.trim() and Float.parseFloat())
+ * with the SampleDecoder, decoding the same notifications with both. Allocations are counted per thread (see Debug.getThreadAllocCount()).
+ * The results are written to the log (tag "SampleDecoderBenchmark").
+ */
+@SuppressWarnings("deprecation")
+public class SampleDecoderBenchmark extends TestCase {
+    private static final String TAG = "SampleDecoderBenchmark";
+
+    //Number of different notifications and the number of times each one is decoded per run
+    private static final int FRAME_COUNT = 64;
+    private static final int ITERATIONS = 200;
+
+    //The SampleDecoder mustn't allocate at all, some slack is left for allocations of the runtime itself
+    private static final float MAX_DECODER_ALLOCATIONS_PER_SAMPLE = 0.01f;
+
+    private BluetoothGattCharacteristic[] characteristics;
+
+    //Sum of all decoded values, so the parsing can't be optimized away
+    private float checksum;
+
+    /**
+     * Discards the samples, only sums them up
+     */
+    private SampleListener sumListener = new SampleListener() {
+        @Override
+        public void onSample(long timestamp, float x, float y, float z, float height) {
+            checksum += x + y + z + height;
+        }
+    };
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        //Notifications as sent by the text firmware, each one set on a characteristic like the BluetoothGatt does
+        this.characteristics = new BluetoothGattCharacteristic[FRAME_COUNT];
+        for (int i = 0; i < FRAME_COUNT; i++) {
+            String text = String.format(Locale.US, "%.2f,%.2f,%.2f,%.1f", Math.sin(i) * 9.81, Math.cos(i) * 9.81, -9.81 + i * 0.01, 480.5 + i * 0.1);
+            this.characteristics[i] = new BluetoothGattCharacteristic(UUID.fromString(BlueIOTHelper.BLUEIOT_CHARACTERISTIC_NOTIFICATION_UUID),
+                    BluetoothGattCharacteristic.PROPERTY_NOTIFY, BluetoothGattCharacteristic.PERMISSION_READ);
+            this.characteristics[i].setValue(text.getBytes());
+        }
+    }
+
+    /**
+     * Parses a notification the way onCharacteristicChanged() did before the SampleDecoder
+     * @param characteristic The characteristic holding the notification
+     * @return The number of samples that were parsed
+     */
+    private int decodeWithStrings(BluetoothGattCharacteristic characteristic) {
+        String value = characteristic.getStringValue(0);
+        try {
+            String[] values = value.split(",");
+            if (values.length == 4) {
+                float x = Float.parseFloat(values[0].trim());
+                float y = Float.parseFloat(values[1].trim());
+                float z = Float.parseFloat(values[2].trim());
+                float height = Float.parseFloat(values[3].trim());
+                this.sumListener.onSample(0, x, y, z, height);
+                return 1;
+            }
+        }
+        catch (Exception ex) {}
+        return 0;
+    }
+
+    /**
+     * Decodes every notification ITERATIONS times, either with the SampleDecoder or the previous parsing
+     * @param decoder The SampleDecoder to use or null for the previous parsing
+     * @return The number of samples that were decoded
+     */
+    private int run(SampleDecoder decoder) {
+        int sampleCount = 0;
+        for (int iteration = 0; iteration < ITERATIONS; iteration++) {
+            for (BluetoothGattCharacteristic characteristic : this.characteristics) {
+                if (decoder != null) {
+                    sampleCount += decoder.decode(characteristic.getValue(), 0, this.sumListener);
+                }
+                else {
+                    sampleCount += decodeWithStrings(characteristic);
+                }
+            }
+        }
+        return sampleCount;
+    }
+
+    /**
+     * Runs one of the parsers with the allocations being counted
+     * @param name The name of the parser as written to the log
+     * @param decoder The SampleDecoder to use or null for the previous parsing
+     * @return The number of objects allocated per sample
+     */
+    private float measure(String name, SampleDecoder decoder) {
+        //Warm up (the decoder's statistics and any lazily initialized classes)
+        run(decoder);
+
+        Debug.startAllocCounting();
+        Debug.resetThreadAllocCount();
+        long startNanos = SystemClock.elapsedRealtimeNanos();
+        int sampleCount = run(decoder);
+        long elapsedNanos = SystemClock.elapsedRealtimeNanos() - startNanos;
+        int allocationCount = Debug.getThreadAllocCount();
+        Debug.stopAllocCounting();
+
+        assertEquals(name, FRAME_COUNT * ITERATIONS, sampleCount);
+
+        float allocationsPerSample = (float) allocationCount / sampleCount;
+        Log.i(TAG, String.format(Locale.US, "%s: %.2f allocations/sample, %.0f ns/sample (%d samples)",
+                name, allocationsPerSample, (float) elapsedNanos / sampleCount, sampleCount));
+        return allocationsPerSample;
+    }
+
+    public void testAllocationsPerSample() {
+        float before = measure("getStringValue/split/trim/parseFloat", null);
+        float after = measure("SampleDecoder", new SampleDecoder());
+        Log.i(TAG, "Checksum: " + this.checksum);
+
+        assertTrue("SampleDecoder allocates " + after + " objects/sample", after <= MAX_DECODER_ALLOCATIONS_PER_SAMPLE);
+        assertTrue("Previous parsing allocates " + before + " objects/sample", before > after);
+    }
+}
@@ -0,0 +1,203 @@
+package de.hdmstuttgart.blueiot;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests the SampleDecoder with the text, binary and batch format as well as with frames that have to be rejected
+ */
+public class SampleDecoderTest extends TestCase {
+    private static final float DELTA = 0.0001f;
+
+    private SampleDecoder decoder;
+    private RecordingListener listener;
+
+    /**
+     * Keeps every sample handed over by the decoder
+     */
+    private static class RecordingListener implements SampleListener {
+        private final List<Long> timestamps = new ArrayList<>();
+        private final List<float[]> values = new ArrayList<>();
+
+        @Override
+        public void onSample(long timestamp, float x, float y, float z, float height) {
+            this.timestamps.add(timestamp);
+            this.values.add(new float[] { x, y, z, height });
+        }
+
+        private int size() {
+            return this.values.size();
+        }
+
+        private long getTimestamp(int index) {
+            return this.timestamps.get(index);
+        }
+
+        private float[] getValues(int index) {
+            return this.values.get(index);
+        }
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        this.decoder = new SampleDecoder();
+        this.listener = new RecordingListener();
+    }
+
+    private void assertSample(int index, float x, float y, float z, float height) {
+        float[] values = this.listener.getValues(index);
+        assertEquals(x, values[0], DELTA);
+        assertEquals(y, values[1], DELTA);
+        assertEquals(z, values[2], DELTA);
+        assertEquals(height, values[3], DELTA);
+    }
+
+    private int decodeText(String text) {
+        return this.decoder.decode(text.getBytes(), 1000, this.listener);
+    }
+
+    /**
+     * Writes a sample in the layout of the binary format (4 x int16, little-endian)
+     */
+    private static void putSample(byte[] data, int offset, int x, int y, int z, int height) {
+        int[] values = { x, y, z, height };
+        for (int i = 0; i < values.length; i++) {
+            data[offset + i * 2] = (byte) values[i];
+            data[offset + i * 2 + 1] = (byte) (values[i] >> 8);
+        }
+    }
+
+    private static byte[] createBatch(int sequenceNumber, int interval, int sampleCount) {
+        byte[] data = new byte[4 + sampleCount * 8];
+        data[0] = SampleDecoder.FORMAT_BINARY_BATCH;
+        data[1] = (byte) sequenceNumber;
+        data[2] = (byte) (sequenceNumber >> 8);
+        data[3] = (byte) interval;
+        for (int i = 0; i < sampleCount; i++) {
+            putSample(data, 4 + i * 8, i * 100, -i * 100, 981, 4805 + i);
+        }
+        return data;
+    }
+
+    public void testText() {
+        assertEquals(1, decodeText("0.12,-0.5,9.81,480.5"));
+        assertEquals(1, this.listener.size());
+        assertEquals(1000, this.listener.getTimestamp(0));
+        assertSample(0, 0.12f, -0.5f, 9.81f, 480.5f);
+        assertEquals(1, this.decoder.getDecodedSampleCount());
+        assertEquals(0, this.decoder.getRejectedFrameCount());
+    }
+
+    public void testTextWithWhitespaceAndTerminatingNul() {
+        assertEquals(1, decodeText(" 1, +2 ,3 ,4\0\0"));
+        assertSample(0, 1, 2, 3, 4);
+    }
+
+    public void testTextWithExponent() {
+        assertEquals(1, decodeText("1.5E-3,2e2,-3E+1,.5"));
+        assertSample(0, 0.0015f, 200, -30, 0.5f);
+    }
+
+    public void testTextWithTrailingComma() {
+        //Accepted by the previous String.split(",")-based parser as well
+        assertEquals(1, decodeText("1,2,3,4,"));
+        assertEquals(1, decodeText("1,2,3,4,,"));
+        assertSample(0, 1, 2, 3, 4);
+        assertSample(1, 1, 2, 3, 4);
+        assertEquals(0, this.decoder.getRejectedFrameCount());
+    }
+
+    public void testTextRejected() {
+        String[] frames = { "1,2,3", "1,2,3,4,5", "1,,3,4", "1,a,3,4", "1,2,3,4x", "1,2,3,1e", "-,2,3,4", ",1,2,3,4", "" };
+        for (String frame : frames) {
+            assertEquals(frame, 0, decodeText(frame));
+        }
+        assertEquals(0, this.listener.size());
+        assertEquals(frames.length, this.decoder.getRejectedFrameCount());
+        assertEquals(0, this.decoder.getDecodedSampleCount());
+    }
+
+    public void testNullRejected() {
+        assertEquals(0, this.decoder.decode(null, 1000, this.listener));
+        assertEquals(0, this.decoder.decode(new byte[0], 1000, this.listener));
+        assertEquals(2, this.decoder.getRejectedFrameCount());
+    }
+
+    public void testBinary() {
+        byte[] data = new byte[9];
+        data[0] = SampleDecoder.FORMAT_BINARY_V1;
+        putSample(data, 1, 12, -50, 981, 4805);
+
+        assertEquals(1, this.decoder.decode(data, 1000, this.listener));
+        assertEquals(1000, this.listener.getTimestamp(0));
+        assertSample(0, 0.12f, -0.5f, 9.81f, 480.5f);
+    }
+
+    public void testBinaryExtremeValues() {
+        byte[] data = new byte[9];
+        data[0] = SampleDecoder.FORMAT_BINARY_V1;
+        putSample(data, 1, Short.MAX_VALUE, Short.MIN_VALUE, -1, 0);
+
+        assertEquals(1, this.decoder.decode(data, 1000, this.listener));
+        assertSample(0, 327.67f, -327.68f, -0.01f, 0);
+    }
+
+    public void testBinaryWithWrongSizeRejected() {
+        assertEquals(0, this.decoder.decode(new byte[] { SampleDecoder.FORMAT_BINARY_V1, 0, 0, 0, 0, 0, 0, 0 }, 1000, this.listener));
+        assertEquals(0, this.decoder.decode(new byte[10], 1000, this.listener));
+        byte[] tooLong = new byte[10];
+        tooLong[0] = SampleDecoder.FORMAT_BINARY_V1;
+        assertEquals(0, this.decoder.decode(tooLong, 1000, this.listener));
+        assertEquals(0, this.listener.size());
+        assertEquals(3, this.decoder.getRejectedFrameCount());
+    }
+
+    public void testBatch() {
+        assertEquals(2, this.decoder.decode(createBatch(7, 10, 2), 1000, this.listener));
+        assertEquals(2, this.listener.size());
+
+        //The last sample has been measured at the time of arrival, the ones before at the sampling interval
+        assertEquals(990, this.listener.getTimestamp(0));
+        assertEquals(1000, this.listener.getTimestamp(1));
+        assertSample(0, 0, 0, 9.81f, 480.5f);
+        assertSample(1, 1, -1, 9.81f, 480.6f);
+
+        assertEquals(2, this.decoder.getDecodedSampleCount());
+        assertEquals(0, this.decoder.getLostSampleCount());
+    }
+
+    public void testBatchCountsLostSamples() {
+        this.decoder.decode(createBatch(0, 10, 2), 1000, this.listener);
+        this.decoder.decode(createBatch(2, 10, 2), 1020, this.listener);
+        assertEquals(0, this.decoder.getLostSampleCount());
+
+        //Samples 4 to 6 are missing
+        this.decoder.decode(createBatch(7, 10, 2), 1070, this.listener);
+        assertEquals(3, this.decoder.getLostSampleCount());
+        assertEquals(6, this.decoder.getDecodedSampleCount());
+    }
+
+    public void testBatchSequenceNumberWrapsAround() {
+        this.decoder.decode(createBatch(65534, 10, 2), 1000, this.listener);
+        this.decoder.decode(createBatch(0, 10, 2), 1020, this.listener);
+        assertEquals(0, this.decoder.getLostSampleCount());
+    }
+
+    public void testBatchRestartIsNotCountedAsLoss() {
+        this.decoder.decode(createBatch(500, 10, 2), 1000, this.listener);
+        this.decoder.decode(createBatch(0, 10, 2), 1020, this.listener);
+        assertEquals(0, this.decoder.getLostSampleCount());
+    }
+
+    public void testBatchWithPartialSampleRejected() {
+        byte[] truncated = new byte[4 + 8 + 3];
+        truncated[0] = SampleDecoder.FORMAT_BINARY_BATCH;
+        assertEquals(0, this.decoder.decode(truncated, 1000, this.listener));
+        assertEquals(0, this.decoder.decode(new byte[] { SampleDecoder.FORMAT_BINARY_BATCH, 0, 0, 10 }, 1000, this.listener));
+        assertEquals(0, this.listener.size());
+        assertEquals(2, this.decoder.getRejectedFrameCount());
+    }
+}
@@ -0,0 +1,117 @@
+package de.hdmstuttgart.blueiot;
+
+import junit.framework.TestCase;
+
+import java.util.Random;
+
+/**
+ * Tests the Min/Max-Pyramid of the SampleHistory against a brute-force scan of the raw samples (also once the oldest samples have been overwritten)
+ * and the choice of the pyramid level for drawing
+ */
+public class SampleHistoryTest extends TestCase {
+    //Small capacity, so the store wraps around several times: levels with buckets of 16, 64 and 256 samples
+    private static final int CAPACITY = 1024;
+
+    private static void append(SampleHistory history, Random random, long timestamp) {
+        history.append(timestamp, random.nextFloat() * 20 - 10, (float) random.nextGaussian(), random.nextInt(100), timestamp % 97);
+    }
+
+    /**
+     * Compares every bucket whose samples are all still stored with the smallest and largest values of its raw samples
+     * @param history The SampleHistory to check
+     */
+    private static void assertBucketsMatchSamples(SampleHistory history) {
+        for (int level = 0; level < history.getLevelCount(); level++) {
+            long firstBucket = history.getFirstBucketIndex(level);
+            long endBucket = history.getEndBucketIndex(level);
+            int bucketSize = history.getBucketSize(level);
+
+            for (long bucket = firstBucket; bucket < endBucket; bucket++) {
+                long start = bucket * bucketSize;
+                long end = Math.min(start + bucketSize, history.getEndIndex());
+                assertTrue(start >= history.getFirstIndex());
+                assertEquals(history.getTime(start), history.getBucketTime(level, bucket));
+
+                for (int column = 0; column < SampleHistory.COLUMN_COUNT; column++) {
+                    float minimum = Float.POSITIVE_INFINITY;
+                    float maximum = Float.NEGATIVE_INFINITY;
+                    for (long index = start; index < end; index++) {
+                        minimum = Math.min(minimum, history.getValue(column, index));
+                        maximum = Math.max(maximum, history.getValue(column, index));
+                    }
+
+                    String message = "level " + level + ", bucket " + bucket + ", column " + column + ", " + history.getEndIndex() + " samples";
+                    assertEquals(message, minimum, history.getBucketMinimum(level, column, bucket), 0);
+                    assertEquals(message, maximum, history.getBucketMaximum(level, column, bucket), 0);
+                }
+            }
+        }
+    }
+
+    public void testBucketsMatchSamplesAfterWrapAround() {
+        SampleHistory history = new SampleHistory(CAPACITY);
+        assertEquals(3, history.getLevelCount());
+
+        Random random = new Random(42);
+        long timestamp = 1000;
+        for (int i = 0; i < CAPACITY * 3 + 37; i++) {
+            append(history, random, timestamp);
+            timestamp += 50;
+
+            //Check with complete and incomplete buckets, before and after the first wrap-around
+            if (i % 101 == 0 || i == CAPACITY - 1 || i == CAPACITY) {
+                assertBucketsMatchSamples(history);
+            }
+        }
+
+        assertTrue(history.getFirstIndex() > 0);
+        assertBucketsMatchSamples(history);
+    }
+
+    public void testFirstBucketIsCompletelyStored() {
+        SampleHistory history = new SampleHistory(CAPACITY);
+        Random random = new Random(7);
+        for (int i = 0; i < CAPACITY + 5; i++) {
+            append(history, random, i * 50);
+        }
+
+        //Samples 0 to 4 have been overwritten, so each level starts with the second bucket
+        assertEquals(5, history.getFirstIndex());
+        for (int level = 0; level < history.getLevelCount(); level++) {
+            assertEquals(1, history.getFirstBucketIndex(level));
+        }
+    }
+
+    public void testSelectLevelReturnsAtMostOneBucketPerPixel() {
+        SampleHistory history = new SampleHistory();
+        int[] pixelCounts = { 1, 100, 320, 720, 1080, 1440 };
+
+        for (int pixels : pixelCounts) {
+            int previousLevel = -1;
+            for (long samples = 1; samples <= history.getCapacity(); samples = samples * 3 / 2 + 1) {
+                int level = history.selectLevel(0, samples, pixels);
+                String message = samples + " samples on " + pixels + " pixels";
+
+                //The level only gets coarser as the range grows
+                assertTrue(message, level >= previousLevel);
+                previousLevel = level;
+
+                if (level < 0) {
+                    //Raw samples are only drawn if there are at most about two per pixel
+                    assertTrue(message, samples <= pixels);
+                    continue;
+                }
+
+                long buckets = history.getBucketIndex(level, samples - 1) + 1;
+                if (level < history.getLevelCount() - 1) {
+                    assertTrue(message + ": " + buckets + " buckets on level " + level, buckets <= pixels);
+                }
+                if (level > 0) {
+                    //The next finer level would have more buckets than half of the pixels
+                    long finerBuckets = history.getBucketIndex(level - 1, samples - 1) + 1;
+                    assertTrue(message + ": level " + (level - 1) + " would do", finerBuckets * 2 > pixels);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package de.hdmstuttgart.blueiot;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the hand-over of samples through the SampleRingBuffer, including a producer running at kHz rates against a consumer draining once per display frame
+ */
+public class SampleRingBufferTest extends TestCase {
+    //Producer rate and duration of the paced stress test
+    private static final long SAMPLE_INTERVAL_NANOS = 1000000;
+    private static final int PACED_SAMPLE_COUNT = 2000;
+    //Time between two drains of the consumer in milliseconds (one display frame)
+    private static final long DRAIN_INTERVAL_MILLIS = 16;
+
+    //Number of samples of the unpaced stress test
+    private static final int UNPACED_SAMPLE_COUNT = 1000000;
+
+    /**
+     * Checks the order of the samples a consumer receives: every sample carries its sequence number as timestamp and in each of its values
+     */
+    private static class OrderCheckingListener implements SampleListener {
+        private long receivedCount;
+        private long lastTimestamp = -1;
+        private boolean isOrdered = true;
+        private boolean isConsistent = true;
+
+        @Override
+        public void onSample(long timestamp, float x, float y, float z, float height) {
+            if (timestamp <= this.lastTimestamp) {
+                this.isOrdered = false;
+            }
+            if (x != (float) timestamp || y != -(float) timestamp || z != timestamp * 0.5f || height != timestamp + 1) {
+                this.isConsistent = false;
+            }
+            this.lastTimestamp = timestamp;
+            this.receivedCount++;
+        }
+    }
+
+    private static void offer(SampleRingBuffer buffer, long sequenceNumber) {
+        buffer.offer(sequenceNumber, sequenceNumber, -sequenceNumber, sequenceNumber * 0.5f, sequenceNumber + 1);
+    }
+
+    public void testDrainReturnsSamplesInOrder() {
+        SampleRingBuffer buffer = new SampleRingBuffer(8);
+        for (int i = 0; i < 5; i++) {
+            offer(buffer, i);
+        }
+
+        OrderCheckingListener listener = new OrderCheckingListener();
+        assertEquals(3, buffer.drain(listener, 3));
+        assertEquals(2, buffer.size());
+        assertEquals(2, buffer.drain(listener, 100));
+        assertEquals(0, buffer.size());
+
+        assertEquals(5, listener.receivedCount);
+        assertTrue(listener.isOrdered);
+        assertTrue(listener.isConsistent);
+    }
+
+    public void testCapacityIsRoundedToPowerOfTwo() {
+        assertEquals(1024, new SampleRingBuffer(1000).getCapacity());
+        assertEquals(256, new SampleRingBuffer(256).getCapacity());
+    }
+
+    public void testFullBufferCountsOverruns() {
+        SampleRingBuffer buffer = new SampleRingBuffer(4);
+        for (int i = 0; i < 4; i++) {
+            assertTrue(buffer.offer(i, i, -i, i * 0.5f, i + 1));
+        }
+        assertFalse(buffer.offer(4, 4, -4, 2, 5));
+        assertFalse(buffer.offer(5, 5, -5, 2.5f, 6));
+        assertEquals(2, buffer.getOverrunCount());
+
+        //The samples that have been written are kept, the dropped ones are lost
+        OrderCheckingListener listener = new OrderCheckingListener();
+        assertEquals(4, buffer.drain(listener, 100));
+        assertEquals(3, listener.lastTimestamp);
+
+        //Space is available again after draining
+        assertTrue(buffer.offer(6, 6, -6, 3, 7));
+    }
+
+    public void testClearDropsBufferedSamples() {
+        SampleRingBuffer buffer = new SampleRingBuffer(4);
+        offer(buffer, 0);
+        offer(buffer, 1);
+        buffer.clear();
+
+        assertEquals(0, buffer.size());
+        assertEquals(0, buffer.drain(new OrderCheckingListener(), 100));
+    }
+
+    /**
+     * Producer at 1 kHz, consumer draining every 16 ms: nothing may be lost or reordered
+     */
+    public void testPacedProducerAtOneKilohertz() throws InterruptedException {
+        final SampleRingBuffer buffer = new SampleRingBuffer(1024);
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                long nextSampleTime = System.nanoTime();
+                for (int i = 0; i < PACED_SAMPLE_COUNT; i++) {
+                    while (System.nanoTime() < nextSampleTime) {
+                        //Busy-wait, sleeping isn't precise enough for 1 ms
+                    }
+                    offer(buffer, i);
+                    nextSampleTime += SAMPLE_INTERVAL_NANOS;
+                }
+            }
+        });
+
+        OrderCheckingListener listener = new OrderCheckingListener();
+        producer.start();
+        while (producer.isAlive()) {
+            Thread.sleep(DRAIN_INTERVAL_MILLIS);
+            buffer.drain(listener, buffer.getCapacity());
+        }
+        producer.join();
+        buffer.drain(listener, buffer.getCapacity());
+
+        assertEquals(0, buffer.getOverrunCount());
+        assertEquals(PACED_SAMPLE_COUNT, listener.receivedCount);
+        assertTrue(listener.isOrdered);
+        assertTrue(listener.isConsistent);
+    }
+
+    /**
+     * Unpaced producer against a busy consumer: samples may be dropped, but every sample is either received once (in order) or counted as overrun
+     */
+    public void testUnpacedProducerLosesNothingUncounted() throws InterruptedException {
+        final SampleRingBuffer buffer = new SampleRingBuffer(256);
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < UNPACED_SAMPLE_COUNT; i++) {
+                    offer(buffer, i);
+                }
+            }
+        });
+
+        OrderCheckingListener listener = new OrderCheckingListener();
+        producer.start();
+        while (producer.isAlive()) {
+            buffer.drain(listener, buffer.getCapacity());
+        }
+        producer.join();
+        buffer.drain(listener, buffer.getCapacity());
+
+        assertEquals(UNPACED_SAMPLE_COUNT, listener.receivedCount + buffer.getOverrunCount());
+        assertTrue(listener.isOrdered);
+        assertTrue(listener.isConsistent);
+    }
+}
@@ -0,0 +1,192 @@
+package de.hdmstuttgart.blueiot;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.os.SystemClock;
+import android.test.ActivityInstrumentationTestCase2;
+import android.util.Log;
+import android.widget.AbsListView;
+import android.widget.ExpandableListView;
+import android.widget.ListView;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.UUID;
+
+/**
+ * Measures the share of janky frames (see ScrollJankMonitor) while scrolling the list of scanned devices and the GATT table, both filled with a large number of rows.
+ * Each list is shown in the MainActivity, scrolled down and up again by AbsListView.smoothScrollBy().
+ * The results are written to the log (tag "ScrollJankBenchmark").
+ */
+public class ScrollJankBenchmark extends ActivityInstrumentationTestCase2<MainActivity> {
+    private static final String TAG = "ScrollJankBenchmark";
+
+    //Size of the lists: number of scanned devices and services of the GATT table, each with CHARACTERISTIC_COUNT characteristics
+    private static final int DEVICE_COUNT = 300;
+    private static final int SERVICE_COUNT = 30;
+    private static final int CHARACTERISTIC_COUNT = 10;
+
+    //Duration of each scroll and the distance scrolled, in heights of the list
+    private static final int SCROLL_MILLIS = 3000;
+    private static final int SCROLL_PAGES = 20;
+
+    private ScrollJankMonitor scrollJankMonitor;
+
+    public ScrollJankBenchmark() {
+        super(MainActivity.class);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        this.scrollJankMonitor = new ScrollJankMonitor(getActivity().getWindowManager().getDefaultDisplay().getRefreshRate());
+    }
+
+    /**
+     * Creates an advertisement as sent by a typical beacon: flags, the complete local name and manufacturer specific data
+     * @param name The local name to advertise
+     * @param index Number of the device, used as manufacturer specific data
+     * @return The payload of the advertisement
+     */
+    private static byte[] createAdvertisement(String name, int index) {
+        byte[] nameBytes = name.getBytes();
+        byte[] data = new byte[3 + 2 + nameBytes.length + 6];
+        int position = 0;
+
+        //Flags: LE General Discoverable, BR/EDR not supported
+        data[position++] = 2;
+        data[position++] = 0x01;
+        data[position++] = 0x06;
+
+        data[position++] = (byte) (nameBytes.length + 1);
+        data[position++] = 0x09;
+        System.arraycopy(nameBytes, 0, data, position, nameBytes.length);
+        position += nameBytes.length;
+
+        data[position++] = 5;
+        data[position++] = (byte) 0xFF;
+        data[position++] = 0x4C;
+        data[position++] = 0x00;
+        data[position++] = (byte) (index >> 8);
+        data[position] = (byte) index;
+        return data;
+    }
+
+    /**
+     * @param adapter The BluetoothAdapter creating the devices
+     * @return DEVICE_COUNT devices with an advertisement each, every tenth one is a blueIOT
+     */
+    private static List<ScannedDevice> createDevices(BluetoothAdapter adapter) {
+        List<ScannedDevice> devices = new ArrayList<>(DEVICE_COUNT);
+        long now = SystemClock.elapsedRealtime();
+        for (int i = 0; i < DEVICE_COUNT; i++) {
+            BluetoothDevice device = adapter.getRemoteDevice(String.format(Locale.US, "02:00:00:00:%02X:%02X", i >> 8, i & 0xFF));
+            String name = (i % 10 == 0 ? BlueIOTHelper.BLUEIOT_DEVICE_NAME : "Sensor") + " " + i;
+
+            ScannedDevice scannedDevice = new ScannedDevice(device, null);
+            int rssi = -40 - i % 60;
+            scannedDevice.update(rssi, rssi, now, i + 1, AdvertisementRecord.parse(createAdvertisement(name, i)));
+            devices.add(scannedDevice);
+        }
+        return devices;
+    }
+
+    /**
+     * @return SERVICE_COUNT services with CHARACTERISTIC_COUNT characteristics each, every characteristic has a Client Characteristic Configuration descriptor
+     */
+    private static List<BluetoothGattService> createServices() {
+        List<BluetoothGattService> services = new ArrayList<>(SERVICE_COUNT);
+        for (int i = 0; i < SERVICE_COUNT; i++) {
+            BluetoothGattService service = new BluetoothGattService(new UUID(i, 0), BluetoothGattService.SERVICE_TYPE_PRIMARY);
+            for (int j = 0; j < CHARACTERISTIC_COUNT; j++) {
+                BluetoothGattCharacteristic characteristic = new BluetoothGattCharacteristic(new UUID(i, j + 1),
+                        BluetoothGattCharacteristic.PROPERTY_READ | BluetoothGattCharacteristic.PROPERTY_NOTIFY, BluetoothGattCharacteristic.PERMISSION_READ);
+                characteristic.addDescriptor(new BluetoothGattDescriptor(UUID.fromString(BlueIOTHelper.BLUEIOT_DESCRIPTOR_NOTIFICATION_UUID),
+                        BluetoothGattDescriptor.PERMISSION_READ | BluetoothGattDescriptor.PERMISSION_WRITE));
+                service.addCharacteristic(characteristic);
+            }
+            services.add(service);
+        }
+        return services;
+    }
+
+    /**
+     * Scrolls the list down by SCROLL_PAGES heights and up again, with the ScrollJankMonitor measuring the frames
+     * @param listView The list shown by the Activity
+     */
+    private void scroll(final AbsListView listView) throws Throwable {
+        getInstrumentation().waitForIdleSync();
+        this.scrollJankMonitor.reset();
+
+        for (final int direction : new int[] { 1, -1 }) {
+            runTestOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    listView.smoothScrollBy(direction * listView.getHeight() * SCROLL_PAGES, SCROLL_MILLIS);
+                }
+            });
+            Thread.sleep(SCROLL_MILLIS + 500);
+            getInstrumentation().waitForIdleSync();
+        }
+    }
+
+    /**
+     * Writes the statistics to the log and checks that frames have been measured
+     * @param name The name of the list as written to the log
+     */
+    private void report(String name) {
+        Log.i(TAG, name + ":\n" + this.scrollJankMonitor.getSummary());
+        assertTrue(name + ": no frames measured while scrolling", this.scrollJankMonitor.getFrameCount() > 0);
+        Log.i(TAG, String.format(Locale.US, "%s: %.1f %% janky frames", name, this.scrollJankMonitor.getJankRate() * 100));
+    }
+
+    public void testScrollDeviceList() throws Throwable {
+        final BluetoothAdapter bluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
+        if (bluetoothAdapter == null) {
+            Log.w(TAG, "Bluetooth not supported, the device list can't be filled");
+            return;
+        }
+
+        final MainActivity activity = getActivity();
+        final ListView listView = new ListView(activity);
+        runTestOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                BleDeviceListAdapter adapter = new BleDeviceListAdapter(activity);
+                adapter.addDevices(createDevices(bluetoothAdapter));
+                adapter.updateOrder();
+                listView.setAdapter(adapter);
+                listView.setOnScrollListener(scrollJankMonitor);
+                activity.setContentView(listView);
+            }
+        });
+
+        scroll(listView);
+        report("Device list (" + DEVICE_COUNT + " devices)");
+    }
+
+    public void testScrollGattTable() throws Throwable {
+        final MainActivity activity = getActivity();
+        final ExpandableListView listView = new ExpandableListView(activity);
+        runTestOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                BleExpandableListAdapter adapter = new BleExpandableListAdapter(activity);
+                adapter.setGattTable(GattTable.build(activity, createServices()));
+                listView.setAdapter(adapter);
+                for (int i = 0; i < SERVICE_COUNT; i++) {
+                    listView.expandGroup(i);
+                }
+                listView.setOnScrollListener(scrollJankMonitor);
+                activity.setContentView(listView);
+            }
+        });
+
+        scroll(listView);
+        report("GATT table (" + SERVICE_COUNT + " services, " + SERVICE_COUNT * CHARACTERISTIC_COUNT + " characteristics)");
+    }
+}
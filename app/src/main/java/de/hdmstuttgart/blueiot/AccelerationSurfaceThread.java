@@ -1,54 +1,100 @@
 package de.hdmstuttgart.blueiot;
 
 import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothGatt;
-import android.bluetooth.BluetoothGattCallback;
-import android.bluetooth.BluetoothGattCharacteristic;
-import android.bluetooth.BluetoothGattDescriptor;
-import android.bluetooth.BluetoothGattService;
-import android.bluetooth.BluetoothProfile;
 import android.content.Context;
 import android.graphics.Canvas;
-import android.graphics.Color;
-import android.graphics.Paint;
+import android.graphics.Rect;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.view.Choreographer;
 import android.view.SurfaceHolder;
 
-import java.util.UUID;
-
 /**
  * Custom Thread-Class that is used to draw onto the SurfaceView that is being passed over in the Constructor.
  * Handles synchronized access to the underlying Canvas-Element that is part of the SurfaceView in its run-Method
  * By drawing onto the Canvas, the Thread will make sure to lock access to the shared Canvas, then draw onto it and finally unlocking it again and report back all of the changes
+ * The Thread runs its own Looper and is paced by the display (see Choreographer): At most one frame is drawn per vsync, and only if the circle has moved
+ * (or is still fading out). The cost of drawing is measured by FrameStatistics.
+ * The movement of the circle is simulated by BallPhysics in fixed steps on this Thread, the drawn position is interpolated between the steps.
+ * Only the area of the circle at its old and its new position is redrawn (see SurfaceHolder.lockCanvas(Rect) and BallRenderer), the rest of the surface keeps its content.
+ * When fading is enabled, the trail is kept in an offscreen Bitmap that fades out incrementally, without blending the whole surface.
  */
 public class AccelerationSurfaceThread extends Thread {
     private SurfaceHolder surfaceHolder;
     private Context context;
 
-    //Paint-Object used to draw the circle
-    private Paint paint = new Paint();
-
-    private boolean run = false;
+    private volatile boolean run = false;
     private boolean isConnected;
-    private boolean isFadingEnabled = false;
+    private volatile boolean isFadingEnabled = false;
 
     /**
      * Setter-method without parameter: reverts the boolean for fading
      */
     public void setFadingEnabled() {
         this.isFadingEnabled = !this.isFadingEnabled;
+        this.isDirty = true;
+    }
+
+    //Indicates that the next frame has to be drawn, set whenever something changes
+    private volatile boolean isDirty = true;
+
+    //Number of frames to keep drawing after the last change while fading is enabled (until the trail is faded out)
+    private static final int FADE_OUT_FRAMES = 60;
+    private int remainingFadeOutFrames;
+
+    //Looper and Choreographer of this Thread, available once the Thread has started
+    private Looper looper;
+    private Choreographer choreographer;
+
+    //Frame time and CPU usage of the render loop: budget of 4 ms per frame and 10 % of a core
+    private FrameStatistics frameStatistics = new FrameStatistics(4, 0.1f);
+
+    /**
+     * @return The FrameStatistics measuring the render loop
+     */
+    public FrameStatistics getFrameStatistics() {
+        return this.frameStatistics;
+    }
+
+    /**
+     * @return The shared connection to blueIOT or null if not connected
+     */
+    public SensorStreamEngine getStreamEngine() {
+        return this.streamEngine;
     }
 
     //Display size, initially set within setSurfaceSize(width, height)
     private int canvasWidth;
     private int canvasHeight;
 
-    //X and Y values, used for drawing onto the Canvas
-    private float x;
-    private float y;
+    //Set when the surface size has changed, the new size is handed over to the physics on this Thread
+    private boolean isSizeChanged;
+
+    //Radius of the circle in pixels
+    private static final float RADIUS = 50;
+
+    //Movement of the circle, only used by this Thread
+    private BallPhysics physics = new BallPhysics();
+
+    //Interpolated position of the circle for the current frame and the position it has last been drawn at
+    private float[] position = new float[2];
+    private float drawnX = Float.NaN;
+    private float drawnY = Float.NaN;
+
+    //Minimum distance in pixels the circle has to move to be drawn again
+    private static final float MIN_MOVEMENT = 0.25f;
+
+    //Draws the circle and the trail, only used by this Thread
+    private BallRenderer renderer = new BallRenderer(RADIUS);
 
     //Bluetooth-components
     private BluetoothDevice device;
-    private BluetoothGatt bluetoothGatt;
+
+    //Shared connection to blueIOT, delivering the decoded sensor-values
+    private SensorStreamEngine streamEngine;
+
+    //Sensor-Values written by the Binder-Thread, read by this Thread before drawing
+    private SampleRingBuffer pendingSamples = new SampleRingBuffer(256);
 
     /**
      * Constructor
@@ -60,9 +106,6 @@ public class AccelerationSurfaceThread extends Thread {
         this.surfaceHolder = surfaceHolder;
         this.context = context;
 
-        this.paint.setColor(Color.GREEN);
-        this.paint.setStyle(Paint.Style.FILL);
-
         this.device = device;
 
         //Initiate connection process
@@ -72,65 +115,109 @@ public class AccelerationSurfaceThread extends Thread {
     }
 
     /**
-     * Is called continuously while the Thread is running
+     * Runs the Looper of this Thread until it is being stopped, drawing is done within the FrameCallback
      */
     @Override
     public void run() {
         super.run();
 
-        //Infinite loop until the Thread is being stopped
-        while (this.run) {
-            Canvas canvas = null;
-            try {
-                //Lock the Canvas, then draw onto it
-                canvas = this.surfaceHolder.lockCanvas();
-                synchronized (this.surfaceHolder) {
-                    doDraw(canvas);
-                }
-            }
-            finally {
-                //Unlock Canvas and post it back
-                if (canvas != null) {
-                    this.surfaceHolder.unlockCanvasAndPost(canvas);
-                }
-            }
+        Looper.prepare();
+        synchronized (this) {
+            this.looper = Looper.myLooper();
+            this.choreographer = Choreographer.getInstance();
+        }
+
+        //Loop until the Thread is being stopped
+        if (this.run) {
+            this.frameStatistics.start();
+            this.choreographer.postFrameCallback(this.frameCallback);
+            Looper.loop();
         }
 
+        //Free the memory of the trail right away instead of waiting for the garbage collector
+        this.renderer.release();
+
         disconnectFromBlueIOT();
     }
 
     /**
-     * Draws onto the Canvas
-     * @param canvas The Canvas to draw onto
+     * FrameCallback executed on this Thread once per display frame (vsync)
      */
-    private void doDraw(Canvas canvas) {
-        //Save --> Draw --> Restore
-        canvas.save();
+    private Choreographer.FrameCallback frameCallback = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            if (!run) {
+                return;
+            }
 
-        //Draw Background, use slightly transparent background to enable fading-effect
-        if (this.isFadingEnabled) {
-            canvas.drawColor(Color.argb(10, 0, 0, 0));
-        }
-        else {
-            canvas.drawColor(Color.BLACK);
-        }
+            //Hand a changed surface size over to the physics, which puts the circle in the middle
+            synchronized (surfaceHolder) {
+                if (isSizeChanged) {
+                    isSizeChanged = false;
+                    physics.setBounds(canvasWidth, canvasHeight, RADIUS);
+                    renderer.setSize(canvasWidth, canvasHeight);
+                }
+            }
 
-        //Draw Circle
-        canvas.drawCircle(this.x, this.y, 50, this.paint);
+            //The trail is only kept while fading is enabled, switching starts over with a full redraw
+            renderer.setFadingEnabled(isFadingEnabled);
 
-        canvas.restore();
-    }
+            //Simulate the movement according to all of the sensor-values that arrived since the last frame, up to now
+            pendingSamples.drain(physics, pendingSamples.getCapacity());
+            long now = SystemClock.elapsedRealtimeNanos();
+            physics.advance(now);
+            physics.getPosition(now, position);
+
+            if (!(Math.abs(position[0] - drawnX) < MIN_MOVEMENT && Math.abs(position[1] - drawnY) < MIN_MOVEMENT)) {
+                isDirty = true;
+            }
+
+            if (isDirty) {
+                isDirty = false;
+                remainingFadeOutFrames = FADE_OUT_FRAMES;
+                drawFrame();
+            }
+            else if (isFadingEnabled && remainingFadeOutFrames > 0) {
+                remainingFadeOutFrames--;
+                drawFrame();
+            }
+            else {
+                //Nothing has changed: don't draw at all
+                frameStatistics.recordSkippedFrame();
+            }
+
+            choreographer.postFrameCallback(this);
+        }
+    };
 
     /**
-     * Called initially (e.g. when the surface size is being set)
-     * Positions the x- and y-value for the circle in the middle
+     * Locks the area that has changed, draws onto it and posts it back
      */
-    private void doStart() {
-        //Put the circle in the middle of the Canvas
-        synchronized (this.surfaceHolder) {
-            this.x = this.canvasWidth / 2;
-            this.y = this.canvasHeight / 2;
+    private void drawFrame() {
+        long start = SystemClock.elapsedRealtimeNanos();
+
+        Rect dirtyRect = this.renderer.prepareFrame(this.position[0], this.position[1], this.remainingFadeOutFrames == 0);
+
+        Canvas canvas = null;
+        try {
+            //Lock the changed area of the Canvas (might be enlarged by the Surface), then draw onto it
+            canvas = this.surfaceHolder.lockCanvas(dirtyRect);
+            if (canvas != null) {
+                synchronized (this.surfaceHolder) {
+                    this.renderer.draw(canvas);
+                }
+                this.drawnX = this.position[0];
+                this.drawnY = this.position[1];
+            }
         }
+        finally {
+            //Unlock Canvas and post it back
+            if (canvas != null) {
+                this.surfaceHolder.unlockCanvasAndPost(canvas);
+            }
+        }
+
+        this.frameStatistics.recordFrame(SystemClock.elapsedRealtimeNanos() - start, this.renderer.getDirtyPixels());
     }
 
     /**
@@ -144,8 +231,9 @@ public class AccelerationSurfaceThread extends Thread {
             this.canvasWidth = width;
             this.canvasHeight = height;
 
-            //Setup Circle
-            doStart();
+            //Setup Circle (done by this Thread before the next frame)
+            this.isSizeChanged = true;
+            this.isDirty = true;
         }
     }
 
@@ -155,139 +243,40 @@ public class AccelerationSurfaceThread extends Thread {
      */
     public void setRunning(boolean doRun) {
         this.run = doRun;
-    }
-
-    /**
-     * BluetoothGattCallback that is used to connect to a remote BLE-Device.
-     * Defines callback-methods that are used for each step in the process of connecting/reading/writing for that device.
-     */
-    private BluetoothGattCallback gattCallback = new BluetoothGattCallback() {
-        @Override
-        public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
-            if (newState == BluetoothProfile.STATE_CONNECTED) {
-                //Start discovering all Services on the BLE-Remote-Device (i.e. blueIOT)
-                gatt.discoverServices();
-            }
-        }
-
-        @Override
-        public void onServicesDiscovered(BluetoothGatt gatt, int status) {
-            BluetoothGattService gattService = gatt.getService(UUID.fromString(BlueIOTHelper.BLUEIOT_PRIMARY_SERVICE_UUID));
-            if (gattService != null) {
-                BluetoothGattCharacteristic characteristic = gattService.getCharacteristic(UUID.fromString(BlueIOTHelper.BLUEIOT_CHARACTERISTIC_NOTIFICATION_UUID));
-                if (characteristic != null) {
-                    //Enable local notifications (i.e. Android-Application)
-                    gatt.setCharacteristicNotification(characteristic, true);
-
-                    //Enable remote notifications on the BLE-Server (i.e. blueIOT)
-                    BluetoothGattDescriptor descriptor = characteristic.getDescriptor(UUID.fromString(BlueIOTHelper.BLUEIOT_DESCRIPTOR_NOTIFICATION_UUID));
-                    if (descriptor != null) {
-                        descriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
-                        gatt.writeDescriptor(descriptor);
-
-                        /*
-                         *   After both types of notifications have been set, the BLE-Remote-Device will continuously push new values
-                         *   into the Android-App. These push notifications will be dealt with inside regular calls to onCharacteristicChanged()
-                         */
-                    }
-                }
-            }
-        }
-
-        @Override
-        public void onCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
-            super.onCharacteristicRead(gatt, characteristic, status);
-        }
-
-        @Override
-        public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
-            super.onCharacteristicWrite(gatt, characteristic, status);
-        }
 
-        @Override
-        public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
-            //Read the String value from the Characteristic with Offset = 0
-            String value = characteristic.getStringValue(0);
-            try {
-                /*
-                 *    The Value will be one String, containing X,Y and Z from the Accelerometer and the Altitude from the Barometer
-                 *    All Values will be separated by a comma (",") in the above mentioned order
-                 */
-
-                String[] values = value.split(",");
-                if (values.length == 4) {
-                    final float xAcceleration = Float.parseFloat(values[0].trim());
-                    final float yAcceleration = Float.parseFloat(values[1].trim());
-                    //final float zAcceleration = Float.parseFloat(values[2].trim());
-                    //final float height = Float.parseFloat(values[3].trim());
-
-                    //Update X and Y
-                    x += xAcceleration / 10;
-                    y += yAcceleration / 10;
-
-                    //Stay within the Display-Bounds for X and Y when drawing the circle
-                    if (x < 25) {
-                        x = 25;
-                    }
-                    if (x > canvasWidth - 25) {
-                        x = canvasWidth - 25;
-                    }
-
-                    if (y < 25) {
-                        y = 25;
-                    }
-                    if (y > canvasHeight - 25) {
-                        y = canvasHeight - 25;
-                    }
+        //Leave the Looper, so the Thread can finish
+        if (!doRun) {
+            synchronized (this) {
+                if (this.looper != null) {
+                    this.looper.quit();
                 }
             }
-            catch (Exception ex) {}
-        }
-
-        @Override
-        public void onDescriptorRead(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
-            super.onDescriptorRead(gatt, descriptor, status);
-        }
-
-        @Override
-        public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
-            super.onDescriptorWrite(gatt, descriptor, status);
         }
-
-        @Override
-        public void onReliableWriteCompleted(BluetoothGatt gatt, int status) {
-            super.onReliableWriteCompleted(gatt, status);
-        }
-
-        @Override
-        public void onReadRemoteRssi(BluetoothGatt gatt, int rssi, int status) {
-            super.onReadRemoteRssi(gatt, rssi, status);
-        }
-
-        /*
-        @Override
-        public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
-            super.onMtuChanged(gatt, mtu, status);
-        }
-        */
-    };
+    }
 
     /**
-     * Connects to the blueIOT with the predefined BluetoothGattCallback
+     * Connects to the blueIOT by using the shared SensorStreamEngine and starts receiving its sensor-values
      */
     private void connectToBlueIOT() {
         if (!this.isConnected) {
-            this.bluetoothGatt = this.device.connectGatt(this.context, false, this.gattCallback);
+            this.streamEngine = SensorStreamEngine.acquire(this.context, this.device);
+            this.streamEngine.addSampleListener(this.pendingSamples);
+
+            //The ball is in the foreground while connected
+            this.streamEngine.setStreamingEnabled(true);
             this.isConnected = true;
         }
     }
 
     /**
-     * Disconnects from blueIOT
+     * Stops receiving sensor-values and releases the connection to blueIOT
      */
     private void disconnectFromBlueIOT() {
-        if (this.isConnected && this.bluetoothGatt != null) {
-            this.bluetoothGatt.disconnect();
+        if (this.isConnected && this.streamEngine != null) {
+            this.streamEngine.removeSampleListener(this.pendingSamples);
+            this.streamEngine.setStreamingEnabled(false);
+            this.streamEngine.release();
+            this.streamEngine = null;
             this.isConnected = false;
         }
     }
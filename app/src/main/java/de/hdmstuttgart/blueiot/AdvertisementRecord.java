@@ -0,0 +1,234 @@
+package de.hdmstuttgart.blueiot;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.UUID;
+
+/**
+ * The content of an advertisement: local name, service UUIDs, manufacturer specific data and TX power.
+ * An advertisement consists of AD-structures, each made up of a length byte, a type byte and length - 1 bytes of data.
+ * parse() walks these structures within the received byte array, only the values that are kept are copied out of it.
+ * Instances are immutable and are parsed once per payload (see BleDeviceRegistry), the text shown in the list is computed along with them.
+ */
+public class AdvertisementRecord {
+    //AD-Types, see Bluetooth Assigned Numbers (Generic Access Profile)
+    private static final int TYPE_SERVICE_UUIDS_16_BIT_PARTIAL = 0x02;
+    private static final int TYPE_SERVICE_UUIDS_16_BIT_COMPLETE = 0x03;
+    private static final int TYPE_SERVICE_UUIDS_32_BIT_PARTIAL = 0x04;
+    private static final int TYPE_SERVICE_UUIDS_32_BIT_COMPLETE = 0x05;
+    private static final int TYPE_SERVICE_UUIDS_128_BIT_PARTIAL = 0x06;
+    private static final int TYPE_SERVICE_UUIDS_128_BIT_COMPLETE = 0x07;
+    private static final int TYPE_LOCAL_NAME_SHORT = 0x08;
+    private static final int TYPE_LOCAL_NAME_COMPLETE = 0x09;
+    private static final int TYPE_TX_POWER_LEVEL = 0x0A;
+    private static final int TYPE_MANUFACTURER_SPECIFIC_DATA = 0xFF;
+
+    //Value of txPower and manufacturerId if not advertised
+    public static final int NOT_ADVERTISED = Integer.MIN_VALUE;
+
+    //Most significant bits of the Bluetooth Base UUID (0000xxxx-0000-1000-8000-00805F9B34FB), used to expand 16- and 32-bit UUIDs
+    private static final long BASE_UUID_MOST_SIGNIFICANT_BITS = 0x0000000000001000L;
+    private static final long BASE_UUID_LEAST_SIGNIFICANT_BITS = 0x800000805F9B34FBL;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final String localName;
+    private final List<UUID> serviceUuids;
+    private final int txPower;
+    private final int manufacturerId;
+    private final byte[] manufacturerData;
+
+    //Display model: summary shown in the list
+    private final String summary;
+
+    private AdvertisementRecord(String localName, List<UUID> serviceUuids, int txPower, int manufacturerId, byte[] manufacturerData) {
+        this.localName = localName;
+        this.serviceUuids = Collections.unmodifiableList(serviceUuids);
+        this.txPower = txPower;
+        this.manufacturerId = manufacturerId;
+        this.manufacturerData = manufacturerData;
+        this.summary = createSummary();
+    }
+
+    /**
+     * Parses the AD-structures of an advertisement (and scan response), stopping at the first structure of length 0 (the zero-padding of the payload)
+     * Malformed structures that exceed the payload are ignored.
+     * @param data The advertisement as received by the scan callback
+     * @return The parsed AdvertisementRecord
+     */
+    public static AdvertisementRecord parse(byte[] data) {
+        String localName = null;
+        List<UUID> serviceUuids = new ArrayList<>(1);
+        int txPower = NOT_ADVERTISED;
+        int manufacturerId = NOT_ADVERTISED;
+        byte[] manufacturerData = null;
+
+        int position = 0;
+        while (data != null && position < data.length) {
+            int length = data[position] & 0xFF;
+            if (length == 0 || position + 1 + length > data.length) {
+                break;
+            }
+
+            int type = data[position + 1] & 0xFF;
+            int start = position + 2;
+            int dataLength = length - 1;
+
+            switch (type) {
+                case TYPE_SERVICE_UUIDS_16_BIT_PARTIAL:
+                case TYPE_SERVICE_UUIDS_16_BIT_COMPLETE:
+                    for (int i = start; i + 2 <= start + dataLength; i += 2) {
+                        serviceUuids.add(fromShortUuid(readUnsigned(data, i, 2)));
+                    }
+                    break;
+                case TYPE_SERVICE_UUIDS_32_BIT_PARTIAL:
+                case TYPE_SERVICE_UUIDS_32_BIT_COMPLETE:
+                    for (int i = start; i + 4 <= start + dataLength; i += 4) {
+                        serviceUuids.add(fromShortUuid(readUnsigned(data, i, 4)));
+                    }
+                    break;
+                case TYPE_SERVICE_UUIDS_128_BIT_PARTIAL:
+                case TYPE_SERVICE_UUIDS_128_BIT_COMPLETE:
+                    for (int i = start; i + 16 <= start + dataLength; i += 16) {
+                        //128-bit UUIDs are transmitted in little endian
+                        serviceUuids.add(new UUID(readUnsigned(data, i + 8, 8), readUnsigned(data, i, 8)));
+                    }
+                    break;
+                case TYPE_LOCAL_NAME_SHORT:
+                    //The complete name takes precedence
+                    if (localName == null) {
+                        localName = new String(data, start, dataLength, UTF_8);
+                    }
+                    break;
+                case TYPE_LOCAL_NAME_COMPLETE:
+                    localName = new String(data, start, dataLength, UTF_8);
+                    break;
+                case TYPE_TX_POWER_LEVEL:
+                    if (dataLength >= 1) {
+                        txPower = data[start];
+                    }
+                    break;
+                case TYPE_MANUFACTURER_SPECIFIC_DATA:
+                    if (dataLength >= 2) {
+                        manufacturerId = (int) readUnsigned(data, start, 2);
+                        manufacturerData = new byte[dataLength - 2];
+                        System.arraycopy(data, start + 2, manufacturerData, 0, manufacturerData.length);
+                    }
+                    break;
+                default:
+                    break;
+            }
+
+            position += 1 + length;
+        }
+
+        return new AdvertisementRecord(localName, serviceUuids, txPower, manufacturerId, manufacturerData);
+    }
+
+    /**
+     * Computes the hash of an advertisement, used to detect whether it has to be parsed again
+     * @param data The advertisement as received by the scan callback
+     * @return The hash of the bytes
+     */
+    public static int hash(byte[] data) {
+        if (data == null) {
+            return 0;
+        }
+
+        int hash = 1;
+        for (int i = 0; i < data.length; i++) {
+            hash = 31 * hash + data[i];
+        }
+        return hash;
+    }
+
+    /**
+     * Reads an unsigned little endian value
+     * @param data The byte array to read from
+     * @param offset Position of the first (least significant) byte
+     * @param length Number of bytes (at most 8)
+     * @return The value
+     */
+    private static long readUnsigned(byte[] data, int offset, int length) {
+        long value = 0;
+        for (int i = length - 1; i >= 0; i--) {
+            value = (value << 8) | (data[offset + i] & 0xFF);
+        }
+        return value;
+    }
+
+    /**
+     * Expands a 16- or 32-bit UUID using the Bluetooth Base UUID
+     * @param shortUuid The 16- or 32-bit UUID
+     * @return The 128-bit UUID
+     */
+    private static UUID fromShortUuid(long shortUuid) {
+        return new UUID(BASE_UUID_MOST_SIGNIFICANT_BITS | (shortUuid << 32), BASE_UUID_LEAST_SIGNIFICANT_BITS);
+    }
+
+    /**
+     * @return The text shown in the list, e.g. "TX -59 dBm, 1 service, Manufacturer 0x004C (23 bytes)"
+     */
+    private String createSummary() {
+        StringBuilder builder = new StringBuilder();
+        if (this.txPower != NOT_ADVERTISED) {
+            builder.append("TX ").append(this.txPower).append(" dBm");
+        }
+        if (this.serviceUuids.size() == 1) {
+            appendSeparator(builder).append("Service ").append(this.serviceUuids.get(0).toString());
+        }
+        else if (this.serviceUuids.size() > 1) {
+            appendSeparator(builder).append(this.serviceUuids.size()).append(" services");
+        }
+        if (this.manufacturerId != NOT_ADVERTISED) {
+            appendSeparator(builder).append(String.format(Locale.US, "Manufacturer 0x%04X (%d bytes)", this.manufacturerId, this.manufacturerData.length));
+        }
+        return builder.toString();
+    }
+
+    private static StringBuilder appendSeparator(StringBuilder builder) {
+        return builder.length() > 0 ? builder.append(", ") : builder;
+    }
+
+    /**
+     * @return The advertised local name or null
+     */
+    public String getLocalName() {
+        return this.localName;
+    }
+
+    public List<UUID> getServiceUuids() {
+        return this.serviceUuids;
+    }
+
+    /**
+     * @return The advertised TX power in dBm or NOT_ADVERTISED
+     */
+    public int getTxPower() {
+        return this.txPower;
+    }
+
+    /**
+     * @return The company identifier of the manufacturer specific data or NOT_ADVERTISED
+     */
+    public int getManufacturerId() {
+        return this.manufacturerId;
+    }
+
+    /**
+     * @return The manufacturer specific data without the company identifier or null
+     */
+    public byte[] getManufacturerData() {
+        return this.manufacturerData;
+    }
+
+    /**
+     * @return The text shown in the list
+     */
+    public String getSummary() {
+        return this.summary;
+    }
+}
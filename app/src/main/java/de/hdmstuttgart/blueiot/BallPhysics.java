@@ -0,0 +1,153 @@
+package de.hdmstuttgart.blueiot;
+
+/**
+ * Moves the ball of the AccelerationSurfaceView according to the acceleration measured by blueIOT.
+ * The simulation advances in steps of a fixed length (TIME_STEP_NANOS), independent of the rate and the jitter of the notifications:
+ * Each sample changes the acceleration from its timestamp on, the ball keeps its velocity in between and slows down by damping.
+ * The ball bounces off the edges of the surface, losing part of its velocity.
+ * To draw smoothly at any refresh rate, the position is interpolated between the last two steps (see getPosition()).
+ * An instance is not thread-safe, all methods have to be called from the same thread (i.e. the rendering thread).
+ */
+public class BallPhysics implements SampleListener {
+    //Length of a single step in nanoseconds (240 Hz, i.e. at least one step per frame on 120 Hz displays)
+    public static final long TIME_STEP_NANOS = 1000000000L / 240;
+    private static final float TIME_STEP_SECONDS = TIME_STEP_NANOS / 1000000000f;
+
+    //Maximum number of steps per call to advance(), after a longer pause the simulation skips ahead instead of catching up
+    private static final int MAX_STEPS = 60;
+
+    //Acceleration of the ball in pixels/s^2 per unit of the sensor-value
+    private static final float ACCELERATION_SCALE = 200;
+    //Share of the velocity that is lost per second
+    private static final float DAMPING = 1.5f;
+    //Share of the velocity that is kept when bouncing off an edge
+    private static final float RESTITUTION = 0.6f;
+
+    //Factor the velocity is multiplied with per step
+    private static final float DAMPING_PER_STEP = (float) Math.exp(-DAMPING * TIME_STEP_SECONDS);
+
+    //Area the center of the ball can move in
+    private float minX;
+    private float minY;
+    private float maxX;
+    private float maxY;
+
+    //State after the last step and the step before (for interpolation)
+    private float x;
+    private float y;
+    private float previousX;
+    private float previousY;
+    private float velocityX;
+    private float velocityY;
+
+    //Current acceleration in pixels/s^2, held until the next sample arrives
+    private float accelerationX;
+    private float accelerationY;
+
+    //Time of the last step in nanoseconds (see SystemClock.elapsedRealtimeNanos()), -1 before the first step
+    private long simulatedTime = -1;
+
+    /**
+     * Sets the size of the surface and puts the ball into its middle at rest
+     * @param width Pixel Width of the Surface
+     * @param height Pixel Height of the Surface
+     * @param radius Radius of the ball in pixels
+     */
+    public void setBounds(int width, int height, float radius) {
+        this.minX = radius;
+        this.minY = radius;
+        this.maxX = Math.max(radius, width - radius);
+        this.maxY = Math.max(radius, height - radius);
+
+        this.x = this.previousX = width / 2f;
+        this.y = this.previousY = height / 2f;
+        this.velocityX = 0;
+        this.velocityY = 0;
+    }
+
+    /**
+     * Advances the simulation to the timestamp of the sample, then uses the sample as the new acceleration
+     * @param timestamp Time of the sample in milliseconds (see SystemClock.elapsedRealtime())
+     * @param xAcceleration Acceleration on the X-Axis
+     * @param yAcceleration Acceleration on the Y-Axis
+     * @param zAcceleration Acceleration on the Z-Axis (not used)
+     * @param height Relative height (not used)
+     */
+    @Override
+    public void onSample(long timestamp, float xAcceleration, float yAcceleration, float zAcceleration, float height) {
+        advance(timestamp * 1000000);
+
+        this.accelerationX = xAcceleration * ACCELERATION_SCALE;
+        this.accelerationY = yAcceleration * ACCELERATION_SCALE;
+    }
+
+    /**
+     * Executes all steps up to the specified time
+     * @param timeNanos Time in nanoseconds (see SystemClock.elapsedRealtimeNanos())
+     */
+    public void advance(long timeNanos) {
+        if (this.simulatedTime < 0) {
+            this.simulatedTime = timeNanos;
+            return;
+        }
+
+        int steps = 0;
+        while (this.simulatedTime + TIME_STEP_NANOS <= timeNanos) {
+            if (steps == MAX_STEPS) {
+                //Too far behind: skip the remaining time
+                this.simulatedTime = timeNanos;
+                break;
+            }
+
+            step();
+            this.simulatedTime += TIME_STEP_NANOS;
+            steps++;
+        }
+    }
+
+    /**
+     * Writes the position of the ball at the specified time into the array, interpolated between the last two steps.
+     * The drawn position thus lags one step behind the simulation, but moves evenly regardless of the frame rate.
+     * @param timeNanos Time in nanoseconds, usually the time advance() has been called with
+     * @param position Array of (at least) 2 floats to write X and Y into
+     */
+    public void getPosition(long timeNanos, float[] position) {
+        float alpha = this.simulatedTime < 0 ? 1 : (float) (timeNanos - this.simulatedTime) / TIME_STEP_NANOS;
+        alpha = Math.max(0, Math.min(1, alpha));
+
+        position[0] = this.previousX + (this.x - this.previousX) * alpha;
+        position[1] = this.previousY + (this.y - this.previousY) * alpha;
+    }
+
+    /**
+     * Executes a single step: semi-implicit Euler integration, damping and bouncing off the edges
+     */
+    private void step() {
+        this.previousX = this.x;
+        this.previousY = this.y;
+
+        this.velocityX = (this.velocityX + this.accelerationX * TIME_STEP_SECONDS) * DAMPING_PER_STEP;
+        this.velocityY = (this.velocityY + this.accelerationY * TIME_STEP_SECONDS) * DAMPING_PER_STEP;
+        this.x += this.velocityX * TIME_STEP_SECONDS;
+        this.y += this.velocityY * TIME_STEP_SECONDS;
+
+        //Bounce off the edges
+        if (this.x < this.minX) {
+            this.x = this.minX;
+            this.velocityX = -this.velocityX * RESTITUTION;
+        }
+        else if (this.x > this.maxX) {
+            this.x = this.maxX;
+            this.velocityX = -this.velocityX * RESTITUTION;
+        }
+
+        if (this.y < this.minY) {
+            this.y = this.minY;
+            this.velocityY = -this.velocityY * RESTITUTION;
+        }
+        else if (this.y > this.maxY) {
+            this.y = this.maxY;
+            this.velocityY = -this.velocityY * RESTITUTION;
+        }
+    }
+}
@@ -0,0 +1,218 @@
+package de.hdmstuttgart.blueiot;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Rect;
+
+/**
+ * Draws the circle of the ball view, redrawing only the area of the circle at its old and its new position.
+ * Each frame is drawn in two steps: prepareFrame() determines the area that has changed (to be locked, see SurfaceHolder.lockCanvas(Rect)),
+ * draw() redraws that area onto the Canvas, which still holds the previous frame.
+ * When fading is enabled, the trail is kept in an offscreen Bitmap (allocated only while fading is enabled): Each frame, one of TRAIL_STRIPS horizontal strips
+ * of the area covered by the trail is darkened, so the trail fades out incrementally without blending the whole surface.
+ * An instance is not thread-safe and is meant to be used by the rendering thread only (see AccelerationSurfaceThread).
+ */
+public class BallRenderer {
+    //Number of strips the trail is darkened in (one per frame), the alpha per strip matches darkening the whole trail by 10 / 255 per frame
+    private static final int TRAIL_STRIPS = 4;
+    private static final int STRIP_DECAY_ALPHA = 38;
+
+    //Radius of the circle in pixels
+    private final float radius;
+
+    //Paint-Object used to draw the circle
+    private Paint paint = new Paint();
+    private Paint decayPaint = new Paint();
+    private Paint clearPaint = new Paint();
+
+    //Size of the surface
+    private int width;
+    private int height;
+
+    private boolean isFadingEnabled;
+
+    //Position of the circle in the current frame
+    private float x;
+    private float y;
+
+    //Area to redraw in the current frame, the area of the circle at its new and its last drawn position
+    private Rect dirtyRect = new Rect();
+    private Rect circleRect = new Rect();
+    private Rect previousCircleRect = new Rect();
+
+    //Indicates that the whole surface has to be redrawn (e.g. after the size or the fading-mode has changed)
+    private boolean isFullRedraw = true;
+    //Indicates whether the current frame is drawn from the trail
+    private boolean isFading;
+
+    //Offscreen trail used when fading is enabled
+    private Bitmap trailBitmap;
+    private Canvas trailCanvas;
+    //Area covered by the trail since it was last faded out completely
+    private Rect trailBounds = new Rect();
+    //Strip that has been darkened in the current frame
+    private Rect stripRect = new Rect();
+    private int stripIndex;
+
+    /**
+     * Constructor
+     * @param radius Radius of the circle in pixels
+     */
+    public BallRenderer(float radius) {
+        this.radius = radius;
+
+        this.paint.setColor(Color.GREEN);
+        this.paint.setStyle(Paint.Style.FILL);
+
+        this.decayPaint.setColor(Color.argb(STRIP_DECAY_ALPHA, 0, 0, 0));
+        this.clearPaint.setColor(Color.BLACK);
+    }
+
+    /**
+     * Sets the size of the surface, the next frame redraws the whole surface
+     * @param width Width of the surface in pixels
+     * @param height Height of the surface in pixels
+     */
+    public void setSize(int width, int height) {
+        this.width = width;
+        this.height = height;
+        allocateTrail();
+        this.isFullRedraw = true;
+    }
+
+    /**
+     * Enables/Disables the fading trail, allocating or freeing the trail Bitmap. The next frame redraws the whole surface.
+     * @param isFadingEnabled Boolean value indicating whether to draw the trail
+     */
+    public void setFadingEnabled(boolean isFadingEnabled) {
+        if (isFadingEnabled != this.isFadingEnabled) {
+            this.isFadingEnabled = isFadingEnabled;
+            allocateTrail();
+            this.isFullRedraw = true;
+        }
+    }
+
+    /**
+     * Makes the next frame redraw the whole surface (e.g. after its content has been lost)
+     */
+    public void requestFullRedraw() {
+        this.isFullRedraw = true;
+    }
+
+    /**
+     * Moves the circle and determines the area that has to be redrawn. When fading, the trail is updated as well.
+     * @param x Position of the circle on the X-Axis in pixels
+     * @param y Position of the circle on the Y-Axis in pixels
+     * @param isFadedOut Boolean value indicating whether the trail has faded out, its remainder is removed so no faint traces are left behind
+     * @return The area to redraw, may be enlarged by the caller (e.g. by SurfaceHolder.lockCanvas()) before calling draw()
+     */
+    public Rect prepareFrame(float x, float y, boolean isFadedOut) {
+        this.x = x;
+        this.y = y;
+
+        //Area of the circle at its new position (plus a pixel for anti-aliasing)
+        this.circleRect.set((int) (x - this.radius) - 1, (int) (y - this.radius) - 1, (int) (x + this.radius) + 2, (int) (y + this.radius) + 2);
+
+        this.isFading = this.isFadingEnabled && this.trailBitmap != null;
+        if (this.isFading) {
+            updateTrail(this.isFullRedraw, isFadedOut);
+        }
+
+        if (this.isFullRedraw) {
+            this.dirtyRect.set(0, 0, this.width, this.height);
+        }
+        else {
+            this.dirtyRect.set(this.previousCircleRect);
+            this.dirtyRect.union(this.circleRect);
+            if (this.isFading) {
+                this.dirtyRect.union(this.stripRect);
+            }
+        }
+        return this.dirtyRect;
+    }
+
+    /**
+     * Redraws the area returned by prepareFrame(), the rest of the Canvas has to keep the previous frame
+     * @param canvas The Canvas to draw onto, clipped to the area to redraw
+     */
+    public void draw(Canvas canvas) {
+        if (this.isFading) {
+            //Copy the changed area of the trail (which contains the circle)
+            canvas.drawBitmap(this.trailBitmap, this.dirtyRect, this.dirtyRect, null);
+        }
+        else {
+            //Draw Background and Circle
+            canvas.drawColor(Color.BLACK);
+            canvas.drawCircle(this.x, this.y, this.radius, this.paint);
+        }
+
+        this.previousCircleRect.set(this.circleRect);
+        this.isFullRedraw = false;
+    }
+
+    /**
+     * @return Number of pixels of the area redrawn in the current frame
+     */
+    public long getDirtyPixels() {
+        return (long) this.dirtyRect.width() * this.dirtyRect.height();
+    }
+
+    /**
+     * Frees the memory of the trail right away instead of waiting for the garbage collector
+     */
+    public void release() {
+        if (this.trailBitmap != null) {
+            this.trailBitmap.recycle();
+            this.trailBitmap = null;
+            this.trailCanvas = null;
+        }
+    }
+
+    /**
+     * Darkens the next strip of the trail and adds the circle at its new position to the trail
+     * @param isCleared Boolean value indicating whether to start a new trail
+     * @param isFadedOut Boolean value indicating whether to remove the remainder of the trail
+     */
+    private void updateTrail(boolean isCleared, boolean isFadedOut) {
+        this.stripRect.setEmpty();
+
+        if (isCleared) {
+            this.trailBitmap.eraseColor(Color.BLACK);
+            this.trailBounds.setEmpty();
+        }
+        else if (isFadedOut) {
+            this.trailCanvas.drawRect(this.trailBounds, this.clearPaint);
+            this.stripRect.set(this.trailBounds);
+            this.trailBounds.setEmpty();
+        }
+        else {
+            int stripHeight = (this.height + TRAIL_STRIPS - 1) / TRAIL_STRIPS;
+            this.stripRect.set(0, this.stripIndex * stripHeight, this.width, (this.stripIndex + 1) * stripHeight);
+            this.stripIndex = (this.stripIndex + 1) % TRAIL_STRIPS;
+
+            if (this.stripRect.intersect(this.trailBounds)) {
+                this.trailCanvas.drawRect(this.stripRect, this.decayPaint);
+            }
+            else {
+                this.stripRect.setEmpty();
+            }
+        }
+
+        this.trailCanvas.drawCircle(this.x, this.y, this.radius, this.paint);
+        this.trailBounds.union(this.circleRect);
+    }
+
+    /**
+     * (Re-)allocates the trail Bitmap for the current size if fading is enabled, otherwise frees it
+     */
+    private void allocateTrail() {
+        release();
+
+        if (this.isFadingEnabled && this.width > 0 && this.height > 0) {
+            this.trailBitmap = Bitmap.createBitmap(this.width, this.height, Bitmap.Config.ARGB_8888);
+            this.trailCanvas = new Canvas(this.trailBitmap);
+        }
+    }
+}
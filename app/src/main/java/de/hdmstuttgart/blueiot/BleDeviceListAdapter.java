@@ -9,16 +9,22 @@ import android.widget.BaseAdapter;
 import android.widget.TextView;
 
 import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Custom ListAdapter that is used to scan for BLE-Devices nearby
+ * The devices are provided by the BleDeviceRegistry in batches, which already removes duplicates, so adding devices doesn't require any lookup.
+ * The devices are ordered by their estimated proximity (blueIOT devices first), see updateOrder().
  */
 public class BleDeviceListAdapter extends BaseAdapter {
     //Internal Collection
-    private ArrayList<BluetoothDevice> bleDevices;
+    private ArrayList<ScannedDevice> bleDevices;
 
     private LayoutInflater inflater;
 
+    //Difference in dBm by which a device has to be stronger than the one before it to pass it, so devices with similar signals don't keep swapping places
+    private static final float RSSI_HYSTERESIS = 2;
+
     /**
      * Constructor
      * @param context ApplicationContext used to inflate layout components
@@ -30,21 +36,59 @@ public class BleDeviceListAdapter extends BaseAdapter {
     }
 
     /**
-     * Adds a device to the collection
-     * @param device The BluetoothDevice to be added
+     * Adds devices to the collection
+     * @param devices The devices to be added, each of them must not have been added before (see BleDeviceRegistry)
      */
-    public void addDevice(BluetoothDevice device) {
-        if (!this.bleDevices.contains(device)) {
-            this.bleDevices.add(device);
+    public void addDevices(List<ScannedDevice> devices) {
+        this.bleDevices.addAll(devices);
+    }
+
+    /**
+     * Restores the order by proximity after the signal strengths have changed.
+     * Since the list is still almost sorted after a batch of updates, insertion sort only moves the changed devices by a few places instead of sorting all of them.
+     */
+    public void updateOrder() {
+        for (int i = 1; i < this.bleDevices.size(); i++) {
+            ScannedDevice device = this.bleDevices.get(i);
+            int position = i;
+            while (position > 0 && isCloser(device, this.bleDevices.get(position - 1))) {
+                this.bleDevices.set(position, this.bleDevices.get(position - 1));
+                position--;
+            }
+            if (position != i) {
+                this.bleDevices.set(position, device);
+            }
         }
     }
 
+    /**
+     * @param device The device to compare
+     * @param other The device listed before
+     * @return Boolean value indicating whether the device has to be listed before the other one
+     */
+    private static boolean isCloser(ScannedDevice device, ScannedDevice other) {
+        if (device.isBlueIOT() != other.isBlueIOT()) {
+            return device.isBlueIOT();
+        }
+
+        return device.getSmoothedRssi() > other.getSmoothedRssi() + RSSI_HYSTERESIS;
+    }
+
     /**
      * Allows retrieving a device from the adapter
      * @param position The position in the adapter
      * @return The BluetoothDevice at the specified position
      */
     public BluetoothDevice getDevice(int position) {
+        return this.bleDevices.get(position).getDevice();
+    }
+
+    /**
+     * Allows retrieving a device along with the values of its latest advertisement from the adapter
+     * @param position The position in the adapter
+     * @return The ScannedDevice at the specified position
+     */
+    public ScannedDevice getScannedDevice(int position) {
         return this.bleDevices.get(position);
     }
 
@@ -72,6 +116,7 @@ public class BleDeviceListAdapter extends BaseAdapter {
 
     /**
      * Adapter method that is called for each item in the internal collection (i.e. this.bleDevices) in order to provide a View to add to the ListView
+     * Views that have scrolled out of the list are reused (along with the references to their UI-Components), only the texts are replaced.
      * @param position The position in the adapter
      * @param convertView The old view to reuse, if possible. Should check if this view is non-null.
      * @param parent The parent that the view will be attached to
@@ -79,24 +124,35 @@ public class BleDeviceListAdapter extends BaseAdapter {
      */
     @Override
     public View getView(int position, View convertView, ViewGroup parent) {
-        //Inflate custom layout resource
-        convertView = this.inflater.inflate(R.layout.listitem_device, null);
-
-        //Get References to UI-Components
-        TextView textView_Name = (TextView) convertView.findViewById(R.id.device_name);
-        TextView textView_Address = (TextView) convertView.findViewById(R.id.device_address);
-
-        //Customize TextViews
-        BluetoothDevice device = this.bleDevices.get(position);
-        String deviceName = device.getName();
-        if (deviceName != null && deviceName.length() > 0 ) {
-            textView_Name.setText(deviceName);
+        ViewHolder viewHolder;
+        if (convertView == null) {
+            //Inflate custom layout resource and get References to UI-Components
+            convertView = this.inflater.inflate(R.layout.listitem_device, parent, false);
+            viewHolder = new ViewHolder();
+            viewHolder.textView_Name = (TextView) convertView.findViewById(R.id.device_name);
+            viewHolder.textView_Address = (TextView) convertView.findViewById(R.id.device_address);
+            viewHolder.textView_Advertisement = (TextView) convertView.findViewById(R.id.device_advertisement);
+            convertView.setTag(viewHolder);
         }
         else {
-            textView_Name.setText("Unknown Device");
+            viewHolder = (ViewHolder) convertView.getTag();
         }
-        textView_Address.setText(device.getAddress());
+
+        //Customize TextViews
+        ScannedDevice device = this.bleDevices.get(position);
+        viewHolder.textView_Name.setText(device.getDisplayName());
+        viewHolder.textView_Address.setText(device.getDisplayDetails());
+        viewHolder.textView_Advertisement.setText(device.getDisplayAdvertisement());
 
         return convertView;
     }
-}
\ No newline at end of file
+
+    /**
+     * References to the UI-Components of a row
+     */
+    private static class ViewHolder {
+        private TextView textView_Name;
+        private TextView textView_Address;
+        private TextView textView_Advertisement;
+    }
+}
@@ -0,0 +1,252 @@
+package de.hdmstuttgart.blueiot;
+
+import android.bluetooth.BluetoothDevice;
+import android.os.Handler;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Collects the advertisements received while scanning and hands them over to the UI in batches.
+ * Advertisements are recorded on the thread of the scan callback: Each device is looked up by its address in a HashMap, repeated advertisements of a device
+ * only update its RSSI and last-seen time. The changes are published on the UI-Thread at most every PUBLISH_INTERVAL_MILLIS, containing the devices that
+ * have been found since the last update and the number of devices whose values have changed.
+ * The RSSI of each device is smoothed by a one-dimensional Kalman filter, which weighs each measurement against the estimate by their uncertainties.
+ * The uncertainty of the estimate grows with the time since the last advertisement, so the estimate follows a device that is moving.
+ * The payload of each advertisement is only parsed (see AdvertisementRecord) when its hash differs from the previous one of the device,
+ * so the repeated advertisements of a beacon don't cost more than hashing a few bytes.
+ */
+public class BleDeviceRegistry {
+    //Minimum time between two updates of the UI in milliseconds (i.e. at most 4 updates per second)
+    public static final long PUBLISH_INTERVAL_MILLIS = 250;
+
+    //RSSI of known devices that haven't been seen yet in dBm (lists them after the devices that have been seen)
+    private static final int UNKNOWN_RSSI = -127;
+
+    //Variance of a single RSSI measurement in dBm^2 (multipath fading, about 4 dBm standard deviation)
+    private static final float RSSI_MEASUREMENT_VARIANCE = 16;
+    //Growth of the variance of the estimate per second in dBm^2 (movement of the device or the phone)
+    private static final float RSSI_PROCESS_VARIANCE = 4;
+
+    /**
+     * Receives the batched changes on the UI-Thread
+     */
+    public interface Listener {
+        /**
+         * Called on the UI-Thread after advertisements have been received
+         * @param addedDevices The devices that have been found since the last update, in the order they were found
+         * @param updatedCount The number of already known devices whose values have changed
+         */
+        void onDevicesChanged(List<ScannedDevice> addedDevices, int updatedCount);
+    }
+
+    /**
+     * State of a device as recorded by the scan callback
+     */
+    private static class Record {
+        private BluetoothDevice device;
+        private int rssi;
+        private long lastSeen;
+
+        //Kalman filter state: smoothed RSSI and its variance
+        private float estimatedRssi;
+        private float estimateVariance;
+
+        private int advertisementCount;
+        private boolean isChanged;
+
+        //Parsed payload of the latest advertisement and its hash
+        private AdvertisementRecord advertisement;
+        private int payloadHash;
+
+        //Stored information if the device has been connected to before
+        private KnownDeviceStore.KnownDevice knownDevice;
+
+        //Created on the UI-Thread when the device is published for the first time
+        private ScannedDevice scannedDevice;
+    }
+
+    private final Handler handler;
+    private final Listener listener;
+
+    //All devices that have been found, indexed by address (guarded by this)
+    private final HashMap<String, Record> records = new HashMap<>();
+    //Devices that have changed since the last update (guarded by this)
+    private final ArrayList<Record> changedRecords = new ArrayList<>();
+
+    //Number of advertisements recorded and number of payloads parsed (guarded by this)
+    private long advertisementCount;
+    private long parsedCount;
+
+    //Update scheduled on the Handler (guarded by this)
+    private boolean isPublishScheduled;
+    private long lastPublishTime;
+
+    //Reused for each update, only used on the UI-Thread
+    private final ArrayList<ScannedDevice> addedDevices = new ArrayList<>();
+
+    /**
+     * Constructor
+     * @param handler Handler of the UI-Thread, used to publish the changes
+     * @param listener The Listener receiving the changes
+     */
+    public BleDeviceRegistry(Handler handler, Listener listener) {
+        this.handler = handler;
+        this.listener = listener;
+    }
+
+    /**
+     * Records an advertisement, may be called from any thread (i.e. the thread of the scan callback)
+     * @param device The BluetoothDevice that has sent the advertisement
+     * @param rssi Signal strength in dBm
+     * @param payload The advertisement (and scan response) as received, might be null
+     * @param timestamp Time of the advertisement in milliseconds (see SystemClock.elapsedRealtime())
+     */
+    public synchronized void onAdvertisement(BluetoothDevice device, int rssi, byte[] payload, long timestamp) {
+        String address = device.getAddress();
+        Record record = this.records.get(address);
+        if (record == null) {
+            record = new Record();
+            record.device = device;
+            this.records.put(address, record);
+        }
+
+        //Smooth the RSSI
+        if (record.advertisementCount == 0) {
+            record.estimatedRssi = rssi;
+            record.estimateVariance = RSSI_MEASUREMENT_VARIANCE;
+        }
+        else {
+            float seconds = Math.max(0, timestamp - record.lastSeen) / 1000f;
+            float variance = record.estimateVariance + RSSI_PROCESS_VARIANCE * seconds;
+            float gain = variance / (variance + RSSI_MEASUREMENT_VARIANCE);
+            record.estimatedRssi += gain * (rssi - record.estimatedRssi);
+            record.estimateVariance = (1 - gain) * variance;
+        }
+
+        //Parse the payload only if it has changed
+        int payloadHash = AdvertisementRecord.hash(payload);
+        if (record.advertisement == null || payloadHash != record.payloadHash) {
+            record.advertisement = AdvertisementRecord.parse(payload);
+            record.payloadHash = payloadHash;
+            this.parsedCount++;
+        }
+        this.advertisementCount++;
+
+        record.rssi = rssi;
+        record.lastSeen = Math.max(record.lastSeen, timestamp);
+        record.advertisementCount++;
+
+        if (!record.isChanged) {
+            record.isChanged = true;
+            this.changedRecords.add(record);
+        }
+
+        //Schedule an update, keeping the minimum time since the last one
+        if (!this.isPublishScheduled) {
+            this.isPublishScheduled = true;
+            long delay = Math.max(0, this.lastPublishTime + PUBLISH_INTERVAL_MILLIS - SystemClock.elapsedRealtime());
+            this.handler.postDelayed(this.publish, delay);
+        }
+    }
+
+    /**
+     * Adds devices that have been connected to before, so they are listed without having to be found by a scan first.
+     * Once an advertisement of such a device is received, it is updated like any other device.
+     * @param devices The devices to add, each along with its stored information
+     * @param knownDevices The stored information for each device
+     */
+    public synchronized void addKnownDevices(List<BluetoothDevice> devices, List<KnownDeviceStore.KnownDevice> knownDevices) {
+        for (int i = 0; i < devices.size(); i++) {
+            BluetoothDevice device = devices.get(i);
+            if (this.records.containsKey(device.getAddress())) {
+                continue;
+            }
+
+            Record record = new Record();
+            record.device = device;
+            record.knownDevice = knownDevices.get(i);
+            record.rssi = UNKNOWN_RSSI;
+            record.estimatedRssi = UNKNOWN_RSSI;
+            record.isChanged = true;
+            this.records.put(device.getAddress(), record);
+            this.changedRecords.add(record);
+        }
+    }
+
+    /**
+     * Publishes the pending changes right away (e.g. when the scan has been stopped), has to be called from the UI-Thread
+     */
+    public void flush() {
+        this.handler.removeCallbacks(this.publish);
+        this.publish.run();
+    }
+
+    /**
+     * Removes all devices and discards the pending changes, has to be called from the UI-Thread
+     */
+    public synchronized void clear() {
+        this.handler.removeCallbacks(this.publish);
+        this.isPublishScheduled = false;
+        this.records.clear();
+        this.changedRecords.clear();
+    }
+
+    /**
+     * @return The number of devices that have been found
+     */
+    public synchronized int size() {
+        return this.records.size();
+    }
+
+    /**
+     * @return The number of advertisements that have been recorded
+     */
+    public synchronized long getAdvertisementCount() {
+        return this.advertisementCount;
+    }
+
+    /**
+     * @return The number of payloads that have been parsed (the others have been taken from the cache)
+     */
+    public synchronized long getParsedCount() {
+        return this.parsedCount;
+    }
+
+    /**
+     * Runnable executed on the UI-Thread: copies the values of the changed devices into their ScannedDevice and notifies the Listener once
+     */
+    private Runnable publish = new Runnable() {
+        @Override
+        public void run() {
+            int updatedCount = 0;
+            addedDevices.clear();
+
+            synchronized (BleDeviceRegistry.this) {
+                isPublishScheduled = false;
+                lastPublishTime = SystemClock.elapsedRealtime();
+
+                for (int i = 0; i < changedRecords.size(); i++) {
+                    Record record = changedRecords.get(i);
+                    record.isChanged = false;
+
+                    if (record.scannedDevice == null) {
+                        record.scannedDevice = new ScannedDevice(record.device, record.knownDevice);
+                        addedDevices.add(record.scannedDevice);
+                    }
+                    else {
+                        updatedCount++;
+                    }
+                    record.scannedDevice.update(record.rssi, record.estimatedRssi, record.lastSeen, record.advertisementCount, record.advertisement);
+                }
+                changedRecords.clear();
+            }
+
+            if (addedDevices.size() > 0 || updatedCount > 0) {
+                listener.onDevicesChanged(addedDevices, updatedCount);
+            }
+        }
+    };
+}
@@ -1,6 +1,7 @@
 package de.hdmstuttgart.blueiot;
 
 import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
 import android.bluetooth.BluetoothGattService;
 import android.content.Context;
 import android.view.LayoutInflater;
@@ -9,7 +10,6 @@ import android.view.ViewGroup;
 import android.widget.BaseExpandableListAdapter;
 import android.widget.TextView;
 
-import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.UUID;
@@ -17,16 +17,22 @@ import java.util.UUID;
 /**
  * Custom ExpandableListAdapter that is used to inspect a remote BLE-Device.
  * Handles the services of the BLE-Device as the internal group and a list of BluetoothGattCharacteristics as the internal children of each view created.
+ * The services and characteristics are taken from an immutable GattTable that is built off the UI-Thread and swapped in as a whole (see setGattTable()).
+ * The descriptors of a service's characteristics are described once the group is expanded for the first time, views that have scrolled out of the list are reused.
+ * Values that have been read (see setValue()) are shown below the characteristic they belong to.
  */
 public class BleExpandableListAdapter extends BaseExpandableListAdapter {
     private Context context;
     private LayoutInflater inflater;
 
-    //Internal Collections:
-    //Group
-    private List<BluetoothGattService> gattServices;
-    //Children
-    private HashMap<BluetoothGattService, List<BluetoothGattCharacteristic>> characteristicCollection;
+    //Services and characteristics, replaced as a whole
+    private GattTable gattTable = GattTable.EMPTY;
+
+    //Display model: texts of the children of each group, null until the group has been expanded (indexed like the GattTable)
+    private String[][] childTexts = new String[0][];
+
+    //Decoded values that have been read, keyed by their BluetoothGattCharacteristic or BluetoothGattDescriptor
+    private HashMap<Object, String> values;
 
     /**
      * Constructor
@@ -37,18 +43,18 @@ public class BleExpandableListAdapter extends BaseExpandableListAdapter {
 
         this.context = context;
         this.inflater = (LayoutInflater) context.getSystemService(Context.LAYOUT_INFLATER_SERVICE);
-        this.gattServices = new ArrayList<>();
-        this.characteristicCollection = new HashMap<>();
+        this.values = new HashMap<>();
     }
 
     /**
-     * Adds a service to the collection
-     * @param service The BluetoothGattService to be added
+     * Replaces the services and characteristics shown and updates the list once
+     * @param gattTable The new GattTable
      */
-    public void addService(BluetoothGattService service) {
-        if (!this.gattServices.contains(service)) {
-            this.gattServices.add(service);
-        }
+    public void setGattTable(GattTable gattTable) {
+        this.gattTable = gattTable;
+        this.childTexts = new String[gattTable.getServices().size()][];
+        this.values.clear();
+        notifyDataSetChanged();
     }
 
     /**
@@ -57,18 +63,7 @@ public class BleExpandableListAdapter extends BaseExpandableListAdapter {
      * @return The BluetoothGattService at the specified position
      */
     public BluetoothGattService getService(int position) {
-        return this.gattServices.get(position);
-    }
-
-    /**
-     * Adds a collection of BluetoothGattCharacteristics to the Hashmap associating it with the service that was handed over
-     * @param service The parent service that the characteristics belong to
-     * @param characteristics A list of characteristics that belong to a BluetoothGattService
-     */
-    public void addCharacteristics(BluetoothGattService service, List<BluetoothGattCharacteristic> characteristics) {
-        if (!this.characteristicCollection.containsKey(service)) {
-            this.characteristicCollection.put(service, characteristics);
-        }
+        return this.gattTable.getServices().get(position).getGattService();
     }
 
     /**
@@ -78,11 +73,11 @@ public class BleExpandableListAdapter extends BaseExpandableListAdapter {
      * @return The BluetoothGattCharacteristic associated with the specified UUID or null, if none is found
      */
     public BluetoothGattCharacteristic getCharacteristic(BluetoothGattService service, UUID characteristicUUID) {
-        if (this.characteristicCollection.containsKey(service)) {
-            for (BluetoothGattCharacteristic characteristic : this.characteristicCollection.get(service)) {
-                if (characteristic.getUuid().equals(characteristicUUID)) {
-                    return characteristic;
-                }
+        GattTable.Service tableService = this.gattTable.getService(service.getUuid());
+        if (tableService != null) {
+            GattTable.Characteristic characteristic = tableService.getCharacteristic(characteristicUUID);
+            if (characteristic != null) {
+                return characteristic.getGattCharacteristic();
             }
         }
 
@@ -90,31 +85,101 @@ public class BleExpandableListAdapter extends BaseExpandableListAdapter {
     }
 
     /**
-     * Clears all of the internal collections
+     * Sets the value that has been read for a characteristic or descriptor, the text of its row is updated right away (notifyDataSetChanged() has to be called afterwards)
+     * @param characteristic The BluetoothGattCharacteristic the value belongs to (or the descriptor belongs to)
+     * @param descriptor The BluetoothGattDescriptor the value belongs to or null for the value of the characteristic itself
+     * @param value The decoded value
+     */
+    public void setValue(BluetoothGattCharacteristic characteristic, BluetoothGattDescriptor descriptor, String value) {
+        GattTable.Characteristic tableCharacteristic = this.gattTable.getCharacteristic(characteristic);
+        if (tableCharacteristic == null) {
+            return;
+        }
+
+        this.values.put(descriptor != null ? descriptor : characteristic, value);
+
+        //Groups that haven't been expanded yet get their texts once they are
+        String[] texts = this.childTexts[tableCharacteristic.getGroupPosition()];
+        if (texts != null) {
+            texts[tableCharacteristic.getChildPosition()] = createChildText(tableCharacteristic);
+        }
+    }
+
+    /**
+     * Clears all of the services and values
      */
     public void clear() {
-        this.gattServices.clear();
-        this.characteristicCollection.clear();
+        setGattTable(GattTable.EMPTY);
+    }
+
+    /**
+     * Creates the texts of the children once a group is expanded for the first time, including the descriptors
+     * @param groupPosition The position of the group in the adapter
+     */
+    @Override
+    public void onGroupExpanded(int groupPosition) {
+        super.onGroupExpanded(groupPosition);
+        loadChildTexts(groupPosition);
+    }
+
+    /**
+     * Creates the texts of the children of a group unless they exist already
+     * @param groupPosition The position of the group in the adapter
+     * @return The texts of the children
+     */
+    private String[] loadChildTexts(int groupPosition) {
+        String[] texts = this.childTexts[groupPosition];
+        if (texts == null) {
+            List<GattTable.Characteristic> characteristics = this.gattTable.getServices().get(groupPosition).getCharacteristics();
+            texts = new String[characteristics.size()];
+            for (int i = 0; i < texts.length; i++) {
+                texts[i] = createChildText(characteristics.get(i));
+            }
+            this.childTexts[groupPosition] = texts;
+        }
+        return texts;
+    }
+
+    /**
+     * Creates the text of a child row: the metadata of the characteristic and its descriptors, followed by the values that have been read
+     * @param characteristic The characteristic to describe
+     * @return The text of the row
+     */
+    private String createChildText(GattTable.Characteristic characteristic) {
+        StringBuilder builder = new StringBuilder(characteristic.getDescription());
+
+        String value = this.values.get(characteristic.getGattCharacteristic());
+        if (value != null) {
+            builder.append("\nValue: ").append(value);
+        }
+        for (BluetoothGattDescriptor descriptor : characteristic.getGattCharacteristic().getDescriptors()) {
+            builder.append("\n").append(GattTable.createDescriptorDescription(descriptor));
+            value = this.values.get(descriptor);
+            if (value != null) {
+                builder.append(": ").append(value);
+            }
+        }
+        return builder.toString();
     }
 
     @Override
     public int getGroupCount() {
-        return this.gattServices.size();
+        return this.gattTable.getServices().size();
     }
 
     @Override
     public int getChildrenCount(int groupPosition) {
-        return this.characteristicCollection.get(this.gattServices.get(groupPosition)).size();
+        return this.gattTable.getServices().get(groupPosition).getCharacteristics().size();
     }
 
     @Override
     public Object getGroup(int groupPosition) {
-        return this.gattServices.get(groupPosition);
+        return this.gattTable.getServices().get(groupPosition).getGattService();
     }
 
     @Override
     public Object getChild(int groupPosition, int childPosition) {
-        return this.characteristicCollection.get(this.gattServices.get(groupPosition)).get(childPosition);
+        return this.gattTable.getServices().get(groupPosition).getCharacteristics().get(childPosition).getGattCharacteristic();
     }
 
     @Override
@@ -133,7 +198,7 @@ public class BleExpandableListAdapter extends BaseExpandableListAdapter {
     }
 
     /**
-     * Adapter method that is called for each item in the internal collection that holds the group-elements (i.e. this.gattServices).
+     * Adapter method that is called for each item in the internal collection that holds the group-elements (i.e. the services of this.gattTable).
      * This method is called internally and is used to generate the View that is shown within the ExpandableListView for each of the item in the list.
      * @param groupPosition The position of the group in the adapter
      * @param isExpanded Boolean value indicating whether or not the element is expanded
@@ -143,42 +208,29 @@ public class BleExpandableListAdapter extends BaseExpandableListAdapter {
      */
     @Override
     public View getGroupView(int groupPosition, boolean isExpanded, View convertView, ViewGroup parent) {
-        //Get the Group-Element from the collection
-        BluetoothGattService service = (BluetoothGattService) getGroup(groupPosition);
-        String serviceDescription = "";
-        String serviceUUID = "";
-        if (service != null) {
-            //Set the Service-Type
-            if (service.getType() == 0) {
-                serviceDescription = "Primary Service";
-            }
-            else if (service.getType() == 1) {
-                serviceDescription = "Secondary Service";
-            }
-            else {
-                serviceDescription = "Unknown Service";
-            }
-
-            //Set the Service-UUID
-            serviceUUID = "UUID: " + service.getUuid().toString();
+        GroupViewHolder viewHolder;
+        if (convertView == null) {
+            //Inflate custom layout resource and get references to UI-Components
+            convertView = this.inflater.inflate(R.layout.list_group_item, parent, false);
+            viewHolder = new GroupViewHolder();
+            viewHolder.textView_serviceDescription = (TextView) convertView.findViewById(R.id.service_description);
+            viewHolder.textView_serviceUUID = (TextView) convertView.findViewById(R.id.service_uuid);
+            convertView.setTag(viewHolder);
+        }
+        else {
+            viewHolder = (GroupViewHolder) convertView.getTag();
         }
-
-        //Inflate custom layout resource
-        convertView = this.inflater.inflate(R.layout.list_group_item, null);
-
-        //Get references to UI-Components
-        TextView textView_serviceDescription = (TextView) convertView.findViewById(R.id.service_description);
-        TextView textView_serviceUUID = (TextView) convertView.findViewById(R.id.service_uuid);
 
         //Customize TextViews
-        textView_serviceDescription.setText(serviceDescription);
-        textView_serviceUUID.setText(serviceUUID);
+        GattTable.Service service = this.gattTable.getServices().get(groupPosition);
+        viewHolder.textView_serviceDescription.setText(service.getDescription());
+        viewHolder.textView_serviceUUID.setText(service.getUuidText());
 
         return convertView;
     }
 
     /**
-     * Adapter method that is called for each item in the internal collection that holds the children-elements (i.e. this.characteristicCollection).
+     * Adapter method that is called for each item in the internal collection that holds the children-elements (i.e. the characteristics of this.gattTable).
      * This method is called internally and is used to generate the View that is shown within the ExpandableListView for each of the item in the list.
      * @param groupPosition The position of the group in the adapter
      * @param childPosition The position of the child in the adapter
@@ -189,30 +241,31 @@ public class BleExpandableListAdapter extends BaseExpandableListAdapter {
      */
     @Override
     public View getChildView(int groupPosition, int childPosition, boolean isLastChild, View convertView, ViewGroup parent) {
-        //Get the Child-Element from the HashMap
-        BluetoothGattCharacteristic characteristic = (BluetoothGattCharacteristic) getChild(groupPosition, childPosition);
-        String characteristicUUID = "";
-        String characteristicPermissions = "";
-        String characteristicProperties = "";
-        String characteristicWriteType = "";
-        if (characteristic != null) {
-            //Set Characteristic values
-            characteristicUUID = characteristic.getUuid().toString();
-            characteristicPermissions = getCharacteristicPermissionDescription(characteristic);
-            characteristicProperties = getCharacteristicPropertyDescription(characteristic);
-            characteristicWriteType = getCharacteristicWriteTypeDescription(characteristic);
+        TextView textView_characteristicDescription;
+        if (convertView == null) {
+            //Inflate custom layout resource and get references to UI-Components
+            convertView = this.inflater.inflate(R.layout.list_child_item, parent, false);
+            textView_characteristicDescription = (TextView) convertView.findViewById(R.id.characteristic_description);
+            convertView.setTag(textView_characteristicDescription);
+        }
+        else {
+            textView_characteristicDescription = (TextView) convertView.getTag();
         }
 
-        //Inflate custom layout resource
-        convertView = this.inflater.inflate(R.layout.list_child_item, null);
-
-        //Get references to UI-Components & customize
-        TextView textView_characteristicDescription = (TextView) convertView.findViewById(R.id.characteristic_description);
-        textView_characteristicDescription.setText("Characteristic UUID: " + characteristicUUID + ", Permission: " + characteristicPermissions + ", Properties: " + characteristicProperties + ", WriteType: " + characteristicWriteType);
+        //Customize TextView
+        textView_characteristicDescription.setText(loadChildTexts(groupPosition)[childPosition]);
 
         return convertView;
     }
 
+    /**
+     * References to the UI-Components of a group
+     */
+    private static class GroupViewHolder {
+        private TextView textView_serviceDescription;
+        private TextView textView_serviceUUID;
+    }
+
     /**
      * (Dis-)Allow selecting child elements
      * @param groupPosition The position of the group in the adapter
@@ -223,78 +276,4 @@ public class BleExpandableListAdapter extends BaseExpandableListAdapter {
     public boolean isChildSelectable(int groupPosition, int childPosition) {
         return true;
     }
-
-    /**
-     * Converts the integer value that indicates the permissions of a BluetoothGattCharacteristic into a readable String
-     * @param characteristic The BluetoothGattCharacteristic to inspect
-     * @return String-form of the permissions
-     */
-    private String getCharacteristicPermissionDescription(BluetoothGattCharacteristic characteristic) {
-        switch (characteristic.getPermissions()) {
-            case 1:
-                return this.context.getString(R.string.BluetoothGattCharacteristic_PERMISSION_READ_Description);
-            case 2:
-                return this.context.getString(R.string.BluetoothGattCharacteristic_PERMISSION_READ_ENCRYPTED_Description);
-            case 4:
-                return this.context.getString(R.string.BluetoothGattCharacteristic_PERMISSION_READ_ENCRYPTED_MITM_Description);
-            case 16:
-                return this.context.getString(R.string.BluetoothGattCharacteristic_PERMISSION_WRITE_Description);
-            case 32:
-                return this.context.getString(R.string.BluetoothGattCharacteristic_PERMISSION_WRITE_ENCRYPTED_Description);
-            case 64:
-                return this.context.getString(R.string.BluetoothGattCharacteristic_PERMISSION_WRITE_ENCRYPTED_MITM_Description);
-            case 128:
-                return this.context.getString(R.string.BluetoothGattCharacteristic_PERMISSION_WRITE_SIGNED_Description);
-            case 256:
-                return this.context.getString(R.string.BluetoothGattCharacteristic_PERMISSION_WRITE_SIGNED_MITM_Description);
-            default:
-                return String.valueOf(characteristic.getPermissions());
-        }
-    }
-
-    /**
-     * Converts the integer value that indicates the properties of a BluetoothGattCharacteristic into a readable String
-     * @param characteristic The BluetoothGattCharacteristic to inspect
-     * @return String-form of the properties
-     */
-    private String getCharacteristicPropertyDescription(BluetoothGattCharacteristic characteristic) {
-        switch (characteristic.getProperties()) {
-            case 1:
-                return this.context.getString(R.string.BluetoothGattCharacteristic_PROPERTY_BROADCAST_Description);
-            case 2:
-                return this.context.getString(R.string.BluetoothGattCharacteristic_PROPERTY_READ_Description);
-            case 4:
-                return this.context.getString(R.string.BluetoothGattCharacteristic_PROPERTY_WRITE_NO_RESPONSE_Description);
-            case 8:
-                return this.context.getString(R.string.BluetoothGattCharacteristic_PROPERTY_WRITE_Description);
-            case 16:
-                return this.context.getString(R.string.BluetoothGattCharacteristic_PROPERTY_NOTIFY_Description);
-            case 32:
-                return this.context.getString(R.string.BluetoothGattCharacteristic_PROPERTY_INDICATE_Description);
-            case 64:
-                return this.context.getString(R.string.BluetoothGattCharacteristic_PROPERTY_SIGNED_WRITE_Description);
-            case 128:
-                return this.context.getString(R.string.BluetoothGattCharacteristic_PROPERTY_EXTENDED_PROPS_Description);
-            default:
-                return String.valueOf(characteristic.getProperties());
-        }
-    }
-
-    /**
-     * Converts the integer value that indicates the WriteType of a BluetoothGattCharacteristic into a readable String
-     * @param characteristic The BluetoothGattCharacteristic to inspect
-     * @return String-form of the WriteType
-     */
-    private String getCharacteristicWriteTypeDescription(BluetoothGattCharacteristic characteristic) {
-        switch (characteristic.getWriteType()) {
-            case 1:
-                return this.context.getString(R.string.BluetoothGattCharacteristic_WRITE_TYPE_NO_RESPONSE_Description);
-            case 2:
-                return this.context.getString(R.string.BluetoothGattCharacteristic_WRITE_TYPE_DEFAULT_Description);
-            case 4:
-                return this.context.getString(R.string.BluetoothGattCharacteristic_WRITE_TYPE_SIGNED_Description);
-            default:
-                return String.valueOf(characteristic.getWriteType());
-        }
-    }
 }
\ No newline at end of file
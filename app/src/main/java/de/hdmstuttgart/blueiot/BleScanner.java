@@ -0,0 +1,271 @@
+package de.hdmstuttgart.blueiot;
+
+import android.annotation.TargetApi;
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.le.BluetoothLeScanner;
+import android.bluetooth.le.ScanCallback;
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
+import android.os.Build;
+import android.os.ParcelUuid;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Scans for BLE-Devices and records every advertisement in a BleDeviceRegistry.
+ * On API 21 and above, the BluetoothLeScanner is used: Filtering for blueIOT is done by the Bluetooth-Controller (if supported) and results are delivered
+ * in batches every REPORT_DELAY_MILLIS when the controller supports batching, so the app isn't woken up for every single advertisement.
+ * With the BluetoothLeScanner, blueIOT is recognized by its primary service UUID or its address. The name isn't used as a filter, because a ScanFilter only matches
+ * the complete name while BlueIOTHelper.isBlueIOT() accepts any name containing BLUEIOT_DEVICE_NAME.
+ * On API 19 and 20, the deprecated BluetoothAdapter.startLeScan() is used instead, filtering is done in the callback (see BlueIOTHelper.isBlueIOT()).
+ * If the BluetoothLeScanner fails to start a scan (see ScanCallback.onScanFailed()), the scan falls back to BluetoothAdapter.startLeScan() as well.
+ * All methods have to be called from the UI-Thread.
+ */
+public class BleScanner {
+    //Scan modes, see ScanSettings.SCAN_MODE-constants (only used on API 21 and above)
+    public static final int SCAN_MODE_LOW_POWER = 0;
+    public static final int SCAN_MODE_BALANCED = 1;
+    public static final int SCAN_MODE_LOW_LATENCY = 2;
+
+    //Delay of batched results in milliseconds
+    public static final long REPORT_DELAY_MILLIS = 1000;
+
+    private final BluetoothAdapter bluetoothAdapter;
+    private final BleDeviceRegistry deviceRegistry;
+
+    private boolean isFilterEnabled;
+    private int scanMode = SCAN_MODE_BALANCED;
+    private boolean isScanning;
+
+    //Scan path for API 21 and above, null on older devices
+    private LeScannerPath leScannerPath;
+    //Indicates whether the running (or last) scan uses the BluetoothLeScanner
+    private boolean isLeScannerActive;
+
+    //Number of scans the BluetoothLeScanner failed to start and the error code of the last failure (see ScanCallback.SCAN_FAILED-constants), 0 if none
+    private int scanFailureCount;
+    private int lastScanErrorCode;
+
+    /**
+     * Constructor
+     * @param bluetoothAdapter BluetoothAdapter of the device
+     * @param deviceRegistry The registry to record the advertisements in
+     */
+    public BleScanner(BluetoothAdapter bluetoothAdapter, BleDeviceRegistry deviceRegistry) {
+        this.bluetoothAdapter = bluetoothAdapter;
+        this.deviceRegistry = deviceRegistry;
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            this.leScannerPath = new LeScannerPath();
+        }
+    }
+
+    /**
+     * Starts scanning with the current filter and scan mode
+     */
+    public void start() {
+        if (this.isScanning) {
+            return;
+        }
+
+        if (this.leScannerPath != null && this.leScannerPath.start()) {
+            this.isLeScannerActive = true;
+            this.isScanning = true;
+        }
+        else {
+            //Fallback for API 19 and 20 (or if the BluetoothLeScanner isn't available)
+            this.isLeScannerActive = false;
+            this.isScanning = this.bluetoothAdapter.startLeScan(this.leScanCallback);
+        }
+    }
+
+    /**
+     * Stops scanning, results that are still batched by the controller are delivered before
+     */
+    public void stop() {
+        if (!this.isScanning) {
+            return;
+        }
+
+        if (this.isLeScannerActive) {
+            this.leScannerPath.stop();
+        }
+        else {
+            this.bluetoothAdapter.stopLeScan(this.leScanCallback);
+        }
+        this.isScanning = false;
+    }
+
+    /**
+     * @return Boolean value indicating whether a scan is running
+     */
+    public boolean isScanning() {
+        return this.isScanning;
+    }
+
+    /**
+     * Enables/Disables showing blueIOT devices only, takes effect with the next scan
+     * @param isFilterEnabled Boolean value indicating whether to filter for blueIOT
+     */
+    public void setFilterEnabled(boolean isFilterEnabled) {
+        this.isFilterEnabled = isFilterEnabled;
+    }
+
+    public boolean isFilterEnabled() {
+        return this.isFilterEnabled;
+    }
+
+    /**
+     * Sets the scan mode, takes effect with the next scan
+     * @param scanMode One of the SCAN_MODE-constants
+     */
+    public void setScanMode(int scanMode) {
+        this.scanMode = scanMode;
+    }
+
+    public int getScanMode() {
+        return this.scanMode;
+    }
+
+    /**
+     * @return Boolean value indicating whether the BluetoothLeScanner is used (API 21 and above)
+     */
+    public boolean isUsingLeScanner() {
+        return this.isLeScannerActive;
+    }
+
+    /**
+     * @return The number of scans the BluetoothLeScanner failed to start
+     */
+    public int getScanFailureCount() {
+        return this.scanFailureCount;
+    }
+
+    /**
+     * @return The error code of the last failed scan (see ScanCallback.SCAN_FAILED-constants), 0 if no scan has failed
+     */
+    public int getLastScanErrorCode() {
+        return this.lastScanErrorCode;
+    }
+
+    /**
+     * Called on the UI-Thread if the BluetoothLeScanner couldn't start the scan, continues scanning with BluetoothAdapter.startLeScan()
+     * @param errorCode The reason of the failure (see ScanCallback.SCAN_FAILED-constants)
+     */
+    private void onScanFailed(int errorCode) {
+        this.scanFailureCount++;
+        this.lastScanErrorCode = errorCode;
+
+        this.isLeScannerActive = false;
+        if (this.isScanning) {
+            this.isScanning = this.bluetoothAdapter.startLeScan(this.leScanCallback);
+        }
+    }
+
+    /**
+     * @return Boolean value indicating whether results are delivered in batches
+     */
+    public boolean isBatching() {
+        return this.isLeScannerActive && this.leScannerPath.isBatching;
+    }
+
+    /**
+     * Device Scan Callback for API 19 and 20 (and the fallback if the BluetoothLeScanner fails), recording detected BluetoothDevices in the registry (on the thread of the callback)
+     */
+    private BluetoothAdapter.LeScanCallback leScanCallback = new BluetoothAdapter.LeScanCallback() {
+        @Override
+        public void onLeScan(BluetoothDevice device, int rssi, byte[] scanRecord) {
+            if (!isFilterEnabled || BlueIOTHelper.isBlueIOT(device)) {
+                deviceRegistry.onAdvertisement(device, rssi, scanRecord, SystemClock.elapsedRealtime());
+            }
+        }
+    };
+
+    /**
+     * Scan path using the BluetoothLeScanner, kept in a class of its own so it is never loaded on API 19 and 20
+     */
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private class LeScannerPath {
+        private BluetoothLeScanner scanner;
+        private boolean isBatching;
+
+        /**
+         * Starts the scan with filters and settings according to the current configuration
+         * @return Boolean value indicating whether the scan has been started
+         */
+        private boolean start() {
+            this.scanner = bluetoothAdapter.getBluetoothLeScanner();
+            if (this.scanner == null) {
+                return false;
+            }
+
+            //Filters are combined with OR: the blueIOT service or address
+            List<ScanFilter> filters = null;
+            if (isFilterEnabled) {
+                filters = new ArrayList<>();
+                filters.add(new ScanFilter.Builder().setServiceUuid(ParcelUuid.fromString(BlueIOTHelper.BLUEIOT_PRIMARY_SERVICE_UUID)).build());
+                filters.add(new ScanFilter.Builder().setDeviceAddress(BlueIOTHelper.BLUEIOT_DEVICE_ADDRESS).build());
+            }
+
+            //Batch the results unless the lowest latency has been requested
+            ScanSettings.Builder settings = new ScanSettings.Builder().setScanMode(scanMode);
+            this.isBatching = scanMode != SCAN_MODE_LOW_LATENCY && bluetoothAdapter.isOffloadedScanBatchingSupported();
+            if (this.isBatching) {
+                settings.setReportDelay(REPORT_DELAY_MILLIS);
+            }
+
+            this.scanner.startScan(filters, settings.build(), this.scanCallback);
+            return true;
+        }
+
+        /**
+         * Delivers the batched results and stops the scan
+         */
+        private void stop() {
+            if (this.scanner != null && bluetoothAdapter.isEnabled()) {
+                if (this.isBatching) {
+                    this.scanner.flushPendingScanResults(this.scanCallback);
+                }
+                this.scanner.stopScan(this.scanCallback);
+            }
+            this.scanner = null;
+        }
+
+        /**
+         * ScanCallback recording the results in the registry, using the time the advertisement was received by the controller
+         */
+        private ScanCallback scanCallback = new ScanCallback() {
+            @Override
+            public void onScanResult(int callbackType, ScanResult result) {
+                record(result);
+            }
+
+            @Override
+            public void onBatchScanResults(List<ScanResult> results) {
+                for (int i = 0; i < results.size(); i++) {
+                    record(results.get(i));
+                }
+            }
+
+            @Override
+            public void onScanFailed(int errorCode) {
+                //The scan that is already running with this callback keeps running
+                if (errorCode == SCAN_FAILED_ALREADY_STARTED) {
+                    return;
+                }
+
+                scanner = null;
+                BleScanner.this.onScanFailed(errorCode);
+            }
+
+            private void record(ScanResult result) {
+                byte[] payload = result.getScanRecord() != null ? result.getScanRecord().getBytes() : null;
+                deviceRegistry.onAdvertisement(result.getDevice(), result.getRssi(), payload, result.getTimestampNanos() / 1000000);
+            }
+        };
+    }
+}
@@ -1,9 +1,20 @@
 package de.hdmstuttgart.blueiot;
 
+import android.bluetooth.BluetoothDevice;
+
 public class BlueIOTHelper {
     public static final String BLUEIOT_DEVICE_NAME = "iBeacon";
     public static final String BLUEIOT_DEVICE_ADDRESS = "00:07:80:7F:A6:E0";
     public static final String BLUEIOT_PRIMARY_SERVICE_UUID = "06CCE3A0-AF8C-11E3-A5E2-0800200C9A66";
     public static final String BLUEIOT_CHARACTERISTIC_NOTIFICATION_UUID = "06CCE3A2-AF8C-11E3-A5E2-0800200C9A66";
+    public static final String BLUEIOT_CHARACTERISTIC_WRITE_UUID = "06CCE3A3-AF8C-11E3-A5E2-0800200C9A66";
     public static final String BLUEIOT_DESCRIPTOR_NOTIFICATION_UUID = "00002902-0000-1000-8000-00805f9b34fb";
+
+    /**
+     * @param device The BluetoothDevice to check
+     * @return Boolean value indicating whether the device is a blueIOT (by name or address)
+     */
+    public static boolean isBlueIOT(BluetoothDevice device) {
+        return (device.getName() != null && device.getName().contains(BLUEIOT_DEVICE_NAME)) || BLUEIOT_DEVICE_ADDRESS.equals(device.getAddress());
+    }
 }
@@ -2,54 +2,125 @@ package de.hdmstuttgart.blueiot;
 
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothGatt;
-import android.bluetooth.BluetoothGattCallback;
 import android.bluetooth.BluetoothGattCharacteristic;
-import android.bluetooth.BluetoothGattDescriptor;
 import android.bluetooth.BluetoothGattService;
-import android.bluetooth.BluetoothProfile;
 import android.graphics.Color;
 import android.os.Bundle;
 import android.support.v7.app.ActionBarActivity;
+import android.view.Choreographer;
 import android.view.Menu;
 import android.view.MenuItem;
+import android.view.View;
+import android.widget.Toast;
 
 import com.jjoe64.graphview.GraphView;
 import com.jjoe64.graphview.LegendRenderer;
-import com.jjoe64.graphview.series.DataPoint;
-import com.jjoe64.graphview.series.LineGraphSeries;
+import com.jjoe64.graphview.Viewport;
 
 import java.util.ArrayList;
-import java.util.Iterator;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Activity used for displaying the sensor-values in a line chart.
  * The graph will display acceleration values for the X, Y and Z axis as well as the relative height.
  * The different colours are explained in the legend that can be found in the top right of the GraphView.
  * The continuous drawing can be interrupted by using the buttons in the ActionBar: This allows stopping and resuming the drawing of new sensor values.
+ * All values of the session are kept in a SampleHistory, older values can be seen by scrolling the graph back.
+ * For high sample rates, the GraphView can be replaced by the lightweight StreamChartView (see 'Switch Chart' in the ActionBar).
+ * Further devices can be passed in the Intent ("overlayDevices"): they are streamed at the same time by a MultiDeviceStreamManager
+ * and one axis of each of them (see 'Overlay Axis') is overlaid onto the GraphView, sharing the time axis with the main device.
  */
 public class DetailActivity extends ActionBarActivity {
     private BluetoothDevice device;
-    private BluetoothGatt bluetoothGatt;
+
+    //Shared connection to blueIOT, delivering the decoded sensor-values
+    private SensorStreamEngine streamEngine;
+
+    //Brings up the connections to the main device and the overlaid devices one after the other
+    private MultiDeviceStreamManager streamManager;
+
+    //Devices whose values are overlaid onto the GraphView, along with their buffers and series
+    private List<OverlayStream> overlayStreams = new ArrayList<>();
+    private int overlayColumn = SampleHistory.COLUMN_X;
+
+    //Timestamp all histories are relative to while overlaying, -1 until the first sample of any device
+    private long sessionStartTime = -1;
+
+    //Colors of the overlaid series
+    private static final int[] OVERLAY_COLORS = { Color.MAGENTA, Color.CYAN, Color.DKGRAY, Color.YELLOW };
+    private static final String[] COLUMN_TITLES = { "X-Axis", "Y-Axis", "Z-Axis", "Height" };
 
     private boolean isConnected;
 
-    //X-Axis-Value used to put new values into the graph
-    private int x_Axis_Value = 0;
+    //Sensor-Values that have been decoded on the Binder-Thread but not yet been put into the graph
+    private SampleRingBuffer pendingSamples = new SampleRingBuffer(1024);
+    private AtomicBoolean isDrainScheduled = new AtomicBoolean();
+
+    //Choreographer of the UI-Thread, used to put new values into the graph once per display frame
+    private Choreographer choreographer;
+
+    //All sensor-values of the session, read by the series (X-Axis-Value: seconds since the first sample)
+    private SampleHistory history = new SampleHistory();
+
+    //Initial width of the visible window in seconds, older values can be seen by scrolling back or zooming out
+    private static final double VISIBLE_WINDOW_SECONDS = 10;
+
+    private GraphView graphView;
+
+    //Alternative chart for high sample rates, drawn by its own thread (see action_switchChart)
+    private StreamChartView streamChartView;
+    private boolean isStreamChartEnabled;
+
+    //Indicates whether the connection times have been shown since connecting
+    private boolean isFirstSampleShown;
 
     //Series used for displaying an individual value from the blueIOT-Sensors
-    private List<LineGraphSeries<DataPoint>> seriesCollection = new ArrayList<>();
-    private LineGraphSeries<DataPoint> series_X;
-    private LineGraphSeries<DataPoint> series_Y;
-    private LineGraphSeries<DataPoint> series_Z;
-    private LineGraphSeries<DataPoint> series_Height;
+    private List<HistorySeries> seriesCollection = new ArrayList<>();
+    private HistorySeries series_X;
+    private HistorySeries series_Y;
+    private HistorySeries series_Z;
+    private HistorySeries series_Height;
+
+    /**
+     * A device whose values are overlaid: it has its own ring buffer (filled on its Binder-Thread) and its own history (filled on the UI-Thread)
+     */
+    private class OverlayStream {
+        private BluetoothDevice device;
+        private SampleRingBuffer pendingSamples = new SampleRingBuffer(1024);
+        private SampleHistory history = new SampleHistory();
+        private HistorySeries series;
+
+        //Receives the samples of the device on its Binder-Thread
+        private SampleListener receiver = new SampleListener() {
+            @Override
+            public void onSample(long timestamp, float x, float y, float z, float height) {
+                pendingSamples.offer(timestamp, x, y, z, height);
+                if (isDrainScheduled.compareAndSet(false, true)) {
+                    choreographer.postFrameCallback(drainPendingSamples);
+                }
+            }
+        };
+
+        //Puts the drained samples into the history on the UI-Thread
+        private SampleListener appender = new SampleListener() {
+            @Override
+            public void onSample(long timestamp, float x, float y, float z, float height) {
+                alignStartTime(history, timestamp);
+                history.append(timestamp, x, y, z, height);
+            }
+        };
+    }
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_detail);
 
+        //Must be retrieved on the UI-Thread
+        this.choreographer = Choreographer.getInstance();
+
         //Setup Series
         initializeSeries();
 
@@ -59,6 +130,17 @@ public class DetailActivity extends ActionBarActivity {
         //Initialize BluetoothDevice
         this.device = this.getIntent().getParcelableExtra("device");
 
+        //Setup the overlaid devices, if any
+        List<BluetoothDevice> overlayDevices = this.getIntent().getParcelableArrayListExtra("overlayDevices");
+        if (overlayDevices != null) {
+            for (BluetoothDevice overlayDevice : overlayDevices) {
+                OverlayStream overlayStream = new OverlayStream();
+                overlayStream.device = overlayDevice;
+                this.overlayStreams.add(overlayStream);
+            }
+            initializeOverlaySeries();
+        }
+
         //Initiate connection process
         if (this.device != null && !this.isConnected) {
             connectToBlueIOT();
@@ -70,6 +152,9 @@ public class DetailActivity extends ActionBarActivity {
         // Inflate the menu; this adds items to the action bar if it is present.
         getMenuInflater().inflate(R.menu.menu_detail, menu);
 
+        //Only needed if there are devices to overlay
+        menu.findItem(R.id.action_overlayAxis).setVisible(!this.overlayStreams.isEmpty());
+
         return true;
     }
 
@@ -80,7 +165,7 @@ public class DetailActivity extends ActionBarActivity {
             case R.id.action_startStopDrawing:
                 if (this.isConnected) {
                     //Disconnect and show 'Play'-Icon
-                    if (this.device != null && this.bluetoothGatt != null) {
+                    if (this.device != null) {
                         disconnectFromBlueIOT();
                         item.setTitle(R.string.action_detailActivity_startDrawing);
                         item.setIcon(R.drawable.ic_action_play_over_video);
@@ -88,7 +173,7 @@ public class DetailActivity extends ActionBarActivity {
                 }
                 else {
                     //Connect and show 'Pause'-Icon
-                    if (this.device != null && this.bluetoothGatt != null) {
+                    if (this.device != null) {
                         connectToBlueIOT();
                         item.setTitle(R.string.action_detailActivity_stopDrawing);
                         item.setIcon(R.drawable.ic_action_pause_over_video);
@@ -99,6 +184,41 @@ public class DetailActivity extends ActionBarActivity {
             case R.id.action_clearData:
                 clearGraphViewData();
                 return true;
+            case R.id.action_switchChart:
+                switchChart();
+                return true;
+            case R.id.action_showLinkStatistics:
+                //Show MTU, connection interval and samples per second
+                if (this.streamEngine != null) {
+                    Toast.makeText(this, this.streamEngine.getLinkSummary(), Toast.LENGTH_LONG).show();
+                }
+                return true;
+            case R.id.action_overlayAxis:
+                //Overlay the next axis of the devices
+                this.overlayColumn = (this.overlayColumn + 1) % SampleHistory.COLUMN_COUNT;
+                updateOverlaySeries();
+                this.graphView.onDataChanged(false, false);
+                return true;
+            case R.id.action_showStreamStatistics:
+                //Show the throughput of each device and of all devices together
+                if (this.streamManager != null) {
+                    Toast.makeText(this, this.streamManager.getSummary(), Toast.LENGTH_LONG).show();
+                }
+                return true;
+            case R.id.action_readValue:
+                //Read the current sensor-values once
+                readOnce();
+                return true;
+            case R.id.action_writeValue:
+                //Write a value to blueIOT
+                writeToBlueIOT();
+                return true;
+            case R.id.action_showGattStatistics:
+                //Show the depth of the queue and the latency of the GATT operations
+                if (this.streamEngine != null) {
+                    Toast.makeText(this, this.streamEngine.getOperationQueue().getSummary(), Toast.LENGTH_LONG).show();
+                }
+                return true;
             default:
                 return super.onOptionsItemSelected(item);
         }
@@ -108,10 +228,8 @@ public class DetailActivity extends ActionBarActivity {
     protected void onPause() {
         super.onPause();
 
-        if (this.bluetoothGatt != null && this.isConnected) {
-            try {
-                disconnectFromBlueIOT();
-            } catch (Exception ex) {}
+        if (this.isConnected) {
+            disconnectFromBlueIOT();
         }
     }
 
@@ -119,252 +237,213 @@ public class DetailActivity extends ActionBarActivity {
     protected void onStop() {
         super.onStop();
 
-        if (this.bluetoothGatt != null && this.isConnected) {
-            try {
-                disconnectFromBlueIOT();
-            } catch (Exception ex) {}
+        if (this.isConnected) {
+            disconnectFromBlueIOT();
         }
     }
 
     /**
-     * BluetoothGattCallback that is used to connect to a remote BLE-Device.
-     * Defines callback-methods that are used for each step in the process of connecting/reading/writing for that device.
+     * SampleListener receiving the values decoded from each notification (called on the Binder-Thread).
+     * Writes the new sensor-values into the ring buffer, they are put into the graph by drainPendingSamples with the next display frame.
      */
-    private BluetoothGattCallback gattCallback = new BluetoothGattCallback() {
+    private SampleListener sampleListener = new SampleListener() {
         @Override
-        public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
-            //super.onConnectionStateChange(gatt, status, newState);
+        public void onSample(long timestamp, float x, float y, float z, float height) {
+            pendingSamples.offer(timestamp, x, y, z, height);
 
-            if (newState == BluetoothProfile.STATE_CONNECTED) {
-                //Start discovering all Services on the BLE-Remote-Device (i.e. blueIOT)
-                gatt.discoverServices();
-            }
-        }
+            //The StreamChartView only takes the sample while it is visible
+            streamChartView.onSample(timestamp, x, y, z, height);
 
-        @Override
-        public void onServicesDiscovered(BluetoothGatt gatt, int status) {
-            //super.onServicesDiscovered(gatt, status);
-
-            //Find the correct Service on blueIOT
-            BluetoothGattService gattService = gatt.getService(UUID.fromString(BlueIOTHelper.BLUEIOT_PRIMARY_SERVICE_UUID));
-            if (gattService != null) {
-                //Find the correct Characteristic where we can set a notification for ourselves
-                BluetoothGattCharacteristic characteristic = gattService.getCharacteristic(UUID.fromString(BlueIOTHelper.BLUEIOT_CHARACTERISTIC_NOTIFICATION_UUID));
-                if (characteristic != null) {
-                    //Enable local notifications (i.e. Android-Application)
-                    gatt.setCharacteristicNotification(characteristic, true);
-
-                    //Enable remote notifications on the BLE-Server (i.e. blueIOT)
-                    BluetoothGattDescriptor descriptor = characteristic.getDescriptor(UUID.fromString(BlueIOTHelper.BLUEIOT_DESCRIPTOR_NOTIFICATION_UUID));
-                    if (descriptor != null) {
-                        descriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
-                        gatt.writeDescriptor(descriptor);
-
-                        /*
-                         *   After both types of notifications have been set, the BLE-Remote-Device will continuously push new values
-                         *   into the Android-App. These push notifications will be dealt with inside regular calls to onCharacteristicChanged()
-                         */
-                    }
-                }
+            //Update UI with all of the new Sensor-Values at once: only request a frame if there's no update pending already
+            if (isDrainScheduled.compareAndSet(false, true)) {
+                choreographer.postFrameCallback(drainPendingSamples);
             }
         }
+    };
 
+    /**
+     * FrameCallback that puts all of the pending sensor-values into the graph, executed on the UI-Thread once per display frame (vsync).
+     * No matter how many samples arrive, the graph is updated at most with the refresh rate of the display.
+     */
+    private Choreographer.FrameCallback drainPendingSamples = new Choreographer.FrameCallback() {
         @Override
-        public void onCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
-            super.onCharacteristicRead(gatt, characteristic, status);
-        }
+        public void doFrame(long frameTimeNanos) {
+            //Reset the flag first: samples written while draining will request another frame
+            isDrainScheduled.set(false);
 
-        @Override
-        public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
-            super.onCharacteristicWrite(gatt, characteristic, status);
-        }
+            if (!isFirstSampleShown) {
+                showConnectionTimes();
+            }
 
-        @Override
-        public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
-            //super.onCharacteristicChanged(gatt, characteristic);
-
-            //Read the String value from the Characteristic with Offset = 0
-            String value = characteristic.getStringValue(0);
-            try {
-                /*
-                 *    The Value will be one String, containing X,Y and Z from the Accelerometer and the Altitude from the Barometer
-                 *    All Values will be separated by a comma (",") in the above mentioned order
-                 */
-
-                String[] values = value.split(",");
-                if (values.length == 4) {
-                    //Parse values
-                    final float x = Float.parseFloat(values[0].trim());
-                    final float y = Float.parseFloat(values[1].trim());
-                    final float z = Float.parseFloat(values[2].trim());
-                    final float height = Float.parseFloat(values[3].trim());
-
-                    //Update UI with new Sensor-Values
-                    runOnUiThread(new Runnable() {
-                        @Override
-                        public void run() {
-                            series_X.appendData(new DataPoint(x_Axis_Value, x), false, 50);
-                            series_Y.appendData(new DataPoint(x_Axis_Value, y), false, 50);
-                            series_Z.appendData(new DataPoint(x_Axis_Value, z), false, 50);
-                            series_Height.appendData(new DataPoint(x_Axis_Value, height), false, 50);
-                            x_Axis_Value = x_Axis_Value + 1;
-                        }
-                    });
-                }
+            double previousEnd = series_X.getHighestValueX();
+            int drainedCount = pendingSamples.drain(appendToHistory, pendingSamples.getCapacity());
+            for (OverlayStream overlayStream : overlayStreams) {
+                drainedCount += overlayStream.pendingSamples.drain(overlayStream.appender, overlayStream.pendingSamples.getCapacity());
+            }
+            if (drainedCount > 0 && !isStreamChartEnabled) {
+                updateGraphView(previousEnd);
             }
-            catch (Exception ex) {}
         }
+    };
 
-        @Override
-        public void onDescriptorRead(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
-            super.onDescriptorRead(gatt, descriptor, status);
+    /**
+     * Shows the time it took until the first sample has been received in the ActionBar (since connecting and since the launch of the app)
+     * along with the average time of all connections
+     */
+    private void showConnectionTimes() {
+        if (this.streamEngine == null || this.streamEngine.getTimeToFirstSample() < 0) {
+            return;
         }
 
-        @Override
-        public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
-            super.onDescriptorWrite(gatt, descriptor, status);
+        String subtitle = "First sample after " + this.streamEngine.getTimeToFirstSample() + " ms";
+        long launchToFirstSample = StartupMetrics.getLaunchToFirstSampleMillis();
+        if (launchToFirstSample >= 0) {
+            subtitle += " (" + launchToFirstSample + " ms since launch)";
         }
 
-        @Override
-        public void onReliableWriteCompleted(BluetoothGatt gatt, int status) {
-            super.onReliableWriteCompleted(gatt, status);
+        long average = StartupMetrics.getAverageTimeToFirstSample();
+        if (average >= 0) {
+            subtitle += ", avg. " + average + " ms";
         }
 
-        @Override
-        public void onReadRemoteRssi(BluetoothGatt gatt, int rssi, int status) {
-            super.onReadRemoteRssi(gatt, rssi, status);
+        if (this.getSupportActionBar() != null) {
+            this.getSupportActionBar().setSubtitle(subtitle);
         }
+        this.isFirstSampleShown = true;
+    }
 
-        /*
-        * Requires higher API-Level ...
+    /**
+     * SampleListener putting the drained sensor-values into the history, called on the UI-Thread
+     */
+    private SampleListener appendToHistory = new SampleListener() {
         @Override
-        public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
-            super.onMtuChanged(gatt, mtu, status);
+        public void onSample(long timestamp, float x, float y, float z, float height) {
+            if (!overlayStreams.isEmpty()) {
+                alignStartTime(history, timestamp);
+            }
+            history.append(timestamp, x, y, z, height);
         }
-        */
     };
 
-    /*
-    //BluetoothGattCallback that can be used to read a single value from blueIOT once
-    public void readOnce(View view) {
-        if (this.device != null) {
-            BluetoothGattCallback cb = new BluetoothGattCallback() {
-                @Override
-                public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
-                    //super.onConnectionStateChange(gatt, status, newState);
-
-                    if (newState == BluetoothProfile.STATE_CONNECTED) {
-                        boolean success = gatt.discoverServices();
-                    }
-                }
-
+    /**
+     * Reads a single value from blueIOT once, using the connection of the SensorStreamEngine
+     */
+    private void readOnce() {
+        BluetoothGattCharacteristic characteristic = getBlueIOTCharacteristic(BlueIOTHelper.BLUEIOT_CHARACTERISTIC_NOTIFICATION_UUID);
+        if (characteristic == null) {
+            Toast.makeText(this, "Not connected to blueIOT yet.", Toast.LENGTH_SHORT).show();
+        }
+        else {
+            this.streamEngine.getOperationQueue().readCharacteristic(characteristic, new GattOperationQueue.Callback() {
                 @Override
-                public void onServicesDiscovered(BluetoothGatt gatt, int status) {
-                    //super.onServicesDiscovered(gatt, status);
-
-                    BluetoothGattService gattService = gatt.getService(UUID.fromString("06CCE3A0-AF8C-11E3-A5E2-0800200C9A66"));
-                    if (gattService != null) {
-                        BluetoothGattCharacteristic characteristic = gattService.getCharacteristic(UUID.fromString("06CCE3A2-AF8C-11E3-A5E2-0800200C9A66"));
-                        if (characteristic != null) {
-                            gatt.readCharacteristic(characteristic);
+                public void onComplete(GattOperationQueue.Operation operation, final int status) {
+                    final String value = operation.getCharacteristic().getStringValue(0);
+                    runOnUiThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            Toast.makeText(DetailActivity.this, status == BluetoothGatt.GATT_SUCCESS ? "Value: " + value : "Unable to read the value (" + status + ")", Toast.LENGTH_SHORT).show();
                         }
-                    }
-                }
-
-                @Override
-                public void onCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
-                    //super.onCharacteristicRead(gatt, characteristic, status);
-
-                    String value = characteristic.getStringValue(0);
+                    });
                 }
-            };
-
-            this.device.connectGatt(this, false, cb);
+            });
         }
     }
-    */
-
-    /*
-    //BluetoothGattCallback that can be used to write a value to blueIOT
-    public void writeToBlueIOT(View view) {
-        if (this.device != null) {
-            BluetoothGattCallback cb = new BluetoothGattCallback() {
-                @Override
-                public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
-                    //super.onConnectionStateChange(gatt, status, newState);
-
-                    if (newState == BluetoothProfile.STATE_CONNECTED) {
-                        boolean success = gatt.discoverServices();
-                    }
-                }
 
+    /**
+     * Writes a value to blueIOT, using the connection of the SensorStreamEngine
+     */
+    private void writeToBlueIOT() {
+        BluetoothGattCharacteristic characteristic = getBlueIOTCharacteristic(BlueIOTHelper.BLUEIOT_CHARACTERISTIC_WRITE_UUID);
+        if (characteristic == null) {
+            Toast.makeText(this, "Not connected to blueIOT yet.", Toast.LENGTH_SHORT).show();
+        }
+        else {
+            this.streamEngine.getOperationQueue().writeCharacteristic(characteristic, new byte[] { 17 }, BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE, new GattOperationQueue.Callback() {
                 @Override
-                public void onServicesDiscovered(BluetoothGatt gatt, int status) {
-                    //super.onServicesDiscovered(gatt, status);
-
-                    BluetoothGattService gattService = gatt.getService(UUID.fromString("06CCE3A0-AF8C-11E3-A5E2-0800200C9A66"));
-                    if (gattService != null) {
-                        BluetoothGattCharacteristic characteristic = gattService.getCharacteristic(UUID.fromString("06CCE3A3-AF8C-11E3-A5E2-0800200C9A66"));
-                        if (characteristic != null) {
-                            characteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
-                            characteristic.setValue(17, BluetoothGattCharacteristic.FORMAT_UINT8, 0);
-                            gatt.writeCharacteristic(characteristic);
+                public void onComplete(GattOperationQueue.Operation operation, final int status) {
+                    runOnUiThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            Toast.makeText(DetailActivity.this, status == BluetoothGatt.GATT_SUCCESS ? "Value written" : "Unable to write the value (" + status + ")", Toast.LENGTH_SHORT).show();
                         }
-                    }
-                }
-
-                @Override
-                public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
-                    //super.onCharacteristicWrite(gatt, characteristic, status);
-
-                    //Do something, once the value is written
+                    });
                 }
-            };
+            });
+        }
+    }
 
-            this.device.connectGatt(this, false, cb);
+    /**
+     * Finds a Characteristic of the primary service of blueIOT on the current connection
+     * @param uuid The UUID of the Characteristic
+     * @return The Characteristic or null if not connected or the services haven't been discovered yet
+     */
+    private BluetoothGattCharacteristic getBlueIOTCharacteristic(String uuid) {
+        if (this.streamEngine == null || this.streamEngine.getBluetoothGatt() == null) {
+            return null;
         }
+
+        BluetoothGattService gattService = this.streamEngine.getBluetoothGatt().getService(UUID.fromString(BlueIOTHelper.BLUEIOT_PRIMARY_SERVICE_UUID));
+        return gattService != null ? gattService.getCharacteristic(UUID.fromString(uuid)) : null;
     }
-    */
 
     /**
-     * Connects to the blueIOT with the predefined BluetoothGattCallback
+     * Connects to the blueIOT (and the overlaid devices) by using the MultiDeviceStreamManager and starts receiving the sensor-values.
+     * The main device is connected right away, the chart is in the foreground while connected.
      */
     private void connectToBlueIOT() {
         if (!this.isConnected) {
-            this.bluetoothGatt = this.device.connectGatt(this, false, this.gattCallback);
+            this.streamManager = new MultiDeviceStreamManager(this);
+            this.streamManager.addDevice(this.device, this.sampleListener);
+            for (OverlayStream overlayStream : this.overlayStreams) {
+                this.streamManager.addDevice(overlayStream.device, overlayStream.receiver);
+            }
+            this.streamManager.start();
+
+            this.streamEngine = this.streamManager.getEngine(this.device);
+            this.isFirstSampleShown = false;
             this.isConnected = true;
         }
     }
 
     /**
-     * Disconnects from blueIOT
+     * Stops receiving sensor-values and releases the connection to blueIOT
      */
     private void disconnectFromBlueIOT() {
-        if (this.isConnected && this.bluetoothGatt != null) {
-            this.bluetoothGatt.disconnect();
+        if (this.isConnected && this.streamManager != null) {
+            this.streamManager.stop();
+            this.streamManager = null;
+            this.streamEngine = null;
             this.isConnected = false;
+
+            //Values that are still pending will not be drawn anymore
+            this.choreographer.removeFrameCallback(this.drainPendingSamples);
+            this.isDrainScheduled.set(false);
+            this.pendingSamples.clear();
+            for (OverlayStream overlayStream : this.overlayStreams) {
+                overlayStream.pendingSamples.clear();
+            }
         }
     }
 
     /**
      * Initializes all of the series.
-     * Sets the title and the color of each series and instantiates them as LineGraphSeries-Objects
+     * Sets the title and the color of each series and instantiates them as HistorySeries-Objects, reading from the history
      */
     private void initializeSeries() {
         //Series configuration
-        this.series_X = new LineGraphSeries<>();
+        this.series_X = new HistorySeries(this.history, SampleHistory.COLUMN_X);
         this.series_X.setTitle("X-Axis");
         this.series_X.setColor(Color.BLACK);
 
-        this.series_Y = new LineGraphSeries<>();
+        this.series_Y = new HistorySeries(this.history, SampleHistory.COLUMN_Y);
         this.series_Y.setTitle("Y-Axis");
         this.series_Y.setColor(Color.BLUE);
 
-        this.series_Z = new LineGraphSeries<>();
+        this.series_Z = new HistorySeries(this.history, SampleHistory.COLUMN_Z);
         this.series_Z.setTitle("Z-Axis");
         this.series_Z.setColor(Color.RED);
 
-        this.series_Height = new LineGraphSeries<>();
+        this.series_Height = new HistorySeries(this.history, SampleHistory.COLUMN_HEIGHT);
         this.series_Height.setTitle("Height");
         this.series_Height.setColor(Color.GREEN);
 
@@ -372,6 +451,50 @@ public class DetailActivity extends ActionBarActivity {
         this.seriesCollection.add(this.series_Y);
         this.seriesCollection.add(this.series_Z);
         this.seriesCollection.add(this.series_Height);
+
+        //Use the same titles and colors for the StreamChartView
+        this.streamChartView = (StreamChartView) this.findViewById(R.id.streamChart);
+        for (HistorySeries series : this.seriesCollection) {
+            this.streamChartView.addSeries(series.getTitle(), series.getColor(), series.getColumn());
+        }
+    }
+
+    /**
+     * Creates the series of the overlaid devices and attaches them to the GraphView
+     */
+    private void initializeOverlaySeries() {
+        for (int i = 0; i < this.overlayStreams.size(); i++) {
+            OverlayStream overlayStream = this.overlayStreams.get(i);
+            overlayStream.series = new HistorySeries(overlayStream.history, this.overlayColumn);
+            overlayStream.series.setColor(OVERLAY_COLORS[i % OVERLAY_COLORS.length]);
+            this.graphView.addSeries(overlayStream.series);
+        }
+        updateOverlaySeries();
+    }
+
+    /**
+     * Lets the series of the overlaid devices display the current overlay column
+     */
+    private void updateOverlaySeries() {
+        for (OverlayStream overlayStream : this.overlayStreams) {
+            String name = overlayStream.device.getName() != null ? overlayStream.device.getName() : overlayStream.device.getAddress();
+            overlayStream.series.setColumn(this.overlayColumn);
+            overlayStream.series.setTitle(name + " " + COLUMN_TITLES[this.overlayColumn]);
+        }
+    }
+
+    /**
+     * Lets a history that is still empty start at the same time as the others, so the values of all devices share the time axis
+     * @param history The history a sample is about to be appended to
+     * @param timestamp The timestamp of the sample
+     */
+    private void alignStartTime(SampleHistory history, long timestamp) {
+        if (this.sessionStartTime < 0) {
+            this.sessionStartTime = timestamp;
+        }
+        if (history.isEmpty()) {
+            history.setStartTime(this.sessionStartTime);
+        }
     }
 
     /**
@@ -380,41 +503,77 @@ public class DetailActivity extends ActionBarActivity {
      */
     private void initializeGraphView() {
         //Setup GraphView
-        GraphView graphView = (GraphView) this.findViewById(R.id.graph);
+        this.graphView = (GraphView) this.findViewById(R.id.graph);
 
         //Add Series
-        graphView.addSeries(this.series_X);
-        graphView.addSeries(this.series_Y);
-        graphView.addSeries(this.series_Z);
-        graphView.addSeries(this.series_Height);
+        for (HistorySeries series : this.seriesCollection) {
+            this.graphView.addSeries(series);
+        }
+
+        //Show a window of the history that can be scrolled back and zoomed
+        Viewport viewport = this.graphView.getViewport();
+        viewport.setXAxisBoundsManual(true);
+        viewport.setMinX(0);
+        viewport.setMaxX(VISIBLE_WINDOW_SECONDS);
+        viewport.setScrollable(true);
+        viewport.setScalable(true);
 
         //Display Legend
-        graphView.getLegendRenderer().setVisible(true);
-        graphView.getLegendRenderer().setTextSize(20);
-        graphView.getLegendRenderer().setAlign(LegendRenderer.LegendAlign.TOP);
+        this.graphView.getLegendRenderer().setVisible(true);
+        this.graphView.getLegendRenderer().setTextSize(20);
+        this.graphView.getLegendRenderer().setAlign(LegendRenderer.LegendAlign.TOP);
+    }
+
+    /**
+     * Updates the GraphView after new values have been added to the history.
+     * The visible window keeps following the newest values, unless the user has scrolled back in time.
+     * @param previousEnd The X-Value of the newest point before the new values have been added
+     */
+    private void updateGraphView(double previousEnd) {
+        Viewport viewport = this.graphView.getViewport();
+        if (viewport.getMaxX(false) >= previousEnd) {
+            //Keep the (possibly zoomed) width of the window
+            double windowWidth = viewport.getMaxX(false) - viewport.getMinX(false);
+            double minX = Math.max(0, this.series_X.getHighestValueX() - windowWidth);
+            viewport.setMinX(minX);
+            viewport.setMaxX(minX + windowWidth);
+        }
+
+        //Redraw once for all of the new values
+        this.graphView.onDataChanged(true, true);
+    }
+
+    /**
+     * Switches between the GraphView and the StreamChartView.
+     * The history is filled in both cases, so the GraphView shows all values when switching back.
+     */
+    private void switchChart() {
+        this.isStreamChartEnabled = !this.isStreamChartEnabled;
+        if (this.isStreamChartEnabled) {
+            this.graphView.setVisibility(View.GONE);
+            this.streamChartView.setVisibility(View.VISIBLE);
+        }
+        else {
+            this.streamChartView.setVisibility(View.GONE);
+            this.graphView.setVisibility(View.VISIBLE);
+            updateGraphView(this.series_X.getHighestValueX());
+        }
     }
 
     /**
      * Clears the GraphView data.
-     * Retrieves the last point that was previously added for each series and starts anew with that Y-value from x = 0
+     * Removes all values from the history, the next value will start anew from x = 0
      */
     private void clearGraphViewData() {
-        //Reset the values for each of the series shown in the GraphView (--> Start from x = 0 again)
-        for (LineGraphSeries<DataPoint> series : this.seriesCollection) {
-            Iterator<DataPoint> iterator = series.getValues(this.x_Axis_Value - 1, this.x_Axis_Value);
-            DataPoint dataPoint = null;
-            while (iterator.hasNext()) {
-                dataPoint = iterator.next();
-            }
-
-            if (dataPoint != null) {
-                series.resetData(new DataPoint[] { new DataPoint(0, dataPoint.getY()) });
-            }
-            else {
-                series.resetData(new DataPoint[] { new DataPoint(0, 0) });
-            }
+        this.history.clear();
+        for (OverlayStream overlayStream : this.overlayStreams) {
+            overlayStream.history.clear();
         }
+        this.sessionStartTime = -1;
 
-        this.x_Axis_Value = 1;
+        Viewport viewport = this.graphView.getViewport();
+        viewport.setMinX(0);
+        viewport.setMaxX(VISIBLE_WINDOW_SECONDS);
+        this.graphView.onDataChanged(false, true);
     }
-}
\ No newline at end of file
+}
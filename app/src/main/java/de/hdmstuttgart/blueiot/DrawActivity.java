@@ -5,6 +5,7 @@ import android.support.v7.app.ActionBarActivity;
 import android.os.Bundle;
 import android.view.Menu;
 import android.view.MenuItem;
+import android.widget.Toast;
 
 /**
  * Activity with the only UI-Component being a custom SurfaceView that can be drawn onto.
@@ -48,6 +49,20 @@ public class DrawActivity extends ActionBarActivity {
             case R.id.action_setFadingEnabled:
                 //Enable/Disable the fading-effect
                 this.accelerationSurfaceView.getThread().setFadingEnabled();
+                return true;
+            case R.id.action_showFrameStatistics:
+                //Show frame time and CPU usage of the Drawing-Thread along with the resolution of the surface
+                if (this.accelerationSurfaceView.getThread() != null) {
+                    String resolution = this.accelerationSurfaceView.getWidth() + "x" + this.accelerationSurfaceView.getHeight();
+                    Toast.makeText(this, resolution + "\n" + this.accelerationSurfaceView.getThread().getFrameStatistics().getSummary(), Toast.LENGTH_LONG).show();
+                }
+                return true;
+            case R.id.action_showLinkStatistics:
+                //Show MTU, connection interval and samples per second
+                if (this.accelerationSurfaceView.getThread() != null && this.accelerationSurfaceView.getThread().getStreamEngine() != null) {
+                    Toast.makeText(this, this.accelerationSurfaceView.getThread().getStreamEngine().getLinkSummary(), Toast.LENGTH_LONG).show();
+                }
+                return true;
             default:
                 return super.onOptionsItemSelected(item);
         }
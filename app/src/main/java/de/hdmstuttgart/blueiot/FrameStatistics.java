@@ -0,0 +1,144 @@
+package de.hdmstuttgart.blueiot;
+
+import android.os.Debug;
+import android.os.SystemClock;
+
+import java.util.Locale;
+
+/**
+ * Measures the cost of a render loop: the time spent per drawn frame, the number of frames that were skipped because nothing had changed
+ * and the CPU time used by the rendering thread in relation to the elapsed time.
+ * The results are compared against a frame-time and a CPU budget. Optionally, the number of pixels drawn per frame is recorded as well,
+ * which allows comparing the frame time of different rendering modes and display resolutions.
+ * Frames are recorded by the rendering thread, the summary can be read from any thread.
+ */
+public class FrameStatistics {
+    private final long frameTimeBudgetNanos;
+    private final float cpuBudget;
+
+    private volatile long drawnFrameCount;
+    private volatile long skippedFrameCount;
+    private volatile long totalFrameNanos;
+    private volatile long maxFrameNanos;
+    private volatile long totalFramePixels;
+
+    //CPU time of the rendering thread and elapsed time since start() in nanoseconds
+    private volatile long startCpuNanos;
+    private volatile long startElapsedNanos;
+    private volatile long cpuNanos;
+    private volatile long elapsedNanos;
+
+    /**
+     * Constructor
+     * @param frameTimeBudgetMillis Time in milliseconds a single frame may take
+     * @param cpuBudget Share of a single core the rendering thread may use (e.g. 0.1 for 10 %)
+     */
+    public FrameStatistics(float frameTimeBudgetMillis, float cpuBudget) {
+        this.frameTimeBudgetNanos = (long) (frameTimeBudgetMillis * 1000000);
+        this.cpuBudget = cpuBudget;
+    }
+
+    /**
+     * Resets the statistics, has to be called from the rendering thread
+     */
+    public void start() {
+        this.drawnFrameCount = 0;
+        this.skippedFrameCount = 0;
+        this.totalFrameNanos = 0;
+        this.maxFrameNanos = 0;
+        this.totalFramePixels = 0;
+        this.startCpuNanos = Debug.threadCpuTimeNanos();
+        this.startElapsedNanos = SystemClock.elapsedRealtimeNanos();
+        this.cpuNanos = 0;
+        this.elapsedNanos = 0;
+    }
+
+    /**
+     * Records a frame that has been drawn, has to be called from the rendering thread
+     * @param frameNanos Time in nanoseconds that was spent on the frame
+     */
+    public void recordFrame(long frameNanos) {
+        this.drawnFrameCount++;
+        this.totalFrameNanos += frameNanos;
+        if (frameNanos > this.maxFrameNanos) {
+            this.maxFrameNanos = frameNanos;
+        }
+        updateTimes();
+    }
+
+    /**
+     * Records a frame that has been drawn, has to be called from the rendering thread
+     * @param frameNanos Time in nanoseconds that was spent on the frame
+     * @param pixels Number of pixels that have been drawn (i.e. the size of the dirty area)
+     */
+    public void recordFrame(long frameNanos, long pixels) {
+        this.totalFramePixels += pixels;
+        recordFrame(frameNanos);
+    }
+
+    /**
+     * Records a frame that has not been drawn because nothing had changed, has to be called from the rendering thread
+     */
+    public void recordSkippedFrame() {
+        this.skippedFrameCount++;
+        updateTimes();
+    }
+
+    /**
+     * @return Average time in milliseconds spent per drawn frame
+     */
+    public float getAverageFrameMillis() {
+        long frames = this.drawnFrameCount;
+        return frames > 0 ? this.totalFrameNanos / (frames * 1000000f) : 0;
+    }
+
+    /**
+     * @return Average number of pixels drawn per frame, 0 if not recorded
+     */
+    public long getAverageFramePixels() {
+        long frames = this.drawnFrameCount;
+        return frames > 0 ? this.totalFramePixels / frames : 0;
+    }
+
+    /**
+     * @return Longest time in milliseconds spent on a single frame
+     */
+    public float getMaxFrameMillis() {
+        return this.maxFrameNanos / 1000000f;
+    }
+
+    /**
+     * @return Share of a single core that has been used by the rendering thread (e.g. 0.05 for 5 %)
+     */
+    public float getCpuUsage() {
+        long elapsed = this.elapsedNanos;
+        return elapsed > 0 ? (float) this.cpuNanos / elapsed : 0;
+    }
+
+    /**
+     * @return Boolean value indicating whether the average frame time and the CPU usage are within their budgets
+     */
+    public boolean isWithinBudget() {
+        return getAverageFrameMillis() * 1000000 <= this.frameTimeBudgetNanos && getCpuUsage() <= this.cpuBudget;
+    }
+
+    /**
+     * @return A readable summary of the statistics
+     */
+    public String getSummary() {
+        return String.format(Locale.US, "Frames drawn: %d, skipped: %d\nFrame time: avg %.2f ms, max %.2f ms (budget %.1f ms)\nPixels per frame: avg %d\nCPU: %.1f %% (budget %.1f %%)\n%s",
+                this.drawnFrameCount, this.skippedFrameCount,
+                getAverageFrameMillis(), getMaxFrameMillis(), this.frameTimeBudgetNanos / 1000000f,
+                getAverageFramePixels(),
+                getCpuUsage() * 100, this.cpuBudget * 100,
+                isWithinBudget() ? "Within budget" : "Over budget");
+    }
+
+    /**
+     * Updates the CPU time of the rendering thread and the elapsed time
+     */
+    private void updateTimes() {
+        this.cpuNanos = Debug.threadCpuTimeNanos() - this.startCpuNanos;
+        this.elapsedNanos = SystemClock.elapsedRealtimeNanos() - this.startElapsedNanos;
+    }
+}
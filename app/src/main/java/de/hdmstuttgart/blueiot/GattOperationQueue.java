@@ -0,0 +1,432 @@
+package de.hdmstuttgart.blueiot;
+
+import android.annotation.TargetApi;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Serializes the GATT operations of a single connection: Android only allows one outstanding operation per BluetoothGatt, any further call fails silently.
+ * Operations are queued and the next one is issued right from the completion callback of the previous one, so bursts of reads and writes run back-to-back.
+ * The BluetoothGattCallback of the connection has to forward its completion callbacks (onCharacteristicRead(), onCharacteristicWrite(), onDescriptorRead(),
+ * onDescriptorWrite() and onMtuChanged()) to the queue. An operation that doesn't complete within OPERATION_TIMEOUT_MILLIS fails with STATUS_TIMEOUT.
+ * The depth of the queue and the latency of the operations are available as metrics (see getSummary()).
+ * Operations may be enqueued from any thread, the Callbacks are called on the Binder-Thread of the BluetoothGattCallback (or the UI-Thread for timeouts).
+ */
+public class GattOperationQueue {
+    //Time an operation may take until it is considered lost in milliseconds
+    public static final long OPERATION_TIMEOUT_MILLIS = 3000;
+
+    //Status codes in addition to the ones of BluetoothGatt
+    public static final int STATUS_TIMEOUT = -1;
+    public static final int STATUS_NOT_ISSUED = -2;
+    public static final int STATUS_CANCELLED = -3;
+
+    //Types of operations
+    public static final int TYPE_READ_CHARACTERISTIC = 0;
+    public static final int TYPE_WRITE_CHARACTERISTIC = 1;
+    public static final int TYPE_READ_DESCRIPTOR = 2;
+    public static final int TYPE_WRITE_DESCRIPTOR = 3;
+    public static final int TYPE_REQUEST_MTU = 4;
+    public static final int TYPE_REQUEST_CONNECTION_PRIORITY = 5;
+
+    /**
+     * Callback receiving the result of an operation
+     */
+    public interface Callback {
+        /**
+         * Called once the operation has completed, failed or timed out
+         * @param operation The operation, read values can be taken from its characteristic or descriptor
+         * @param status BluetoothGatt.GATT_SUCCESS or an error code (see STATUS_TIMEOUT, STATUS_NOT_ISSUED, STATUS_CANCELLED)
+         */
+        void onComplete(Operation operation, int status);
+    }
+
+    /**
+     * A single queued GATT operation
+     */
+    public static class Operation {
+        private final int type;
+        private final BluetoothGattCharacteristic characteristic;
+        private final BluetoothGattDescriptor descriptor;
+        private final byte[] value;
+        private final int argument;
+        private final Callback callback;
+
+        //Times in milliseconds (see SystemClock.elapsedRealtime())
+        private long enqueueTime;
+        private long issueTime;
+
+        //Set (under the lock of the queue) by the first completion, any further completion (e.g. a timeout racing the callback) is ignored
+        private boolean isCompleted;
+
+        private Operation(int type, BluetoothGattCharacteristic characteristic, BluetoothGattDescriptor descriptor, byte[] value, int argument, Callback callback) {
+            this.type = type;
+            this.characteristic = characteristic;
+            this.descriptor = descriptor;
+            this.value = value;
+            this.argument = argument;
+            this.callback = callback;
+        }
+
+        public int getType() {
+            return this.type;
+        }
+
+        /**
+         * @return The characteristic of a characteristic operation, null otherwise
+         */
+        public BluetoothGattCharacteristic getCharacteristic() {
+            return this.characteristic;
+        }
+
+        /**
+         * @return The descriptor of a descriptor operation, null otherwise
+         */
+        public BluetoothGattDescriptor getDescriptor() {
+            return this.descriptor;
+        }
+
+        /**
+         * @return The requested MTU or connection priority
+         */
+        public int getArgument() {
+            return this.argument;
+        }
+
+        /**
+         * @return Time in milliseconds from enqueueing the operation until it has been issued
+         */
+        public long getWaitingMillis() {
+            return this.issueTime - this.enqueueTime;
+        }
+    }
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+
+    //The connection the operations are issued on, null while not connected
+    private BluetoothGatt bluetoothGatt;
+
+    private final ArrayDeque<Operation> pendingOperations = new ArrayDeque<>();
+    //The operation that has been issued and not completed yet
+    private Operation currentOperation;
+
+    //Metrics
+    private long completedCount;
+    private long failedCount;
+    private long timeoutCount;
+    private long totalLatencyMillis;
+    private long totalServiceMillis;
+    private long maxLatencyMillis;
+    private int maxDepth;
+
+    /**
+     * Sets the connection the operations are issued on
+     * @param bluetoothGatt The BluetoothGatt or null if it has been closed (pending operations are cancelled)
+     */
+    public void setGatt(BluetoothGatt bluetoothGatt) {
+        synchronized (this) {
+            this.bluetoothGatt = bluetoothGatt;
+        }
+        if (bluetoothGatt == null) {
+            clear();
+        }
+    }
+
+    public void readCharacteristic(BluetoothGattCharacteristic characteristic, Callback callback) {
+        enqueue(new Operation(TYPE_READ_CHARACTERISTIC, characteristic, null, null, 0, callback));
+    }
+
+    /**
+     * Queues writing a characteristic, the value is set on the characteristic right before the operation is issued
+     * @param characteristic The characteristic to write
+     * @param value The value to write
+     * @param writeType BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT or WRITE_TYPE_NO_RESPONSE
+     * @param callback Callback receiving the result, might be null
+     */
+    public void writeCharacteristic(BluetoothGattCharacteristic characteristic, byte[] value, int writeType, Callback callback) {
+        enqueue(new Operation(TYPE_WRITE_CHARACTERISTIC, characteristic, null, value, writeType, callback));
+    }
+
+    public void readDescriptor(BluetoothGattDescriptor descriptor, Callback callback) {
+        enqueue(new Operation(TYPE_READ_DESCRIPTOR, null, descriptor, null, 0, callback));
+    }
+
+    /**
+     * Queues writing a descriptor, the value is set on the descriptor right before the operation is issued
+     * @param descriptor The descriptor to write
+     * @param value The value to write
+     * @param callback Callback receiving the result, might be null
+     */
+    public void writeDescriptor(BluetoothGattDescriptor descriptor, byte[] value, Callback callback) {
+        enqueue(new Operation(TYPE_WRITE_DESCRIPTOR, null, descriptor, value, 0, callback));
+    }
+
+    /**
+     * Queues an MTU request, which fails with STATUS_NOT_ISSUED below API 21
+     * @param mtu The requested MTU in bytes
+     * @param callback Callback receiving the result, might be null (the achieved MTU is passed to onMtuChanged())
+     */
+    public void requestMtu(int mtu, Callback callback) {
+        enqueue(new Operation(TYPE_REQUEST_MTU, null, null, null, mtu, callback));
+    }
+
+    /**
+     * Queues a connection priority request, which fails with STATUS_NOT_ISSUED below API 21.
+     * There is no callback for this request, it completes as soon as it has been issued.
+     * @param priority BluetoothGatt.CONNECTION_PRIORITY_BALANCED, CONNECTION_PRIORITY_HIGH or CONNECTION_PRIORITY_LOW_POWER
+     * @param callback Callback receiving the result, might be null
+     */
+    public void requestConnectionPriority(int priority, Callback callback) {
+        enqueue(new Operation(TYPE_REQUEST_CONNECTION_PRIORITY, null, null, null, priority, callback));
+    }
+
+    //Completion callbacks, to be forwarded from the BluetoothGattCallback
+
+    public void onCharacteristicRead(BluetoothGattCharacteristic characteristic, int status) {
+        complete(TYPE_READ_CHARACTERISTIC, characteristic, status);
+    }
+
+    public void onCharacteristicWrite(BluetoothGattCharacteristic characteristic, int status) {
+        complete(TYPE_WRITE_CHARACTERISTIC, characteristic, status);
+    }
+
+    public void onDescriptorRead(BluetoothGattDescriptor descriptor, int status) {
+        complete(TYPE_READ_DESCRIPTOR, descriptor, status);
+    }
+
+    public void onDescriptorWrite(BluetoothGattDescriptor descriptor, int status) {
+        complete(TYPE_WRITE_DESCRIPTOR, descriptor, status);
+    }
+
+    public void onMtuChanged(int status) {
+        complete(TYPE_REQUEST_MTU, null, status);
+    }
+
+    /**
+     * Cancels the pending operations (e.g. after the connection has been lost), their Callbacks receive STATUS_CANCELLED.
+     * An operation whose Callback is running already (e.g. when called from within a Callback) isn't cancelled again.
+     */
+    public void clear() {
+        List<Operation> cancelledOperations;
+        synchronized (this) {
+            cancelledOperations = new ArrayList<>(this.pendingOperations);
+            if (this.currentOperation != null && !this.currentOperation.isCompleted) {
+                cancelledOperations.add(0, this.currentOperation);
+                this.handler.removeCallbacks(this.timeout);
+                this.currentOperation = null;
+            }
+            this.pendingOperations.clear();
+
+            for (Operation operation : cancelledOperations) {
+                operation.isCompleted = true;
+            }
+        }
+
+        for (Operation operation : cancelledOperations) {
+            if (operation.callback != null) {
+                operation.callback.onComplete(operation, STATUS_CANCELLED);
+            }
+        }
+    }
+
+    /**
+     * @return The number of operations that are waiting or in progress
+     */
+    public synchronized int getDepth() {
+        return this.pendingOperations.size() + (this.currentOperation != null ? 1 : 0);
+    }
+
+    /**
+     * @return The average time in milliseconds from enqueueing an operation until its completion, -1 if none has completed yet
+     */
+    public synchronized long getAverageLatencyMillis() {
+        long count = this.completedCount + this.failedCount;
+        return count > 0 ? this.totalLatencyMillis / count : -1;
+    }
+
+    /**
+     * @return Depth of the queue, number of operations and their latency (waiting and in progress) as text
+     */
+    public synchronized String getSummary() {
+        long count = this.completedCount + this.failedCount;
+        return String.format(Locale.US, "Queue depth: %d (max. %d)\nOperations: %d completed, %d failed, %d timed out\nLatency: %d ms avg. (%d ms in progress), %d ms max.",
+                getDepth(), this.maxDepth,
+                this.completedCount, this.failedCount, this.timeoutCount,
+                count > 0 ? this.totalLatencyMillis / count : 0, count > 0 ? this.totalServiceMillis / count : 0, this.maxLatencyMillis);
+    }
+
+    /**
+     * Appends an operation and issues it right away if no other operation is in progress
+     * @param operation The operation to queue
+     */
+    private void enqueue(Operation operation) {
+        synchronized (this) {
+            operation.enqueueTime = SystemClock.elapsedRealtime();
+            this.pendingOperations.add(operation);
+            this.maxDepth = Math.max(this.maxDepth, getDepth());
+        }
+        issueNext();
+    }
+
+    /**
+     * Issues the next pending operation unless one is in progress. Operations that can't be issued fail with STATUS_NOT_ISSUED.
+     */
+    private void issueNext() {
+        while (true) {
+            Operation operation;
+            boolean isIssued;
+            synchronized (this) {
+                if (this.currentOperation != null || this.pendingOperations.isEmpty()) {
+                    return;
+                }
+
+                operation = this.pendingOperations.poll();
+                operation.issueTime = SystemClock.elapsedRealtime();
+                this.currentOperation = operation;
+                isIssued = this.bluetoothGatt != null && issue(this.bluetoothGatt, operation);
+                if (isIssued) {
+                    this.handler.postDelayed(this.timeout, OPERATION_TIMEOUT_MILLIS);
+                }
+            }
+
+            if (!isIssued) {
+                complete(operation, STATUS_NOT_ISSUED);
+            }
+            else if (operation.type == TYPE_REQUEST_CONNECTION_PRIORITY) {
+                //No callback for this request
+                complete(operation, BluetoothGatt.GATT_SUCCESS);
+            }
+            else {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Calls the method of the BluetoothGatt belonging to the operation
+     * @param gatt The BluetoothGatt of the connection
+     * @param operation The operation to issue
+     * @return Boolean value indicating whether the operation has been issued
+     */
+    private static boolean issue(BluetoothGatt gatt, Operation operation) {
+        switch (operation.type) {
+            case TYPE_READ_CHARACTERISTIC:
+                return gatt.readCharacteristic(operation.characteristic);
+            case TYPE_WRITE_CHARACTERISTIC:
+                operation.characteristic.setWriteType(operation.argument);
+                operation.characteristic.setValue(operation.value);
+                return gatt.writeCharacteristic(operation.characteristic);
+            case TYPE_READ_DESCRIPTOR:
+                return gatt.readDescriptor(operation.descriptor);
+            case TYPE_WRITE_DESCRIPTOR:
+                operation.descriptor.setValue(operation.value);
+                return gatt.writeDescriptor(operation.descriptor);
+            case TYPE_REQUEST_MTU:
+                return Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP && LollipopOperations.requestMtu(gatt, operation.argument);
+            case TYPE_REQUEST_CONNECTION_PRIORITY:
+                return Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP && LollipopOperations.requestConnectionPriority(gatt, operation.argument);
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Completes the current operation if it matches the callback (late callbacks of operations that have timed out are ignored)
+     * @param type The type of the completed operation
+     * @param target The characteristic or descriptor of the completed operation
+     * @param status The status passed to the callback
+     */
+    private void complete(int type, Object target, int status) {
+        Operation operation;
+        synchronized (this) {
+            operation = this.currentOperation;
+            if (operation == null || operation.isCompleted || operation.type != type || (target != null && target != operation.characteristic && target != operation.descriptor)) {
+                return;
+            }
+        }
+        complete(operation, status);
+    }
+
+    /**
+     * Records the metrics, calls the Callback and issues the next operation.
+     * Only the first completion of an operation counts, it may race with the timeout or with clear().
+     * @param operation The current operation
+     * @param status The result of the operation
+     */
+    private void complete(Operation operation, int status) {
+        synchronized (this) {
+            if (operation != this.currentOperation || operation.isCompleted) {
+                return;
+            }
+            operation.isCompleted = true;
+            this.handler.removeCallbacks(this.timeout);
+
+            long latency = SystemClock.elapsedRealtime() - operation.enqueueTime;
+            this.totalLatencyMillis += latency;
+            this.totalServiceMillis += SystemClock.elapsedRealtime() - operation.issueTime;
+            this.maxLatencyMillis = Math.max(this.maxLatencyMillis, latency);
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                this.completedCount++;
+            }
+            else {
+                this.failedCount++;
+                if (status == STATUS_TIMEOUT) {
+                    this.timeoutCount++;
+                }
+            }
+        }
+
+        //The operation stays current while its Callback runs, so the value read can't be overwritten by the next operation
+        if (operation.callback != null) {
+            operation.callback.onComplete(operation, status);
+        }
+
+        synchronized (this) {
+            if (operation == this.currentOperation) {
+                this.currentOperation = null;
+            }
+        }
+        issueNext();
+    }
+
+    /**
+     * Fails the current operation once it has taken longer than OPERATION_TIMEOUT_MILLIS
+     */
+    private Runnable timeout = new Runnable() {
+        @Override
+        public void run() {
+            Operation operation;
+            synchronized (GattOperationQueue.this) {
+                //An operation whose Callback is running has completed already
+                operation = currentOperation != null && !currentOperation.isCompleted ? currentOperation : null;
+            }
+            if (operation != null && SystemClock.elapsedRealtime() - operation.issueTime >= OPERATION_TIMEOUT_MILLIS) {
+                complete(operation, STATUS_TIMEOUT);
+            }
+        }
+    };
+
+    /**
+     * Operations that are only available on API 21 and above, kept in a class of their own so it is never loaded on API 19 and 20
+     */
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private static class LollipopOperations {
+        private static boolean requestMtu(BluetoothGatt gatt, int mtu) {
+            return gatt.requestMtu(mtu);
+        }
+
+        private static boolean requestConnectionPriority(BluetoothGatt gatt, int priority) {
+            return gatt.requestConnectionPriority(priority);
+        }
+    }
+}
@@ -0,0 +1,322 @@
+package de.hdmstuttgart.blueiot;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.content.Context;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Immutable snapshot of the GATT table of a remote device: its services and their characteristics, indexed by UUID, along with the texts shown for them.
+ * The table is built once after the services have been discovered (on the Binder-Thread, see build()) and handed over to the BleExpandableListAdapter as a whole.
+ * Descriptors aren't described here, their texts are created lazily (see createDescriptorDescription()) once a service is expanded.
+ */
+public class GattTable {
+    //Table without any services
+    public static final GattTable EMPTY = new GattTable(new ArrayList<Service>());
+
+    /**
+     * A service of the table and its characteristics
+     */
+    public static class Service {
+        private final BluetoothGattService gattService;
+        private final String description;
+        private final String uuidText;
+        private final List<Characteristic> characteristics;
+        private final HashMap<UUID, Characteristic> characteristicIndex;
+
+        private Service(BluetoothGattService gattService, String description, List<Characteristic> characteristics) {
+            this.gattService = gattService;
+            this.description = description;
+            this.uuidText = "UUID: " + gattService.getUuid().toString();
+            this.characteristics = Collections.unmodifiableList(characteristics);
+
+            //If a UUID is used by several characteristics, the index points to the first one
+            this.characteristicIndex = new HashMap<>(characteristics.size() * 2);
+            for (int i = characteristics.size() - 1; i >= 0; i--) {
+                this.characteristicIndex.put(characteristics.get(i).getUuid(), characteristics.get(i));
+            }
+        }
+
+        public BluetoothGattService getGattService() {
+            return this.gattService;
+        }
+
+        public UUID getUuid() {
+            return this.gattService.getUuid();
+        }
+
+        /**
+         * @return The type of the service, e.g. "Primary Service"
+         */
+        public String getDescription() {
+            return this.description;
+        }
+
+        /**
+         * @return The UUID as shown in the list
+         */
+        public String getUuidText() {
+            return this.uuidText;
+        }
+
+        public List<Characteristic> getCharacteristics() {
+            return this.characteristics;
+        }
+
+        /**
+         * @param uuid The UUID of the characteristic
+         * @return The characteristic or null if the service doesn't contain it
+         */
+        public Characteristic getCharacteristic(UUID uuid) {
+            return this.characteristicIndex.get(uuid);
+        }
+    }
+
+    /**
+     * A characteristic of the table along with its position in the list
+     */
+    public static class Characteristic {
+        private final BluetoothGattCharacteristic gattCharacteristic;
+        private final String description;
+        private final int groupPosition;
+        private final int childPosition;
+
+        private Characteristic(BluetoothGattCharacteristic gattCharacteristic, String description, int groupPosition, int childPosition) {
+            this.gattCharacteristic = gattCharacteristic;
+            this.description = description;
+            this.groupPosition = groupPosition;
+            this.childPosition = childPosition;
+        }
+
+        public BluetoothGattCharacteristic getGattCharacteristic() {
+            return this.gattCharacteristic;
+        }
+
+        public UUID getUuid() {
+            return this.gattCharacteristic.getUuid();
+        }
+
+        /**
+         * @return UUID, permissions, properties and write type as shown in the list
+         */
+        public String getDescription() {
+            return this.description;
+        }
+
+        public int getGroupPosition() {
+            return this.groupPosition;
+        }
+
+        public int getChildPosition() {
+            return this.childPosition;
+        }
+    }
+
+    private final List<Service> services;
+    private final HashMap<UUID, Service> serviceIndex;
+
+    private GattTable(List<Service> services) {
+        this.services = Collections.unmodifiableList(services);
+
+        //If a UUID is used by several services, the index points to the first one
+        this.serviceIndex = new HashMap<>(services.size() * 2);
+        for (int i = services.size() - 1; i >= 0; i--) {
+            this.serviceIndex.put(services.get(i).getUuid(), services.get(i));
+        }
+    }
+
+    /**
+     * Builds the table and all of its texts, may be called from any thread
+     * @param context Context used to read the descriptions from the resources
+     * @param gattServices The discovered services (see BluetoothGatt.getServices())
+     * @return The new GattTable
+     */
+    public static GattTable build(Context context, List<BluetoothGattService> gattServices) {
+        List<Service> services = new ArrayList<>(gattServices.size());
+        for (BluetoothGattService gattService : gattServices) {
+            List<BluetoothGattCharacteristic> gattCharacteristics = gattService.getCharacteristics();
+            List<Characteristic> characteristics = new ArrayList<>(gattCharacteristics.size());
+            for (BluetoothGattCharacteristic gattCharacteristic : gattCharacteristics) {
+                String description = "Characteristic UUID: " + gattCharacteristic.getUuid().toString()
+                        + ", Permission: " + getCharacteristicPermissionDescription(context, gattCharacteristic)
+                        + ", Properties: " + getCharacteristicPropertyDescription(context, gattCharacteristic)
+                        + ", WriteType: " + getCharacteristicWriteTypeDescription(context, gattCharacteristic);
+                characteristics.add(new Characteristic(gattCharacteristic, description, services.size(), characteristics.size()));
+            }
+
+            services.add(new Service(gattService, getServiceDescription(gattService), characteristics));
+        }
+        return new GattTable(services);
+    }
+
+    public List<Service> getServices() {
+        return this.services;
+    }
+
+    /**
+     * @param uuid The UUID of the service
+     * @return The service or null if the table doesn't contain it
+     */
+    public Service getService(UUID uuid) {
+        return this.serviceIndex.get(uuid);
+    }
+
+    /**
+     * Finds the entry of a characteristic by the UUIDs of its service and itself
+     * @param gattCharacteristic The characteristic as returned by the BluetoothGatt
+     * @return The characteristic of the table or null if the table doesn't contain it
+     */
+    public Characteristic getCharacteristic(BluetoothGattCharacteristic gattCharacteristic) {
+        Service service = this.serviceIndex.get(gattCharacteristic.getService().getUuid());
+        if (service != null) {
+            Characteristic characteristic = service.getCharacteristic(gattCharacteristic.getUuid());
+            if (characteristic != null && characteristic.gattCharacteristic == gattCharacteristic) {
+                return characteristic;
+            }
+        }
+
+        //A UUID used several times, look for the instance
+        for (Service candidate : this.services) {
+            if (candidate.gattService == gattCharacteristic.getService()) {
+                for (Characteristic characteristic : candidate.characteristics) {
+                    if (characteristic.gattCharacteristic == gattCharacteristic) {
+                        return characteristic;
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Creates the text shown for a descriptor
+     * @param descriptor The BluetoothGattDescriptor to describe
+     * @return The text, e.g. "Descriptor UUID: 00002902-0000-1000-8000-00805f9b34fb (Client Characteristic Configuration)"
+     */
+    public static String createDescriptorDescription(BluetoothGattDescriptor descriptor) {
+        String uuid = descriptor.getUuid().toString();
+        String name = null;
+        //Descriptors defined by the Bluetooth specification use the Base UUID
+        if (uuid.endsWith("-0000-1000-8000-00805f9b34fb") && uuid.startsWith("0000")) {
+            switch (uuid.substring(4, 8)) {
+                case "2900":
+                    name = "Characteristic Extended Properties";
+                    break;
+                case "2901":
+                    name = "Characteristic User Description";
+                    break;
+                case "2902":
+                    name = "Client Characteristic Configuration";
+                    break;
+                case "2903":
+                    name = "Server Characteristic Configuration";
+                    break;
+                case "2904":
+                    name = "Characteristic Presentation Format";
+                    break;
+                default:
+                    break;
+            }
+        }
+        return "Descriptor UUID: " + uuid + (name != null ? " (" + name + ")" : "");
+    }
+
+    /**
+     * @param service The BluetoothGattService to inspect
+     * @return String-form of the type of the service
+     */
+    private static String getServiceDescription(BluetoothGattService service) {
+        if (service.getType() == 0) {
+            return "Primary Service";
+        }
+        else if (service.getType() == 1) {
+            return "Secondary Service";
+        }
+        else {
+            return "Unknown Service";
+        }
+    }
+
+    /**
+     * Converts the integer value that indicates the permissions of a BluetoothGattCharacteristic into a readable String
+     * @param context Context used to read the descriptions from the resources
+     * @param characteristic The BluetoothGattCharacteristic to inspect
+     * @return String-form of the permissions
+     */
+    private static String getCharacteristicPermissionDescription(Context context, BluetoothGattCharacteristic characteristic) {
+        switch (characteristic.getPermissions()) {
+            case 1:
+                return context.getString(R.string.BluetoothGattCharacteristic_PERMISSION_READ_Description);
+            case 2:
+                return context.getString(R.string.BluetoothGattCharacteristic_PERMISSION_READ_ENCRYPTED_Description);
+            case 4:
+                return context.getString(R.string.BluetoothGattCharacteristic_PERMISSION_READ_ENCRYPTED_MITM_Description);
+            case 16:
+                return context.getString(R.string.BluetoothGattCharacteristic_PERMISSION_WRITE_Description);
+            case 32:
+                return context.getString(R.string.BluetoothGattCharacteristic_PERMISSION_WRITE_ENCRYPTED_Description);
+            case 64:
+                return context.getString(R.string.BluetoothGattCharacteristic_PERMISSION_WRITE_ENCRYPTED_MITM_Description);
+            case 128:
+                return context.getString(R.string.BluetoothGattCharacteristic_PERMISSION_WRITE_SIGNED_Description);
+            case 256:
+                return context.getString(R.string.BluetoothGattCharacteristic_PERMISSION_WRITE_SIGNED_MITM_Description);
+            default:
+                return String.valueOf(characteristic.getPermissions());
+        }
+    }
+
+    /**
+     * Converts the integer value that indicates the properties of a BluetoothGattCharacteristic into a readable String
+     * @param context Context used to read the descriptions from the resources
+     * @param characteristic The BluetoothGattCharacteristic to inspect
+     * @return String-form of the properties
+     */
+    private static String getCharacteristicPropertyDescription(Context context, BluetoothGattCharacteristic characteristic) {
+        switch (characteristic.getProperties()) {
+            case 1:
+                return context.getString(R.string.BluetoothGattCharacteristic_PROPERTY_BROADCAST_Description);
+            case 2:
+                return context.getString(R.string.BluetoothGattCharacteristic_PROPERTY_READ_Description);
+            case 4:
+                return context.getString(R.string.BluetoothGattCharacteristic_PROPERTY_WRITE_NO_RESPONSE_Description);
+            case 8:
+                return context.getString(R.string.BluetoothGattCharacteristic_PROPERTY_WRITE_Description);
+            case 16:
+                return context.getString(R.string.BluetoothGattCharacteristic_PROPERTY_NOTIFY_Description);
+            case 32:
+                return context.getString(R.string.BluetoothGattCharacteristic_PROPERTY_INDICATE_Description);
+            case 64:
+                return context.getString(R.string.BluetoothGattCharacteristic_PROPERTY_SIGNED_WRITE_Description);
+            case 128:
+                return context.getString(R.string.BluetoothGattCharacteristic_PROPERTY_EXTENDED_PROPS_Description);
+            default:
+                return String.valueOf(characteristic.getProperties());
+        }
+    }
+
+    /**
+     * Converts the integer value that indicates the WriteType of a BluetoothGattCharacteristic into a readable String
+     * @param context Context used to read the descriptions from the resources
+     * @param characteristic The BluetoothGattCharacteristic to inspect
+     * @return String-form of the WriteType
+     */
+    private static String getCharacteristicWriteTypeDescription(Context context, BluetoothGattCharacteristic characteristic) {
+        switch (characteristic.getWriteType()) {
+            case 1:
+                return context.getString(R.string.BluetoothGattCharacteristic_WRITE_TYPE_NO_RESPONSE_Description);
+            case 2:
+                return context.getString(R.string.BluetoothGattCharacteristic_WRITE_TYPE_DEFAULT_Description);
+            case 4:
+                return context.getString(R.string.BluetoothGattCharacteristic_WRITE_TYPE_SIGNED_Description);
+            default:
+                return String.valueOf(characteristic.getWriteType());
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package de.hdmstuttgart.blueiot;
+
+import com.jjoe64.graphview.GraphView;
+import com.jjoe64.graphview.series.DataPointInterface;
+import com.jjoe64.graphview.series.LineGraphSeries;
+
+import java.util.Iterator;
+
+/**
+ * LineGraphSeries that reads its data points directly from one column of a SampleHistory instead of keeping its own list of DataPoint-Objects.
+ * The X-Value of each point is the time in seconds since the start of the session.
+ * Only the points within the range that is requested by the GraphView (i.e. the visible window) are read, and they are handed out through a single reused cursor,
+ * so drawing doesn't create any objects per point and the history can grow without affecting the heap.
+ * If the requested range contains more samples than the GraphView has pixels, the points are read from the Min/Max-Pyramid of the history instead:
+ * The level with about one bucket per pixel is chosen and each bucket is drawn as its smallest and largest value, so peaks stay visible while the number of points stays constant.
+ */
+public class HistorySeries extends LineGraphSeries<DataPointInterface> {
+    private SampleHistory history;
+    private int column;
+
+    //Reused for each call to getValues()
+    private Cursor cursor = new Cursor();
+
+    //The GraphView this series is displayed in, used to determine the number of horizontal pixels
+    private GraphView graphView;
+
+    //Assumed width, as long as the GraphView hasn't been laid out
+    private static final int DEFAULT_WIDTH = 1000;
+
+    /**
+     * Constructor
+     * @param history The SampleHistory to read from
+     * @param column The column to display (see SampleHistory.COLUMN-constants)
+     */
+    public HistorySeries(SampleHistory history, int column) {
+        super();
+        this.history = history;
+        this.column = column;
+    }
+
+    /**
+     * @return The column that is displayed (see SampleHistory.COLUMN-constants)
+     */
+    public int getColumn() {
+        return this.column;
+    }
+
+    /**
+     * Changes the column that is displayed (e.g. to overlay another axis), the GraphView has to be redrawn afterwards
+     * @param column The column to display (see SampleHistory.COLUMN-constants)
+     */
+    public void setColumn(int column) {
+        this.column = column;
+    }
+
+    @Override
+    public double getLowestValueX() {
+        if (this.history.isEmpty()) {
+            return 0;
+        }
+        return this.history.getTime(this.history.getFirstIndex()) / 1000.0;
+    }
+
+    @Override
+    public double getHighestValueX() {
+        if (this.history.isEmpty()) {
+            return 0;
+        }
+        return this.history.getTime(this.history.getEndIndex() - 1) / 1000.0;
+    }
+
+    @Override
+    public double getLowestValueY() {
+        if (this.history.isEmpty()) {
+            return 0;
+        }
+        return this.history.getMinimum(this.column);
+    }
+
+    @Override
+    public double getHighestValueY() {
+        if (this.history.isEmpty()) {
+            return 0;
+        }
+        return this.history.getMaximum(this.column);
+    }
+
+    @Override
+    public void onGraphViewAttached(GraphView graphView) {
+        super.onGraphViewAttached(graphView);
+        this.graphView = graphView;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return this.history.isEmpty();
+    }
+
+    /**
+     * Returns the points within the specified range, including the points right before and after it so the line reaches the edges of the GraphView
+     * @param from Start of the range in seconds
+     * @param until End of the range in seconds
+     * @return Iterator over the points (the returned point is only valid until next() is called again)
+     */
+    @Override
+    public Iterator<DataPointInterface> getValues(double from, double until) {
+        long start = Math.max(this.history.findIndex((int) Math.floor(from * 1000)) - 1, this.history.getFirstIndex());
+        long end = Math.min(this.history.findIndex((int) Math.ceil(until * 1000)) + 1, this.history.getEndIndex());
+
+        //Find the pyramid level with about one point per pixel
+        int width = (this.graphView != null && this.graphView.getWidth() > 0) ? this.graphView.getWidth() : DEFAULT_WIDTH;
+        int level = this.history.selectLevel(start, end, width);
+
+        if (level < 0) {
+            //Few samples: draw each of them
+            this.cursor.reset(-1, start, end);
+        }
+        else {
+            long startBucket = Math.max(this.history.getBucketIndex(level, start), this.history.getFirstBucketIndex(level));
+            long endBucket = this.history.getBucketIndex(level, end - 1) + 1;
+            this.cursor.reset(level, startBucket * 2, endBucket * 2);
+        }
+
+        return this.cursor;
+    }
+
+    /**
+     * Iterator over a range of samples that is a data point at the same time: next() moves to the next sample and returns the cursor itself.
+     * On a pyramid level, the cursor runs over two positions per bucket: the even position returns the smallest, the odd position the largest value.
+     */
+    private class Cursor implements Iterator<DataPointInterface>, DataPointInterface {
+        private int level;
+        private long index;
+        private long end;
+        private double x;
+        private double y;
+
+        /**
+         * Positions the cursor before the first sample of the range
+         * @param level Level of the pyramid to read from, -1 for the raw samples
+         * @param start Index of the first position
+         * @param end Index after the last position
+         */
+        void reset(int level, long start, long end) {
+            this.level = level;
+            this.index = start;
+            this.end = end;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return this.index < this.end;
+        }
+
+        @Override
+        public DataPointInterface next() {
+            if (this.level < 0) {
+                this.x = history.getTime(this.index) / 1000.0;
+                this.y = history.getValue(column, this.index);
+            }
+            else {
+                long bucket = this.index >> 1;
+                this.x = history.getBucketTime(this.level, bucket) / 1000.0;
+                if ((this.index & 1) == 0) {
+                    this.y = history.getBucketMinimum(this.level, column, bucket);
+                }
+                else {
+                    this.y = history.getBucketMaximum(this.level, column, bucket);
+                }
+            }
+            this.index++;
+
+            return this;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public double getX() {
+            return this.x;
+        }
+
+        @Override
+        public double getY() {
+            return this.y;
+        }
+    }
+}
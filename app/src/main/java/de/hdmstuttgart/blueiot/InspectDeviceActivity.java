@@ -9,13 +9,22 @@ import android.bluetooth.BluetoothGattService;
 import android.bluetooth.BluetoothProfile;
 import android.support.v7.app.ActionBarActivity;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.widget.ExpandableListView;
+import android.widget.Toast;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * This Activity is used to display information that has been gathered on a remote BluetoothDevice.
  * It will display an ExpandableListView containing every BluetoothGattService and its associated BluetoothGattCharacteristics
+ * 'Snapshot' reads every readable characteristic and every descriptor back-to-back through the GattOperationQueue and shows the decoded values inline.
  */
 public class InspectDeviceActivity extends ActionBarActivity {
     private BluetoothDevice device;
@@ -26,6 +35,32 @@ public class InspectDeviceActivity extends ActionBarActivity {
 
     private boolean isConnected;
 
+    //Measures the frames while the ExpandableListView is being scrolled
+    private ScrollJankMonitor scrollJankMonitor;
+
+    //Serializes the reads of the snapshot
+    private GattOperationQueue operationQueue = new GattOperationQueue();
+
+    //State of the running snapshot, guarded by snapshotValues
+    private final List<SnapshotValue> snapshotValues = new ArrayList<>();
+    private int remainingSnapshotReads;
+    private int failedSnapshotReads;
+    private int totalSnapshotReads;
+    private long snapshotStartTime;
+    private long snapshotMillis = -1;
+    private AtomicBoolean isSnapshotPublishScheduled = new AtomicBoolean();
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * A value read by the snapshot that has not been put into the adapter yet
+     */
+    private static class SnapshotValue {
+        private BluetoothGattCharacteristic characteristic;
+        private BluetoothGattDescriptor descriptor;
+        private String value;
+    }
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -35,6 +70,8 @@ public class InspectDeviceActivity extends ActionBarActivity {
         ExpandableListView listView = (ExpandableListView) this.findViewById(R.id.expandableListView);
         this.listAdapter = new BleExpandableListAdapter(this);
         listView.setAdapter(this.listAdapter);
+        this.scrollJankMonitor = new ScrollJankMonitor(this.getWindowManager().getDefaultDisplay().getRefreshRate());
+        listView.setOnScrollListener(this.scrollJankMonitor);
 
         //Get the BluetoothDevice from the Intent that started this Activity
         this.device = this.getIntent().getParcelableExtra("device");
@@ -70,6 +107,13 @@ public class InspectDeviceActivity extends ActionBarActivity {
             case R.id.action_disconnect:
                 disconnectFromBleDevice();
                 return true;
+            case R.id.action_snapshotAll:
+                snapshotAll();
+                return true;
+            case R.id.action_showScrollStatistics:
+                //Show the janky frames while scrolling through the ExpandableListView
+                Toast.makeText(this, this.scrollJankMonitor.getSummary(), Toast.LENGTH_LONG).show();
+                return true;
             default:
                 return super.onOptionsItemSelected(item);
         }
@@ -114,33 +158,34 @@ public class InspectDeviceActivity extends ActionBarActivity {
                 //Start discovering all Services on the BLE-Remote-Device
                 gatt.discoverServices();
             }
+            else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
+                //Pending reads can't complete anymore
+                operationQueue.clear();
+            }
         }
 
         @Override
         public void onServicesDiscovered(BluetoothGatt gatt, int status) {
             //super.onServicesDiscovered(gatt, status);
 
-            //Iterate all services & save the service itself and all of the characteristics included into the adapter
-            for (final BluetoothGattService service : gatt.getServices()) {
-                runOnUiThread(new Runnable() {
-                    @Override
-                    public void run() {
-                        listAdapter.addService(service);
-                        listAdapter.addCharacteristics(service, service.getCharacteristics());
-                        listAdapter.notifyDataSetChanged();
-                    }
-                });
-            }
+            //Build the table of all services & characteristics here on the Binder-Thread and hand it over to the adapter at once
+            final GattTable gattTable = GattTable.build(InspectDeviceActivity.this, gatt.getServices());
+            runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    listAdapter.setGattTable(gattTable);
+                }
+            });
         }
 
         @Override
         public void onCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
-            super.onCharacteristicRead(gatt, characteristic, status);
+            operationQueue.onCharacteristicRead(characteristic, status);
         }
 
         @Override
         public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
-            super.onCharacteristicWrite(gatt, characteristic, status);
+            operationQueue.onCharacteristicWrite(characteristic, status);
         }
 
         @Override
@@ -150,12 +195,12 @@ public class InspectDeviceActivity extends ActionBarActivity {
 
         @Override
         public void onDescriptorRead(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
-            super.onDescriptorRead(gatt, descriptor, status);
+            operationQueue.onDescriptorRead(descriptor, status);
         }
 
         @Override
         public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
-            super.onDescriptorWrite(gatt, descriptor, status);
+            operationQueue.onDescriptorWrite(descriptor, status);
         }
 
         @Override
@@ -168,12 +213,10 @@ public class InspectDeviceActivity extends ActionBarActivity {
             super.onReadRemoteRssi(gatt, rssi, status);
         }
 
-        /*
         @Override
         public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
-            super.onMtuChanged(gatt, mtu, status);
+            operationQueue.onMtuChanged(status);
         }
-        */
     };
 
     /**
@@ -182,6 +225,7 @@ public class InspectDeviceActivity extends ActionBarActivity {
     private void connectToBleDevice() {
         if (!this.isConnected) {
             this.bluetoothGatt = this.device.connectGatt(this, false, this.gattCallback);
+            this.operationQueue.setGatt(this.bluetoothGatt);
             this.isConnected = true;
         }
     }
@@ -192,7 +236,147 @@ public class InspectDeviceActivity extends ActionBarActivity {
     private void disconnectFromBleDevice() {
         if (this.isConnected && this.bluetoothGatt != null) {
             this.bluetoothGatt.disconnect();
+            this.operationQueue.clear();
             this.isConnected = false;
         }
     }
+
+    /**
+     * Reads every readable characteristic and every descriptor of the device.
+     * All reads are queued at once, so each one is issued right from the completion of the previous one on the same connection.
+     */
+    private void snapshotAll() {
+        if (!this.isConnected || this.bluetoothGatt == null || this.bluetoothGatt.getServices().isEmpty()) {
+            Toast.makeText(this, "Not connected or services not discovered yet.", Toast.LENGTH_SHORT).show();
+            return;
+        }
+
+        //Collect the reads first, so the number of reads is known before the first one completes
+        List<BluetoothGattCharacteristic> characteristics = new ArrayList<>();
+        List<BluetoothGattDescriptor> descriptors = new ArrayList<>();
+        for (BluetoothGattService service : this.bluetoothGatt.getServices()) {
+            for (BluetoothGattCharacteristic characteristic : service.getCharacteristics()) {
+                if ((characteristic.getProperties() & BluetoothGattCharacteristic.PROPERTY_READ) != 0) {
+                    characteristics.add(characteristic);
+                }
+                descriptors.addAll(characteristic.getDescriptors());
+            }
+        }
+
+        synchronized (this.snapshotValues) {
+            if (this.remainingSnapshotReads > 0) {
+                Toast.makeText(this, "Snapshot is running.", Toast.LENGTH_SHORT).show();
+                return;
+            }
+
+            this.totalSnapshotReads = characteristics.size() + descriptors.size();
+            this.remainingSnapshotReads = this.totalSnapshotReads;
+            this.failedSnapshotReads = 0;
+            this.snapshotMillis = -1;
+            this.snapshotStartTime = SystemClock.elapsedRealtime();
+        }
+
+        for (BluetoothGattCharacteristic characteristic : characteristics) {
+            this.operationQueue.readCharacteristic(characteristic, this.snapshotCallback);
+        }
+        for (BluetoothGattDescriptor descriptor : descriptors) {
+            this.operationQueue.readDescriptor(descriptor, this.snapshotCallback);
+        }
+    }
+
+    /**
+     * Callback of the snapshot's reads (called on the Binder-Thread): decodes the value while it's still current and hands it over to the UI-Thread
+     */
+    private GattOperationQueue.Callback snapshotCallback = new GattOperationQueue.Callback() {
+        @Override
+        public void onComplete(GattOperationQueue.Operation operation, int status) {
+            SnapshotValue snapshotValue = new SnapshotValue();
+            snapshotValue.descriptor = operation.getDescriptor();
+            snapshotValue.characteristic = snapshotValue.descriptor != null ? snapshotValue.descriptor.getCharacteristic() : operation.getCharacteristic();
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                snapshotValue.value = formatValue(snapshotValue.descriptor != null ? snapshotValue.descriptor.getValue() : snapshotValue.characteristic.getValue());
+            }
+            else {
+                snapshotValue.value = status == GattOperationQueue.STATUS_TIMEOUT ? "Read timed out" : "Read failed (" + status + ")";
+            }
+
+            synchronized (snapshotValues) {
+                if (remainingSnapshotReads == 0) {
+                    return;
+                }
+                if (status != BluetoothGatt.GATT_SUCCESS) {
+                    failedSnapshotReads++;
+                }
+                //Values of cancelled reads are dropped along with the list
+                if (status != GattOperationQueue.STATUS_CANCELLED) {
+                    snapshotValues.add(snapshotValue);
+                }
+                remainingSnapshotReads--;
+                if (remainingSnapshotReads == 0) {
+                    snapshotMillis = SystemClock.elapsedRealtime() - snapshotStartTime;
+                }
+            }
+
+            //Put all of the values that have been read in the meantime into the adapter at once
+            if (isSnapshotPublishScheduled.compareAndSet(false, true)) {
+                runOnUiThread(publishSnapshotValues);
+            }
+        }
+    };
+
+    /**
+     * Puts the pending values of the snapshot into the adapter, executed on the UI-Thread.
+     * Shows the total time once all of the values have been read.
+     */
+    private Runnable publishSnapshotValues = new Runnable() {
+        @Override
+        public void run() {
+            isSnapshotPublishScheduled.set(false);
+
+            String summary = null;
+            synchronized (snapshotValues) {
+                for (SnapshotValue snapshotValue : snapshotValues) {
+                    listAdapter.setValue(snapshotValue.characteristic, snapshotValue.descriptor, snapshotValue.value);
+                }
+                snapshotValues.clear();
+
+                if (remainingSnapshotReads == 0 && snapshotMillis >= 0) {
+                    summary = String.format(Locale.US, "Snapshot: %d values read (%d failed) in %d ms", totalSnapshotReads - failedSnapshotReads, failedSnapshotReads, snapshotMillis);
+                    snapshotMillis = -1;
+                }
+            }
+            listAdapter.notifyDataSetChanged();
+
+            if (summary != null) {
+                Toast.makeText(InspectDeviceActivity.this, summary, Toast.LENGTH_LONG).show();
+            }
+        }
+    };
+
+    /**
+     * Decodes a value for display: the bytes in hexadecimal, followed by the text if all of the bytes are printable
+     * @param value The value that has been read
+     * @return The decoded value, e.g. "62 6C 75 65 (\"blue\")"
+     */
+    private static String formatValue(byte[] value) {
+        if (value == null || value.length == 0) {
+            return "(empty)";
+        }
+
+        StringBuilder builder = new StringBuilder(value.length * 3);
+        boolean isPrintable = true;
+        for (int i = 0; i < value.length; i++) {
+            if (i > 0) {
+                builder.append(' ');
+            }
+            builder.append(String.format(Locale.US, "%02X", value[i] & 0xFF));
+            if (value[i] < 0x20 || value[i] > 0x7E) {
+                isPrintable = false;
+            }
+        }
+        if (isPrintable) {
+            builder.append(" (\"").append(new String(value, UTF_8)).append("\")");
+        }
+        return builder.toString();
+    }
 }
\ No newline at end of file
@@ -0,0 +1,117 @@
+package de.hdmstuttgart.blueiot;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Persists the devices the app has connected to (address, name and time of the last connection) in the SharedPreferences.
+ * Known devices can be listed right after the app has started and connected to directly with BluetoothAdapter.getRemoteDevice(), without scanning first.
+ */
+public class KnownDeviceStore {
+    private static final String PREFERENCES_NAME = "known_devices";
+    private static final String KEY_ADDRESSES = "addresses";
+    private static final String KEY_NAME = "name_";
+    private static final String KEY_LAST_CONNECTED = "lastConnected_";
+
+    /**
+     * A device that has been stored
+     */
+    public static class KnownDevice {
+        private final String address;
+        private final String name;
+        private final long lastConnected;
+
+        private KnownDevice(String address, String name, long lastConnected) {
+            this.address = address;
+            this.name = name;
+            this.lastConnected = lastConnected;
+        }
+
+        public String getAddress() {
+            return this.address;
+        }
+
+        /**
+         * @return The name of the device or null if it didn't have one
+         */
+        public String getName() {
+            return this.name;
+        }
+
+        /**
+         * @return Time of the last connection in milliseconds (see System.currentTimeMillis())
+         */
+        public long getLastConnected() {
+            return this.lastConnected;
+        }
+    }
+
+    private final SharedPreferences preferences;
+
+    /**
+     * Constructor
+     * @param context The Context used to open the SharedPreferences
+     */
+    public KnownDeviceStore(Context context) {
+        this.preferences = context.getApplicationContext().getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * @return All of the stored devices, the most recently connected first
+     */
+    public List<KnownDevice> getKnownDevices() {
+        List<KnownDevice> devices = new ArrayList<>();
+        for (String address : this.preferences.getStringSet(KEY_ADDRESSES, new HashSet<String>())) {
+            devices.add(getKnownDevice(address));
+        }
+
+        //Insertion sort by time of the last connection (only a handful of devices)
+        for (int i = 1; i < devices.size(); i++) {
+            KnownDevice device = devices.get(i);
+            int position = i;
+            while (position > 0 && devices.get(position - 1).getLastConnected() < device.getLastConnected()) {
+                devices.set(position, devices.get(position - 1));
+                position--;
+            }
+            devices.set(position, device);
+        }
+
+        return devices;
+    }
+
+    /**
+     * @param address The address of the device
+     * @return The stored device or null if it isn't known
+     */
+    public KnownDevice getKnownDevice(String address) {
+        if (!this.preferences.getStringSet(KEY_ADDRESSES, new HashSet<String>()).contains(address)) {
+            return null;
+        }
+
+        return new KnownDevice(address,
+                this.preferences.getString(KEY_NAME + address, null),
+                this.preferences.getLong(KEY_LAST_CONNECTED + address, 0));
+    }
+
+    /**
+     * Stores a device after a connection has been established (written asynchronously)
+     * @param address The address of the device
+     * @param name The name of the device, might be null
+     */
+    public void storeConnection(String address, String name) {
+        //The Set returned by the SharedPreferences must not be modified
+        Set<String> addresses = new HashSet<>(this.preferences.getStringSet(KEY_ADDRESSES, new HashSet<String>()));
+        addresses.add(address);
+
+        SharedPreferences.Editor editor = this.preferences.edit();
+        editor.putStringSet(KEY_ADDRESSES, addresses);
+        editor.putString(KEY_NAME + address, name);
+        editor.putLong(KEY_LAST_CONNECTED + address, System.currentTimeMillis());
+        editor.apply();
+    }
+}
@@ -8,6 +8,7 @@ import android.content.Intent;
 import android.content.pm.PackageManager;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.PowerManager;
 import android.support.v7.app.ActionBarActivity;
 import android.view.ContextMenu;
 import android.view.Menu;
@@ -17,6 +18,9 @@ import android.widget.AdapterView;
 import android.widget.ListView;
 import android.widget.Toast;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * The MainActivity is the Activity that is shown when the application is started.
  * It uses a ListView in order to display BluetoothDevices that were found while scanning.
@@ -30,6 +34,21 @@ public class MainActivity extends ActionBarActivity {
     //Used for triggering (asynchronous) events
     private Handler handler;
 
+    //Collects the devices found while scanning and updates the ListAdapter in batches
+    private BleDeviceRegistry deviceRegistry;
+
+    //Scans using the BluetoothLeScanner (API 21 and above) or the deprecated methods of the BluetoothAdapter
+    private BleScanner bleScanner;
+
+    //Alternates scan windows and idle intervals while continuous scanning is enabled
+    private ScanScheduler scanScheduler;
+
+    //Devices that have been connected to before, listed right away
+    private KnownDeviceStore knownDeviceStore;
+
+    //Measures the frames while the ListView is being scrolled
+    private ScrollJankMonitor scrollJankMonitor;
+
     //Helper fields for Bluetooth-Connectivity
     private boolean isScanning;
     private boolean isBluetoothSupported;
@@ -41,19 +60,30 @@ public class MainActivity extends ActionBarActivity {
     //Context Menu IDs
     private static final int CONTEXT_MENU_INSPECT = 0;
     private static final int CONTEXT_MENU_BALANCE = 1;
+    private static final int CONTEXT_MENU_MULTI_STREAM = 2;
+
+    //Devices selected for streaming at the same time (see action_streamSelected), the first one is the main device
+    private ArrayList<BluetoothDevice> multiStreamDevices = new ArrayList<>();
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
 
+        //Start measuring the time until the first sample is received
+        StartupMetrics.onLaunch();
+
         //Setup for the ListView and its Adapter
         ListView listView = (ListView) this.findViewById(R.id.listView);
         this.bleDeviceListAdapter = new BleDeviceListAdapter(this);
         listView.setAdapter(this.bleDeviceListAdapter);
+        this.scrollJankMonitor = new ScrollJankMonitor(this.getWindowManager().getDefaultDisplay().getRefreshRate());
+        listView.setOnScrollListener(this.scrollJankMonitor);
 
         //Used for asynchronous tasks
         this.handler = new Handler();
+        this.deviceRegistry = new BleDeviceRegistry(this.handler, this.registryListener);
+        this.knownDeviceStore = new KnownDeviceStore(this);
 
         //Bluetooth Components
         BluetoothManager bluetoothManager = (BluetoothManager) this.getSystemService(Context.BLUETOOTH_SERVICE);
@@ -64,6 +94,8 @@ public class MainActivity extends ActionBarActivity {
         //Check if Bluetooth is supported on the device
         if (this.bluetoothAdapter != null) {
             this.isBluetoothSupported = true;
+            this.bleScanner = new BleScanner(this.bluetoothAdapter, this.deviceRegistry);
+            this.scanScheduler = new ScanScheduler(this, this.handler, this.bleScanner, this.deviceRegistry);
 
             //Check if BLE is supported on the device
             if (this.getPackageManager().hasSystemFeature(PackageManager.FEATURE_BLUETOOTH_LE)) {
@@ -82,7 +114,7 @@ public class MainActivity extends ActionBarActivity {
 
                 BluetoothDevice device = bleDeviceListAdapter.getDevice(position);
                 if (device != null) {
-                    if ((device.getName() != null && device.getName().contains(BlueIOTHelper.BLUEIOT_DEVICE_NAME)) || device.getAddress().equals(BlueIOTHelper.BLUEIOT_DEVICE_ADDRESS)) {
+                    if (bleDeviceListAdapter.getScannedDevice(position).isBlueIOT()) {
                         //Pass over the BluetoothDevice to the new Activity using the Intent
                         Intent intent = new Intent(MainActivity.this, DetailActivity.class);
                         intent.putExtra("device", device);
@@ -94,7 +126,7 @@ public class MainActivity extends ActionBarActivity {
                 else {
                     //Unable to find the BluetoothDevice in the ListAdapter
                     Toast.makeText(MainActivity.this, "Unable to get the selected Bluetooth Device. Try scanning again...", Toast.LENGTH_LONG).show();
-                    bleDeviceListAdapter.clear();
+                    clearDevices();
                 }
             }
         });
@@ -111,6 +143,14 @@ public class MainActivity extends ActionBarActivity {
         return true;
     }
 
+    @Override
+    public boolean onPrepareOptionsMenu(Menu menu) {
+        //The ScanScheduler is stopped when leaving the Activity
+        menu.findItem(R.id.action_continuousScan).setChecked(this.scanScheduler != null && this.scanScheduler.isRunning());
+
+        return super.onPrepareOptionsMenu(menu);
+    }
+
     @Override
     public boolean onOptionsItemSelected(MenuItem item) {
         // Handle action bar item clicks here. The action bar will
@@ -128,7 +168,12 @@ public class MainActivity extends ActionBarActivity {
                         //Check if Bluetooth is currently enabled
                         if (this.bluetoothAdapter.isEnabled()) {
                             //If already scanning, stop the scan. Else, start a new scan
-                            scanLeDevice(!this.isScanning);
+                            if (this.scanScheduler.isRunning()) {
+                                Toast.makeText(this, "Continuous Scan is running.", Toast.LENGTH_SHORT).show();
+                            }
+                            else {
+                                scanLeDevice(!this.isScanning);
+                            }
                         }
                         else {
                             //Show a Dialog, allowing the User to turn Bluetooth ON
@@ -145,6 +190,69 @@ public class MainActivity extends ActionBarActivity {
                     Toast.makeText(this, "Can't Scan: Bluetooth not supported.", Toast.LENGTH_LONG).show();
                 }
 
+                return true;
+            case R.id.action_continuousScan:
+                //Start/Stop scanning in windows according to the ScanScheduler
+                if (this.scanScheduler != null && this.bluetoothAdapter.isEnabled()) {
+                    if (this.scanScheduler.isRunning()) {
+                        this.scanScheduler.stop();
+                    }
+                    else {
+                        scanLeDevice(false);
+                        this.scanScheduler.start();
+                    }
+                    item.setChecked(this.scanScheduler.isRunning());
+                }
+                else {
+                    Toast.makeText(this, "Can't Scan: Bluetooth not available.", Toast.LENGTH_LONG).show();
+                }
+                return true;
+            case R.id.action_streamSelected:
+                if (this.multiStreamDevices.isEmpty()) {
+                    Toast.makeText(this, "Select devices using 'Add to Multi-Stream' first.", Toast.LENGTH_SHORT).show();
+                }
+                else {
+                    //Stop scanning
+                    if (this.isScanning) {
+                        scanLeDevice(false);
+                    }
+
+                    //The first device is the main device, the others are overlaid
+                    Intent intent = new Intent(this, DetailActivity.class);
+                    intent.putExtra("device", this.multiStreamDevices.get(0));
+                    intent.putParcelableArrayListExtra("overlayDevices", new ArrayList<>(this.multiStreamDevices.subList(1, this.multiStreamDevices.size())));
+                    startActivity(intent);
+                }
+                return true;
+            case R.id.action_showScanStatistics:
+                //Show the schedule and the time spent scanning
+                if (this.scanScheduler != null) {
+                    String parsing = "\nAdvertisements: " + this.deviceRegistry.getAdvertisementCount() + ", parsed: " + this.deviceRegistry.getParsedCount();
+                    if (this.bleScanner.getScanFailureCount() > 0) {
+                        parsing += "\nScan failures: " + this.bleScanner.getScanFailureCount() + " (last error " + this.bleScanner.getLastScanErrorCode() + "), using startLeScan()";
+                    }
+                    Toast.makeText(this, this.scanScheduler.getSummary() + parsing, Toast.LENGTH_LONG).show();
+                }
+                return true;
+            case R.id.action_filterBlueIOT:
+                //Show blueIOT devices only (applied to the next scan)
+                item.setChecked(!item.isChecked());
+                if (this.bleScanner != null) {
+                    this.bleScanner.setFilterEnabled(item.isChecked());
+                }
+                return true;
+            case R.id.action_scanModeLowPower:
+                setScanMode(item, BleScanner.SCAN_MODE_LOW_POWER);
+                return true;
+            case R.id.action_scanModeBalanced:
+                setScanMode(item, BleScanner.SCAN_MODE_BALANCED);
+                return true;
+            case R.id.action_scanModeLowLatency:
+                setScanMode(item, BleScanner.SCAN_MODE_LOW_LATENCY);
+                return true;
+            case R.id.action_showScrollStatistics:
+                //Show the janky frames while scrolling through the ListView
+                Toast.makeText(this, this.scrollJankMonitor.getSummary(), Toast.LENGTH_LONG).show();
                 return true;
             default:
                 return super.onOptionsItemSelected(item);
@@ -155,9 +263,27 @@ public class MainActivity extends ActionBarActivity {
     protected void onPause() {
         super.onPause();
 
+        //Keep scanning continuously while only the screen has been turned off (the ScanScheduler saves power meanwhile)
+        PowerManager powerManager = (PowerManager) this.getSystemService(Context.POWER_SERVICE);
+        if (this.scanScheduler != null && this.scanScheduler.isRunning() && !powerManager.isScreenOn()) {
+            return;
+        }
+
         //Stop scanning and clear any data from the Adapter
+        if (this.scanScheduler != null) {
+            this.scanScheduler.stop();
+        }
         scanLeDevice(false);
-        this.bleDeviceListAdapter.clear();
+        clearDevices();
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+
+        if (this.scanScheduler != null) {
+            this.scanScheduler.stop();
+        }
     }
 
     @Override
@@ -199,6 +325,20 @@ public class MainActivity extends ActionBarActivity {
         //Add Context Menu Items
         menu.add(Menu.NONE, CONTEXT_MENU_INSPECT, Menu.NONE, "Inspect Device");
         menu.add(Menu.NONE, CONTEXT_MENU_BALANCE, Menu.NONE, "Balance Ball");
+        menu.add(Menu.NONE, CONTEXT_MENU_MULTI_STREAM, Menu.NONE, isSelectedForMultiStream(device) ? "Remove from Multi-Stream" : "Add to Multi-Stream");
+    }
+
+    /**
+     * @param device The BluetoothDevice to look for
+     * @return True if the device has been selected for streaming at the same time
+     */
+    private boolean isSelectedForMultiStream(BluetoothDevice device) {
+        for (BluetoothDevice selectedDevice : this.multiStreamDevices) {
+            if (selectedDevice.getAddress().equals(device.getAddress())) {
+                return true;
+            }
+        }
+        return false;
     }
 
     @Override
@@ -229,7 +369,7 @@ public class MainActivity extends ActionBarActivity {
                 BluetoothDevice device = this.bleDeviceListAdapter.getDevice(acmi.position);
                 if (device != null) {
                     //Allow blueIOT ONLY!
-                    if ((device.getName() != null && device.getName().contains(BlueIOTHelper.BLUEIOT_DEVICE_NAME)) || device.getAddress().equals(BlueIOTHelper.BLUEIOT_DEVICE_ADDRESS)) {
+                    if (this.bleDeviceListAdapter.getScannedDevice(acmi.position).isBlueIOT()) {
                         //Start new Activity to start drawing
                         Intent intent = new Intent(this, DrawActivity.class);
                         intent.putExtra("device", device);
@@ -239,7 +379,27 @@ public class MainActivity extends ActionBarActivity {
                 else {
                     //Unable to find the BluetoothDevice in the ListAdapter
                     Toast.makeText(this, "Unable to get the selected Bluetooth Device. Try scanning again...", Toast.LENGTH_LONG).show();
-                    this.bleDeviceListAdapter.clear();
+                    clearDevices();
+                }
+
+                return true;
+            }
+            case CONTEXT_MENU_MULTI_STREAM: {
+                BluetoothDevice device = this.bleDeviceListAdapter.getDevice(acmi.position);
+                if (device != null && this.bleDeviceListAdapter.getScannedDevice(acmi.position).isBlueIOT()) {
+                    //Toggle the selection
+                    if (isSelectedForMultiStream(device)) {
+                        for (int i = 0; i < this.multiStreamDevices.size(); i++) {
+                            if (this.multiStreamDevices.get(i).getAddress().equals(device.getAddress())) {
+                                this.multiStreamDevices.remove(i);
+                                break;
+                            }
+                        }
+                    }
+                    else {
+                        this.multiStreamDevices.add(device);
+                    }
+                    Toast.makeText(this, this.multiStreamDevices.size() + " device(s) selected for Multi-Stream", Toast.LENGTH_SHORT).show();
                 }
 
                 return true;
@@ -253,54 +413,100 @@ public class MainActivity extends ActionBarActivity {
     protected void onResume() {
         super.onResume();
 
-        //Delete previously added devices when resuming --> forces a new scan
-        if (this.bleDeviceListAdapter != null) {
-            this.bleDeviceListAdapter.clear();
-            this.bleDeviceListAdapter.notifyDataSetChanged();
+        //Delete previously added devices when resuming --> forces a new scan (unless scanning continuously)
+        if (this.bleDeviceListAdapter != null && (this.scanScheduler == null || !this.scanScheduler.isRunning())) {
+            clearDevices();
+        }
+    }
+
+    /**
+     * Selects the scan mode (applied to the next scan)
+     * @param item The MenuItem of the scan mode
+     * @param scanMode One of the BleScanner.SCAN_MODE-constants
+     */
+    private void setScanMode(MenuItem item, int scanMode) {
+        item.setChecked(true);
+        if (this.bleScanner != null) {
+            this.bleScanner.setScanMode(scanMode);
+        }
+    }
+
+    /**
+     * Removes all devices from the registry and the ListAdapter, then lists the known devices again
+     */
+    private void clearDevices() {
+        this.deviceRegistry.clear();
+        this.bleDeviceListAdapter.clear();
+        this.bleDeviceListAdapter.notifyDataSetChanged();
+
+        showKnownDevices();
+    }
+
+    /**
+     * Lists the devices that have been connected to before, so they can be connected to directly (see BluetoothAdapter.getRemoteDevice()) without scanning first
+     */
+    private void showKnownDevices() {
+        if (this.bluetoothAdapter == null) {
+            return;
+        }
+
+        List<KnownDeviceStore.KnownDevice> knownDevices = this.knownDeviceStore.getKnownDevices();
+        List<BluetoothDevice> devices = new ArrayList<>(knownDevices.size());
+        for (KnownDeviceStore.KnownDevice knownDevice : knownDevices) {
+            devices.add(this.bluetoothAdapter.getRemoteDevice(knownDevice.getAddress()));
         }
+
+        this.deviceRegistry.addKnownDevices(devices, knownDevices);
+        this.deviceRegistry.flush();
     }
 
     /**
-     * Device Scan Callback adding detected BluetoothDevices into the ListAdapter.
+     * Listener receiving the batched changes of the registry (on the UI-Thread): a single notification of the ListView per batch
      */
-    private BluetoothAdapter.LeScanCallback leScanCallback = new BluetoothAdapter.LeScanCallback() {
+    private BleDeviceRegistry.Listener registryListener = new BleDeviceRegistry.Listener() {
         @Override
-        public void onLeScan(final BluetoothDevice device, int rssi, byte[] scanRecord) {
-            //Update the UI with all BLE-Devices that were found
-            runOnUiThread(new Runnable() {
-                @Override
-                public void run() {
-                    bleDeviceListAdapter.addDevice(device);
-                    bleDeviceListAdapter.notifyDataSetChanged();
-                }
-            });
+        public void onDevicesChanged(List<ScannedDevice> addedDevices, int updatedCount) {
+            bleDeviceListAdapter.addDevices(addedDevices);
+            bleDeviceListAdapter.updateOrder();
+            bleDeviceListAdapter.notifyDataSetChanged();
         }
     };
 
     /**
-     * Initiates/Terminates a Scan for BluetoothDevices with the previously defined LeScanCallback
-     * For higher API-Levels, don't use the deprecated methods
+     * Stops the scan after the defined scan period and shows the remaining results
+     */
+    private Runnable stopScan = new Runnable() {
+        @Override
+        public void run() {
+            scanLeDevice(false);
+        }
+    };
+
+    /**
+     * Initiates/Terminates a Scan for BluetoothDevices, the results are recorded in the BleDeviceRegistry
+     * On API 21 and above, the BluetoothLeScanner is used (see BleScanner)
      * @param enable Indicates whether to start|stop the Scan-Process
      */
     private void scanLeDevice(final boolean enable) {
+        if (this.bleScanner == null) {
+            return;
+        }
+
         if (enable) {
             //Stops scanning after a defined scan period
-            handler.postDelayed(new Runnable() {
-                @Override
-                public void run() {
-                    isScanning = false;
-                    bluetoothAdapter.stopLeScan(leScanCallback);
-                }
-            }, 5000);
+            this.handler.removeCallbacks(this.stopScan);
+            this.handler.postDelayed(this.stopScan, 5000);
 
             //Start scanning for BLE-Devices
-            isScanning = true;
-            bluetoothAdapter.startLeScan(leScanCallback);
+            this.bleScanner.start();
+            this.isScanning = this.bleScanner.isScanning();
         }
         else {
-            //Stop scanning immediately
-            isScanning = false;
-            bluetoothAdapter.stopLeScan(leScanCallback);
+            //Stop scanning immediately, batched results are delivered before
+            this.handler.removeCallbacks(this.stopScan);
+            this.bleScanner.stop();
+            this.isScanning = false;
+            this.deviceRegistry.flush();
         }
     }
-}
\ No newline at end of file
+}
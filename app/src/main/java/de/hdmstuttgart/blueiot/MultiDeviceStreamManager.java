@@ -0,0 +1,216 @@
+package de.hdmstuttgart.blueiot;
+
+import android.bluetooth.BluetoothDevice;
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Streams from several blueIOTs at once, each through its own SensorStreamEngine (i.e. its own connection and decoder) and SampleListener.
+ * Most Bluetooth-Stacks handle only one connection attempt at a time and service discovery competes with the other connections for the radio,
+ * so the devices are brought up one after the other: the next device is connected once the previous one has delivered its first sample
+ * (connected, discovered and subscribed) or after CONNECT_TIMEOUT_MILLIS. A device that times out stays connected and may still come up later.
+ * The throughput of each device and of all devices together is available as metrics (see getSummary()).
+ * All methods have to be called from the UI-Thread, the SampleListeners are called on the Binder-Thread of each connection.
+ */
+public class MultiDeviceStreamManager {
+    //Time the next device waits for the previous one to deliver its first sample in milliseconds
+    public static final long CONNECT_TIMEOUT_MILLIS = 10000;
+
+    private final Context context;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+
+    private final List<DeviceStream> streams = new ArrayList<>();
+
+    //The device that is currently being brought up, null if none
+    private DeviceStream connectingStream;
+
+    private boolean isRunning;
+
+    /**
+     * A device and the listener its samples are handed over to
+     */
+    private class DeviceStream implements SampleListener {
+        private final BluetoothDevice device;
+        private final SampleListener listener;
+        private SensorStreamEngine engine;
+
+        //Time in milliseconds (see SystemClock.elapsedRealtime()) the connection has been initiated and it took until the first sample, -1 if not yet
+        private long connectTime = -1;
+        private long timeToFirstSample = -1;
+        private volatile boolean hasReceivedSample;
+
+        private DeviceStream(BluetoothDevice device, SampleListener listener) {
+            this.device = device;
+            this.listener = listener;
+        }
+
+        @Override
+        public void onSample(long timestamp, float x, float y, float z, float height) {
+            if (!this.hasReceivedSample) {
+                this.hasReceivedSample = true;
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        onFirstSample(DeviceStream.this);
+                    }
+                });
+            }
+            this.listener.onSample(timestamp, x, y, z, height);
+        }
+    }
+
+    /**
+     * Constructor
+     * @param context Context used to connect to the devices from
+     */
+    public MultiDeviceStreamManager(Context context) {
+        this.context = context;
+    }
+
+    /**
+     * Adds a device, it is connected once the devices added before have come up
+     * @param device The BluetoothDevice to stream from
+     * @param listener The SampleListener receiving the samples of this device
+     */
+    public void addDevice(BluetoothDevice device, SampleListener listener) {
+        for (DeviceStream stream : this.streams) {
+            if (stream.device.getAddress().equals(device.getAddress())) {
+                return;
+            }
+        }
+
+        this.streams.add(new DeviceStream(device, listener));
+        connectNext();
+    }
+
+    /**
+     * Starts connecting to the devices, the first one is connected right away
+     */
+    public void start() {
+        this.isRunning = true;
+        connectNext();
+    }
+
+    /**
+     * Releases all of the devices, their connections are kept in low power for a while before they are disconnected (see SensorStreamEngine.release())
+     */
+    public void stop() {
+        this.isRunning = false;
+        this.handler.removeCallbacksAndMessages(null);
+        this.connectingStream = null;
+
+        for (DeviceStream stream : this.streams) {
+            if (stream.engine != null) {
+                stream.engine.removeSampleListener(stream);
+                stream.engine.setStreamingEnabled(false);
+                stream.engine.release();
+                stream.engine = null;
+            }
+            stream.hasReceivedSample = false;
+            stream.connectTime = -1;
+            stream.timeToFirstSample = -1;
+        }
+    }
+
+    /**
+     * @param device The BluetoothDevice that has been added
+     * @return The engine streaming from this device or null if it hasn't been connected yet
+     */
+    public SensorStreamEngine getEngine(BluetoothDevice device) {
+        for (DeviceStream stream : this.streams) {
+            if (stream.device.getAddress().equals(device.getAddress())) {
+                return stream.engine;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Connects to the next device that hasn't been connected yet, unless another one is still coming up
+     */
+    private void connectNext() {
+        if (!this.isRunning || this.connectingStream != null) {
+            return;
+        }
+
+        for (DeviceStream stream : this.streams) {
+            if (stream.engine == null) {
+                stream.connectTime = SystemClock.elapsedRealtime();
+                stream.engine = SensorStreamEngine.acquire(this.context, stream.device);
+                stream.engine.addSampleListener(stream);
+                stream.engine.setStreamingEnabled(true);
+
+                this.connectingStream = stream;
+                this.handler.postDelayed(this.connectTimeout, CONNECT_TIMEOUT_MILLIS);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Called on the UI-Thread once a device has delivered its first sample, continues with the next device
+     * @param stream The device that has come up
+     */
+    private void onFirstSample(DeviceStream stream) {
+        if (stream.connectTime >= 0 && stream.timeToFirstSample < 0) {
+            stream.timeToFirstSample = SystemClock.elapsedRealtime() - stream.connectTime;
+        }
+
+        if (stream == this.connectingStream) {
+            this.handler.removeCallbacks(this.connectTimeout);
+            this.connectingStream = null;
+            connectNext();
+        }
+    }
+
+    /**
+     * Continues with the next device if the current one doesn't come up in time
+     */
+    private Runnable connectTimeout = new Runnable() {
+        @Override
+        public void run() {
+            connectingStream = null;
+            connectNext();
+        }
+    };
+
+    /**
+     * @return The number of samples per second of all devices together
+     */
+    public float getAggregateSamplesPerSecond() {
+        float samplesPerSecond = 0;
+        for (DeviceStream stream : this.streams) {
+            if (stream.engine != null) {
+                samplesPerSecond += stream.engine.getSamplesPerSecond();
+            }
+        }
+        return samplesPerSecond;
+    }
+
+    /**
+     * @return State, time to the first sample and throughput of each device, followed by the throughput of all devices, as text
+     */
+    public String getSummary() {
+        StringBuilder builder = new StringBuilder();
+        for (DeviceStream stream : this.streams) {
+            String name = stream.device.getName() != null ? stream.device.getName() : stream.device.getAddress();
+            if (stream.engine == null) {
+                builder.append(String.format(Locale.US, "%s: waiting\n", name));
+            }
+            else if (stream.timeToFirstSample < 0) {
+                builder.append(String.format(Locale.US, "%s: connecting\n", name));
+            }
+            else {
+                builder.append(String.format(Locale.US, "%s: %.0f samples/s (first sample after %d ms)\n", name, stream.engine.getSamplesPerSecond(), stream.timeToFirstSample));
+            }
+        }
+        builder.append(String.format(Locale.US, "Total: %.0f samples/s from %d devices", getAggregateSamplesPerSecond(), this.streams.size()));
+        return builder.toString();
+    }
+}
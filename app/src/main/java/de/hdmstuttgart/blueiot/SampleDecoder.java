@@ -0,0 +1,319 @@
+package de.hdmstuttgart.blueiot;
+
+/**
+ * Decodes the raw value of the blueIOT notification-characteristic into primitive sensor-values.
+ * Two formats are supported, the format is detected from the first byte of each frame:
+ * <ul>
+ *     <li>Text (older firmware): One ASCII-String containing X, Y and Z from the Accelerometer and the Altitude from the Barometer, separated by a comma (",")</li>
+ *     <li>Binary (FORMAT_BINARY_V1): The format byte followed by X, Y, Z and Height as signed 16-Bit fixed-point values (little-endian).
+ *     X, Y and Z are scaled by ACCELERATION_SCALE, Height is scaled by HEIGHT_SCALE. A frame is 9 bytes instead of up to 20 bytes of text.</li>
+ *     <li>Batch (FORMAT_BINARY_BATCH): The format byte, the 16-Bit sequence number of the first sample (little-endian), the sampling interval in milliseconds (unsigned byte)
+ *     and one or more consecutive samples in the layout of the binary format (8 bytes each). A 20-byte notification carries 2 samples, larger MTUs carry accordingly more.</li>
+ * </ul>
+ * A text frame always starts with a printable character, so both formats can be told apart and old and new firmware can be used side by side.
+ * All samples of a frame are handed over to the SampleListener in a single pass, in the order they were measured.
+ * Parsing works directly on the byte[] returned by BluetoothGattCharacteristic.getValue(), so neither Strings nor arrays are created per notification.
+ * Frames that can't be parsed are rejected and counted instead of throwing an exception.
+ * An instance is not thread-safe and is meant to be used by the thread delivering the notifications (i.e. the Binder-Thread of the BluetoothGattCallback).
+ */
+public class SampleDecoder {
+    //Format byte of the binary frame (version 1)
+    public static final byte FORMAT_BINARY_V1 = 0x01;
+
+    //Format byte of the batch frame, containing several samples
+    public static final byte FORMAT_BINARY_BATCH = 0x02;
+
+    //Fixed-point scaling of the binary format: value = raw / scale
+    public static final float ACCELERATION_SCALE = 100f;
+    public static final float HEIGHT_SCALE = 10f;
+
+    //Size of a single binary sample (4 x int16) and the whole binary frame
+    private static final int BINARY_SAMPLE_SIZE = 8;
+    private static final int BINARY_V1_FRAME_SIZE = 1 + BINARY_SAMPLE_SIZE;
+
+    //Size of the header of a batch frame (format, sequence number, interval)
+    private static final int BATCH_HEADER_SIZE = 4;
+
+    //Number of values contained in a single sample (X, Y, Z and Height)
+    private static final int FIELD_COUNT = 4;
+
+    //Mantissas are limited to this value, any further digits are dropped (more digits than a float can represent anyway)
+    private static final long MAX_MANTISSA = 100000000000000000L;
+
+    //Exact powers of ten that can be represented by a double
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10,
+            1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    //Reused for every frame --> no allocation while decoding
+    private final float[] fields = new float[FIELD_COUNT];
+
+    //Statistics
+    private long decodedSampleCount;
+    private long rejectedFrameCount;
+    private long lostSampleCount;
+
+    //Sequence number that is expected for the next batch frame, -1 if unknown
+    private int expectedSequenceNumber = -1;
+
+    /**
+     * Decodes a notification-value and hands the resulting samples over to the listener
+     * @param data The raw value of the characteristic (see BluetoothGattCharacteristic.getValue())
+     * @param timestamp Time of arrival in milliseconds, passed on to the listener (for a batch: the time of the last sample within the frame)
+     * @param listener The SampleListener that receives the decoded samples
+     * @return The number of samples that were decoded, 0 if the frame has been rejected
+     */
+    public int decode(byte[] data, long timestamp, SampleListener listener) {
+        if (data == null || data.length == 0) {
+            this.rejectedFrameCount++;
+            return 0;
+        }
+
+        if (data[0] == FORMAT_BINARY_BATCH) {
+            return decodeBatch(data, timestamp, listener);
+        }
+
+        boolean isValid;
+        if (data[0] == FORMAT_BINARY_V1) {
+            isValid = decodeBinary(data);
+        }
+        else {
+            isValid = decodeText(data, 0, data.length);
+        }
+
+        if (!isValid) {
+            this.rejectedFrameCount++;
+            return 0;
+        }
+
+        listener.onSample(timestamp, this.fields[0], this.fields[1], this.fields[2], this.fields[3]);
+        this.decodedSampleCount++;
+
+        return 1;
+    }
+
+    /**
+     * @return The number of samples that have been decoded successfully
+     */
+    public long getDecodedSampleCount() {
+        return this.decodedSampleCount;
+    }
+
+    /**
+     * @return The number of frames that have been rejected because they couldn't be parsed
+     */
+    public long getRejectedFrameCount() {
+        return this.rejectedFrameCount;
+    }
+
+    /**
+     * @return The number of samples that are missing according to the sequence numbers of batch frames
+     */
+    public long getLostSampleCount() {
+        return this.lostSampleCount;
+    }
+
+    /**
+     * Decodes all samples of a batch frame and hands them over to the listener.
+     * The timestamp of each sample is derived from the arrival time and the sampling interval.
+     * @param data The raw value of the characteristic, starting with the format byte
+     * @param timestamp Time of arrival of the frame in milliseconds
+     * @param listener The SampleListener that receives the decoded samples
+     * @return The number of samples that were decoded, 0 if the frame has been rejected
+     */
+    private int decodeBatch(byte[] data, long timestamp, SampleListener listener) {
+        int payloadSize = data.length - BATCH_HEADER_SIZE;
+        if (payloadSize <= 0 || payloadSize % BINARY_SAMPLE_SIZE != 0) {
+            this.rejectedFrameCount++;
+            return 0;
+        }
+
+        int sampleCount = payloadSize / BINARY_SAMPLE_SIZE;
+        int sequenceNumber = (data[1] & 0xFF) | ((data[2] & 0xFF) << 8);
+        int interval = data[3] & 0xFF;
+
+        //Count samples that got lost in between (sequence number wraps around after 65535, a jump backwards means the firmware has restarted)
+        if (this.expectedSequenceNumber >= 0) {
+            int gap = (sequenceNumber - this.expectedSequenceNumber) & 0xFFFF;
+            if (gap < 0x8000) {
+                this.lostSampleCount += gap;
+            }
+        }
+        this.expectedSequenceNumber = (sequenceNumber + sampleCount) & 0xFFFF;
+
+        long sampleTimestamp = timestamp - (long) (sampleCount - 1) * interval;
+        for (int offset = BATCH_HEADER_SIZE; offset < data.length; offset += BINARY_SAMPLE_SIZE) {
+            listener.onSample(sampleTimestamp,
+                    readInt16(data, offset) / ACCELERATION_SCALE,
+                    readInt16(data, offset + 2) / ACCELERATION_SCALE,
+                    readInt16(data, offset + 4) / ACCELERATION_SCALE,
+                    readInt16(data, offset + 6) / HEIGHT_SCALE);
+            sampleTimestamp += interval;
+        }
+        this.decodedSampleCount += sampleCount;
+
+        return sampleCount;
+    }
+
+    /**
+     * Reads the fixed-point values of a binary frame into this.fields
+     * @param data The raw value of the characteristic, starting with the format byte
+     * @return Boolean value indicating whether the frame has the expected size
+     */
+    private boolean decodeBinary(byte[] data) {
+        if (data.length != BINARY_V1_FRAME_SIZE) {
+            return false;
+        }
+
+        this.fields[0] = readInt16(data, 1) / ACCELERATION_SCALE;
+        this.fields[1] = readInt16(data, 3) / ACCELERATION_SCALE;
+        this.fields[2] = readInt16(data, 5) / ACCELERATION_SCALE;
+        this.fields[3] = readInt16(data, 7) / HEIGHT_SCALE;
+
+        return true;
+    }
+
+    /**
+     * Reads a signed 16-Bit value (little-endian)
+     * @param data The bytes to read from
+     * @param offset Index of the low byte
+     * @return The signed value
+     */
+    private static int readInt16(byte[] data, int offset) {
+        return (short) ((data[offset] & 0xFF) | (data[offset + 1] << 8));
+    }
+
+    /**
+     * Splits the text at each comma and parses every field into this.fields.
+     * Like String.split(","), empty fields at the end of the text are ignored (e.g. "1,2,3,4," is accepted).
+     * @param data The raw value of the characteristic
+     * @param start Index of the first byte of the text
+     * @param end Index after the last byte of the text
+     * @return Boolean value indicating whether exactly FIELD_COUNT valid numbers have been found
+     */
+    private boolean decodeText(byte[] data, int start, int end) {
+        while (end > start && data[end - 1] == ',') {
+            end--;
+        }
+
+        int field = 0;
+        int fieldStart = start;
+        for (int i = start; i <= end; i++) {
+            if (i == end || data[i] == ',') {
+                if (field == FIELD_COUNT) {
+                    return false;
+                }
+
+                float value = parseNumber(data, fieldStart, i);
+                if (Float.isNaN(value)) {
+                    return false;
+                }
+
+                this.fields[field++] = value;
+                fieldStart = i + 1;
+            }
+        }
+
+        return field == FIELD_COUNT;
+    }
+
+    /**
+     * Parses a decimal number (e.g. "-12.345" or "1.5E-3") from the ASCII-bytes in the given range.
+     * Leading and trailing whitespace (as well as the terminating NUL-Bytes sent by blueIOT) is ignored, just like String.trim() would do.
+     * @param data The bytes to parse
+     * @param start Index of the first byte of the number
+     * @param end Index after the last byte of the number
+     * @return The parsed value or Float.NaN if the range doesn't contain a valid number
+     */
+    private static float parseNumber(byte[] data, int start, int end) {
+        //Trim
+        while (start < end && (data[start] & 0xFF) <= ' ') {
+            start++;
+        }
+        while (end > start && (data[end - 1] & 0xFF) <= ' ') {
+            end--;
+        }
+
+        int i = start;
+        boolean isNegative = false;
+        if (i < end && (data[i] == '-' || data[i] == '+')) {
+            isNegative = data[i] == '-';
+            i++;
+        }
+
+        long mantissa = 0;
+        int exponent = 0;
+        int digitCount = 0;
+
+        //Integer part
+        while (i < end && data[i] >= '0' && data[i] <= '9') {
+            if (mantissa < MAX_MANTISSA) {
+                mantissa = mantissa * 10 + (data[i] - '0');
+            }
+            else {
+                exponent++;
+            }
+            digitCount++;
+            i++;
+        }
+
+        //Fractional part
+        if (i < end && data[i] == '.') {
+            i++;
+            while (i < end && data[i] >= '0' && data[i] <= '9') {
+                if (mantissa < MAX_MANTISSA) {
+                    mantissa = mantissa * 10 + (data[i] - '0');
+                    exponent--;
+                }
+                digitCount++;
+                i++;
+            }
+        }
+
+        if (digitCount == 0) {
+            return Float.NaN;
+        }
+
+        //Exponent part
+        if (i < end && (data[i] == 'e' || data[i] == 'E')) {
+            i++;
+            boolean isExponentNegative = false;
+            if (i < end && (data[i] == '-' || data[i] == '+')) {
+                isExponentNegative = data[i] == '-';
+                i++;
+            }
+
+            int exponentValue = 0;
+            int exponentDigitCount = 0;
+            while (i < end && data[i] >= '0' && data[i] <= '9') {
+                if (exponentValue < 1000) {
+                    exponentValue = exponentValue * 10 + (data[i] - '0');
+                }
+                exponentDigitCount++;
+                i++;
+            }
+
+            if (exponentDigitCount == 0) {
+                return Float.NaN;
+            }
+
+            exponent += isExponentNegative ? -exponentValue : exponentValue;
+        }
+
+        //Anything left within the field is garbage
+        if (i != end) {
+            return Float.NaN;
+        }
+
+        double value = mantissa;
+        if (exponent > 0) {
+            value *= exponent < POWERS_OF_TEN.length ? POWERS_OF_TEN[exponent] : Math.pow(10, exponent);
+        }
+        else if (exponent < 0) {
+            value /= -exponent < POWERS_OF_TEN.length ? POWERS_OF_TEN[-exponent] : Math.pow(10, -exponent);
+        }
+
+        return (float) (isNegative ? -value : value);
+    }
+}
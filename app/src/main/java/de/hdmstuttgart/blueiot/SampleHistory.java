@@ -0,0 +1,365 @@
+package de.hdmstuttgart.blueiot;
+
+/**
+ * Circular time-series store keeping the history of a session in primitive columns (one column for the timestamps, one per sensor-value).
+ * Once the capacity is reached, the oldest samples are overwritten. No objects are created per sample.
+ * With the default capacity of 262144 samples, the store uses about 5 MB and holds roughly 3.5 hours of samples at 20 Hz.
+ * Samples are identified by their index, counting every sample that has been appended since the store was created/cleared.
+ * In addition to the raw samples, the store maintains a Min/Max-Pyramid while samples are appended: Each level divides the samples into buckets of a fixed size
+ * (16, 64, 256, ... samples) and keeps the smallest and largest value of each column per bucket. Drawing a long time-range can thus be done from the level
+ * that has about one bucket per pixel instead of reading every raw sample, keeping the cost constant regardless of the range.
+ * An instance is not thread-safe, all methods have to be called from the same thread (i.e. the UI-Thread).
+ */
+public class SampleHistory {
+    //Column indices
+    public static final int COLUMN_X = 0;
+    public static final int COLUMN_Y = 1;
+    public static final int COLUMN_Z = 2;
+    public static final int COLUMN_HEIGHT = 3;
+    public static final int COLUMN_COUNT = 4;
+
+    public static final int DEFAULT_CAPACITY = 1 << 18;
+
+    //Bucket size of the lowest pyramid level (1 << 4 = 16 samples), each further level is 4 times as large (1 << 2)
+    private static final int PYRAMID_FIRST_SHIFT = 4;
+    private static final int PYRAMID_LEVEL_SHIFT = 2;
+
+    //Levels with less buckets than this are not created
+    private static final int PYRAMID_MIN_BUCKETS = 4;
+
+    private final int capacity;
+    private final int mask;
+
+    //Time of each sample in milliseconds relative to startTime
+    private final int[] times;
+    //Sensor-Values, indexed by column
+    private final float[][] columns;
+
+    //Timestamp of the first sample (see SystemClock.elapsedRealtime()), -1 if empty
+    private long startTime = -1;
+
+    //Number of samples appended in total
+    private long count;
+
+    //Smallest and largest value of each column since the store was cleared
+    private final float[] minimums = new float[COLUMN_COUNT];
+    private final float[] maximums = new float[COLUMN_COUNT];
+
+    //Min/Max-Pyramid: Bucket b of a level covers the samples [b << shift, (b + 1) << shift) and is stored in slot b & mask
+    private final int levelCount;
+    private final int[] levelShifts;
+    private final int[] levelMasks;
+    //Time of the first sample in each bucket, indexed by [level][slot]
+    private final int[][] bucketTimes;
+    //Smallest and largest value in each bucket, indexed by [level][column][slot]
+    private final float[][][] bucketMinimums;
+    private final float[][][] bucketMaximums;
+
+    /**
+     * Constructor using the DEFAULT_CAPACITY
+     */
+    public SampleHistory() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Constructor
+     * @param capacity Number of samples the store can hold, rounded up to the next power of two
+     */
+    public SampleHistory(int capacity) {
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+
+        this.capacity = size;
+        this.mask = size - 1;
+        this.times = new int[size];
+        this.columns = new float[COLUMN_COUNT][size];
+
+        //Setup the pyramid levels
+        int levels = 0;
+        for (int shift = PYRAMID_FIRST_SHIFT; (size >> shift) >= PYRAMID_MIN_BUCKETS; shift += PYRAMID_LEVEL_SHIFT) {
+            levels++;
+        }
+
+        this.levelCount = levels;
+        this.levelShifts = new int[levels];
+        this.levelMasks = new int[levels];
+        this.bucketTimes = new int[levels][];
+        this.bucketMinimums = new float[levels][][];
+        this.bucketMaximums = new float[levels][][];
+        for (int level = 0; level < levels; level++) {
+            int shift = PYRAMID_FIRST_SHIFT + level * PYRAMID_LEVEL_SHIFT;
+            int bucketCount = size >> shift;
+
+            this.levelShifts[level] = shift;
+            this.levelMasks[level] = bucketCount - 1;
+            this.bucketTimes[level] = new int[bucketCount];
+            this.bucketMinimums[level] = new float[COLUMN_COUNT][bucketCount];
+            this.bucketMaximums[level] = new float[COLUMN_COUNT][bucketCount];
+        }
+    }
+
+    /**
+     * Appends a sample, overwriting the oldest one if the store is full.
+     * Timestamps are kept in ascending order: a sample that is older than its predecessor gets the timestamp of the predecessor.
+     * @param timestamp Time of the sample in milliseconds
+     * @param x Acceleration on the X-Axis
+     * @param y Acceleration on the Y-Axis
+     * @param z Acceleration on the Z-Axis
+     * @param height Relative height
+     */
+    public void append(long timestamp, float x, float y, float z, float height) {
+        if (this.startTime < 0) {
+            this.startTime = timestamp;
+        }
+
+        int time = (int) (timestamp - this.startTime);
+        if (this.count == 0 && time < 0) {
+            //Sample older than a start time that has been set (see setStartTime())
+            time = 0;
+        }
+        else if (this.count > 0 && time < this.times[(int) (this.count - 1) & this.mask]) {
+            time = this.times[(int) (this.count - 1) & this.mask];
+        }
+
+        int index = (int) this.count & this.mask;
+        this.times[index] = time;
+        this.columns[COLUMN_X][index] = x;
+        this.columns[COLUMN_Y][index] = y;
+        this.columns[COLUMN_Z][index] = z;
+        this.columns[COLUMN_HEIGHT][index] = height;
+
+        for (int column = 0; column < COLUMN_COUNT; column++) {
+            float value = this.columns[column][index];
+            if (this.count == 0 || value < this.minimums[column]) {
+                this.minimums[column] = value;
+            }
+            if (this.count == 0 || value > this.maximums[column]) {
+                this.maximums[column] = value;
+            }
+        }
+
+        //Update the bucket containing this sample on each level, the first sample of a bucket resets it
+        for (int level = 0; level < this.levelCount; level++) {
+            int shift = this.levelShifts[level];
+            int slot = (int) (this.count >> shift) & this.levelMasks[level];
+            boolean isFirstInBucket = (this.count & ((1L << shift) - 1)) == 0;
+            if (isFirstInBucket) {
+                this.bucketTimes[level][slot] = time;
+            }
+
+            for (int column = 0; column < COLUMN_COUNT; column++) {
+                float value = this.columns[column][index];
+                if (isFirstInBucket || value < this.bucketMinimums[level][column][slot]) {
+                    this.bucketMinimums[level][column][slot] = value;
+                }
+                if (isFirstInBucket || value > this.bucketMaximums[level][column][slot]) {
+                    this.bucketMaximums[level][column][slot] = value;
+                }
+            }
+        }
+
+        this.count++;
+    }
+
+    /**
+     * Sets the timestamp the times of the samples are relative to, so several histories share the same time axis (e.g. the same session on several devices).
+     * Only takes effect while the store is empty, otherwise the start time is the timestamp of the first sample.
+     * @param startTime Timestamp in milliseconds (see SystemClock.elapsedRealtime())
+     */
+    public void setStartTime(long startTime) {
+        if (this.count == 0) {
+            this.startTime = startTime;
+        }
+    }
+
+    /**
+     * Removes all samples, the next sample appended will start a new session
+     */
+    public void clear() {
+        this.count = 0;
+        this.startTime = -1;
+    }
+
+    /**
+     * @return Boolean value indicating whether the store doesn't contain any samples
+     */
+    public boolean isEmpty() {
+        return this.count == 0;
+    }
+
+    /**
+     * @return Index of the oldest sample that is still stored
+     */
+    public long getFirstIndex() {
+        return Math.max(0, this.count - this.capacity);
+    }
+
+    /**
+     * @return Index after the newest sample
+     */
+    public long getEndIndex() {
+        return this.count;
+    }
+
+    /**
+     * @return The number of samples the store can hold
+     */
+    public int getCapacity() {
+        return this.capacity;
+    }
+
+    /**
+     * @return Timestamp of the first sample of the session in milliseconds, -1 if empty
+     */
+    public long getStartTime() {
+        return this.startTime;
+    }
+
+    /**
+     * @param index Index of the sample, between getFirstIndex() and getEndIndex()
+     * @return Time of the sample in milliseconds relative to the start of the session
+     */
+    public int getTime(long index) {
+        return this.times[(int) index & this.mask];
+    }
+
+    /**
+     * @param column One of the COLUMN-constants
+     * @param index Index of the sample, between getFirstIndex() and getEndIndex()
+     * @return The value of the sample in the specified column
+     */
+    public float getValue(int column, long index) {
+        return this.columns[column][(int) index & this.mask];
+    }
+
+    /**
+     * @param column One of the COLUMN-constants
+     * @return The smallest value of the column since the store was cleared
+     */
+    public float getMinimum(int column) {
+        return this.minimums[column];
+    }
+
+    /**
+     * @param column One of the COLUMN-constants
+     * @return The largest value of the column since the store was cleared
+     */
+    public float getMaximum(int column) {
+        return this.maximums[column];
+    }
+
+    /**
+     * @return The number of levels of the Min/Max-Pyramid
+     */
+    public int getLevelCount() {
+        return this.levelCount;
+    }
+
+    /**
+     * @param level Level of the pyramid, between 0 and getLevelCount() - 1
+     * @return The number of samples per bucket on this level
+     */
+    public int getBucketSize(int level) {
+        return 1 << this.levelShifts[level];
+    }
+
+    /**
+     * Returns the bucket of a level containing the specified sample
+     * @param level Level of the pyramid
+     * @param index Index of the sample
+     * @return Index of the bucket
+     */
+    public long getBucketIndex(int level, long index) {
+        return index >> this.levelShifts[level];
+    }
+
+    /**
+     * @param level Level of the pyramid
+     * @return Index of the oldest bucket of a level whose samples are all still stored
+     */
+    public long getFirstBucketIndex(int level) {
+        int shift = this.levelShifts[level];
+        return (getFirstIndex() + (1L << shift) - 1) >> shift;
+    }
+
+    /**
+     * @param level Level of the pyramid
+     * @return Index after the newest bucket of a level (the newest bucket might not be complete yet)
+     */
+    public long getEndBucketIndex(int level) {
+        int shift = this.levelShifts[level];
+        return (this.count + (1L << shift) - 1) >> shift;
+    }
+
+    /**
+     * @param level Level of the pyramid
+     * @param bucket Index of the bucket
+     * @return Time of the first sample in the bucket in milliseconds relative to the start of the session
+     */
+    public int getBucketTime(int level, long bucket) {
+        return this.bucketTimes[level][(int) bucket & this.levelMasks[level]];
+    }
+
+    /**
+     * @param level Level of the pyramid
+     * @param column One of the COLUMN-constants
+     * @param bucket Index of the bucket
+     * @return The smallest value of the column within the bucket
+     */
+    public float getBucketMinimum(int level, int column, long bucket) {
+        return this.bucketMinimums[level][column][(int) bucket & this.levelMasks[level]];
+    }
+
+    /**
+     * @param level Level of the pyramid
+     * @param column One of the COLUMN-constants
+     * @param bucket Index of the bucket
+     * @return The largest value of the column within the bucket
+     */
+    public float getBucketMaximum(int level, int column, long bucket) {
+        return this.bucketMaximums[level][column][(int) bucket & this.levelMasks[level]];
+    }
+
+    /**
+     * Chooses the pyramid level to draw a range of samples with, so that it results in about one point per pixel.
+     * Each bucket is drawn as two points (smallest and largest value), so the lowest level with no more buckets than half of the pixels is chosen.
+     * @param start Index of the first sample of the range
+     * @param end Index after the last sample of the range
+     * @param pixels Number of horizontal pixels available
+     * @return The level to read from or -1 if the raw samples should be drawn
+     */
+    public int selectLevel(long start, long end, int pixels) {
+        long samplesPerBucket = (end - start) * 2 / Math.max(pixels, 1);
+        if (samplesPerBucket <= 1 || this.levelCount == 0) {
+            return -1;
+        }
+
+        int level = 0;
+        while (level < this.levelCount - 1 && getBucketSize(level) < samplesPerBucket) {
+            level++;
+        }
+
+        return level;
+    }
+
+    /**
+     * Finds the first sample at or after the specified time using binary search
+     * @param time Time in milliseconds relative to the start of the session
+     * @return Index of the first sample with a time >= the specified time, getEndIndex() if there is none
+     */
+    public long findIndex(int time) {
+        long low = getFirstIndex();
+        long high = this.count;
+        while (low < high) {
+            long middle = (low + high) >>> 1;
+            if (getTime(middle) < time) {
+                low = middle + 1;
+            }
+            else {
+                high = middle;
+            }
+        }
+
+        return low;
+    }
+}
@@ -0,0 +1,17 @@
+package de.hdmstuttgart.blueiot;
+
+/**
+ * Callback-Interface that receives decoded sensor-values from blueIOT.
+ * Values are handed over as primitives, so that no objects have to be created for a single sample.
+ */
+public interface SampleListener {
+    /**
+     * Called once for every sample that has been decoded
+     * @param timestamp Time of the sample in milliseconds (see SystemClock.elapsedRealtime())
+     * @param x Acceleration on the X-Axis
+     * @param y Acceleration on the Y-Axis
+     * @param z Acceleration on the Z-Axis
+     * @param height Relative height from the Barometer
+     */
+    void onSample(long timestamp, float x, float y, float z, float height);
+}
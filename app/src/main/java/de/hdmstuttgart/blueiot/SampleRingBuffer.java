@@ -0,0 +1,131 @@
+package de.hdmstuttgart.blueiot;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free ring buffer that hands samples over from exactly one producer-thread (i.e. the Binder-Thread of the BluetoothGattCallback) to exactly one consumer-thread.
+ * All slots are preallocated as primitive arrays, so neither writing nor reading a sample creates any objects.
+ * The producer writes the slot first and publishes it afterwards by advancing the head, the consumer reads all published slots and frees them by advancing the tail.
+ * If the consumer falls behind and the buffer is full, new samples are dropped and counted as overruns.
+ */
+public class SampleRingBuffer implements SampleListener {
+    private final int capacity;
+    private final int mask;
+
+    //Sample slots
+    private final long[] timestamps;
+    private final float[] xValues;
+    private final float[] yValues;
+    private final float[] zValues;
+    private final float[] heightValues;
+
+    //Index of the next slot to be written (only advanced by the producer)
+    private final AtomicLong head = new AtomicLong();
+    //Index of the next slot to be read (only advanced by the consumer)
+    private final AtomicLong tail = new AtomicLong();
+
+    //Number of samples that have been dropped because the buffer was full (only written by the producer)
+    private final AtomicLong overrunCount = new AtomicLong();
+
+    /**
+     * Constructor
+     * @param capacity Number of samples the buffer can hold, rounded up to the next power of two
+     */
+    public SampleRingBuffer(int capacity) {
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+
+        this.capacity = size;
+        this.mask = size - 1;
+        this.timestamps = new long[size];
+        this.xValues = new float[size];
+        this.yValues = new float[size];
+        this.zValues = new float[size];
+        this.heightValues = new float[size];
+    }
+
+    /**
+     * Writes a sample into the buffer (producer-thread only)
+     * @param timestamp Time of the sample in milliseconds
+     * @param x Acceleration on the X-Axis
+     * @param y Acceleration on the Y-Axis
+     * @param z Acceleration on the Z-Axis
+     * @param height Relative height
+     * @return Boolean value indicating whether the sample has been written or dropped because the buffer is full
+     */
+    public boolean offer(long timestamp, float x, float y, float z, float height) {
+        long currentHead = this.head.get();
+        if (currentHead - this.tail.get() == this.capacity) {
+            this.overrunCount.lazySet(this.overrunCount.get() + 1);
+            return false;
+        }
+
+        int index = (int) currentHead & this.mask;
+        this.timestamps[index] = timestamp;
+        this.xValues[index] = x;
+        this.yValues[index] = y;
+        this.zValues[index] = z;
+        this.heightValues[index] = height;
+
+        //Publish the slot to the consumer
+        this.head.lazySet(currentHead + 1);
+
+        return true;
+    }
+
+    /**
+     * Allows registering the buffer directly as a SampleListener, see offer()
+     */
+    @Override
+    public void onSample(long timestamp, float x, float y, float z, float height) {
+        offer(timestamp, x, y, z, height);
+    }
+
+    /**
+     * Hands the buffered samples over to the listener in the order they were written and removes them from the buffer (consumer-thread only)
+     * @param listener The SampleListener that receives the samples
+     * @param maxSamples Maximum number of samples to drain
+     * @return The number of samples that have been drained
+     */
+    public int drain(SampleListener listener, int maxSamples) {
+        long currentTail = this.tail.get();
+        int count = (int) Math.min(this.head.get() - currentTail, maxSamples);
+
+        for (int i = 0; i < count; i++) {
+            int index = (int) (currentTail + i) & this.mask;
+            listener.onSample(this.timestamps[index], this.xValues[index], this.yValues[index], this.zValues[index], this.heightValues[index]);
+        }
+
+        //Free the slots for the producer
+        this.tail.lazySet(currentTail + count);
+
+        return count;
+    }
+
+    /**
+     * Removes all of the buffered samples (consumer-thread only)
+     */
+    public void clear() {
+        this.tail.lazySet(this.head.get());
+    }
+
+    /**
+     * @return The number of samples that are currently buffered
+     */
+    public int size() {
+        return (int) (this.head.get() - this.tail.get());
+    }
+
+    /**
+     * @return The number of samples the buffer can hold
+     */
+    public int getCapacity() {
+        return this.capacity;
+    }
+
+    /**
+     * @return The number of samples that have been dropped because the buffer was full
+     */
+    public long getOverrunCount() {
+        return this.overrunCount.get();
+    }
+}
@@ -0,0 +1,266 @@
+package de.hdmstuttgart.blueiot;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.BatteryManager;
+import android.os.Handler;
+import android.os.PowerManager;
+import android.os.SystemClock;
+
+import java.util.Locale;
+
+/**
+ * Scans continuously by alternating scan windows of SCAN_WINDOW_MILLIS and idle intervals, so devices keep showing up without scanning all the time.
+ * The idle interval adapts after each window: It drops to its minimum when the window has found new devices and doubles otherwise (up to its maximum).
+ * While the screen is off or the battery is low (and not charging), longer idle intervals and the low-power scan mode are used.
+ * The chosen schedule, the time spent scanning and the estimated radio-on time are available as metrics (see getSummary()).
+ * All methods have to be called from the UI-Thread.
+ */
+public class ScanScheduler {
+    //Length of a scan window in milliseconds
+    public static final long SCAN_WINDOW_MILLIS = 4000;
+
+    //Range of the idle interval in milliseconds
+    private static final long MIN_IDLE_MILLIS = 1000;
+    private static final long MAX_IDLE_MILLIS = 16000;
+    //Range of the idle interval while the screen is off or the battery is low
+    private static final long MIN_IDLE_MILLIS_POWER_SAVING = 16000;
+    private static final long MAX_IDLE_MILLIS_POWER_SAVING = 60000;
+
+    //Battery level in percent below which the battery is considered low
+    private static final int LOW_BATTERY_PERCENT = 15;
+
+    //Share of the time the radio listens within a scan window per scan mode (the Bluetooth-Stack scans 0.5 s of 5 s, 1 s of 4 s or continuously)
+    //The deprecated scan on API 19 and 20 doesn't have scan modes and is counted as continuous
+    private static final float[] SCAN_MODE_RADIO_SHARES = { 0.1f, 0.25f, 1f };
+
+    private final Context context;
+    private final Handler handler;
+    private final BleScanner bleScanner;
+    private final BleDeviceRegistry deviceRegistry;
+
+    private boolean isRunning;
+    private boolean isWindowOpen;
+    private boolean isScreenOn = true;
+    private boolean isBatteryLow;
+
+    //Current schedule
+    private long idleMillis = MIN_IDLE_MILLIS;
+    private int scanMode;
+    //Scan mode selected before the scheduler has been started, restored when stopped
+    private int previousScanMode;
+
+    //State of the current window
+    private long windowStartTime;
+    private int windowStartDeviceCount;
+    private float windowRadioShare;
+
+    //Metrics
+    private long startTime;
+    private long windowCount;
+    private int lastNewDeviceCount;
+    private long scanMillis;
+    private float radioOnMillis;
+
+    /**
+     * Constructor
+     * @param context The Context used to observe the screen and the battery
+     * @param handler Handler of the UI-Thread
+     * @param bleScanner The scanner that is started and stopped
+     * @param deviceRegistry The registry the scanner records the devices in, used to count new devices
+     */
+    public ScanScheduler(Context context, Handler handler, BleScanner bleScanner, BleDeviceRegistry deviceRegistry) {
+        this.context = context.getApplicationContext();
+        this.handler = handler;
+        this.bleScanner = bleScanner;
+        this.deviceRegistry = deviceRegistry;
+    }
+
+    /**
+     * Starts the schedule with a scan window right away
+     */
+    public void start() {
+        if (this.isRunning) {
+            return;
+        }
+
+        this.isRunning = true;
+        this.previousScanMode = this.bleScanner.getScanMode();
+        this.startTime = SystemClock.elapsedRealtime();
+        this.windowCount = 0;
+        this.scanMillis = 0;
+        this.radioOnMillis = 0;
+        this.idleMillis = MIN_IDLE_MILLIS;
+
+        PowerManager powerManager = (PowerManager) this.context.getSystemService(Context.POWER_SERVICE);
+        this.isScreenOn = powerManager == null || powerManager.isScreenOn();
+
+        IntentFilter filter = new IntentFilter(Intent.ACTION_SCREEN_ON);
+        filter.addAction(Intent.ACTION_SCREEN_OFF);
+        this.context.registerReceiver(this.screenReceiver, filter);
+
+        openWindow();
+    }
+
+    /**
+     * Stops the schedule and a running scan window
+     */
+    public void stop() {
+        if (!this.isRunning) {
+            return;
+        }
+
+        this.isRunning = false;
+        this.handler.removeCallbacks(this.openWindow);
+        this.handler.removeCallbacks(this.closeWindow);
+        if (this.isWindowOpen) {
+            closeWindow();
+        }
+
+        this.context.unregisterReceiver(this.screenReceiver);
+        this.bleScanner.setScanMode(this.previousScanMode);
+    }
+
+    public boolean isRunning() {
+        return this.isRunning;
+    }
+
+    /**
+     * Starts a scan window using the scan mode that fits the screen and battery state
+     */
+    private void openWindow() {
+        updateBatteryState();
+
+        this.scanMode = isPowerSaving() ? BleScanner.SCAN_MODE_LOW_POWER : BleScanner.SCAN_MODE_BALANCED;
+        this.bleScanner.setScanMode(this.scanMode);
+        this.bleScanner.start();
+
+        this.isWindowOpen = true;
+        this.windowRadioShare = this.bleScanner.isUsingLeScanner() ? SCAN_MODE_RADIO_SHARES[this.scanMode] : 1;
+        this.windowStartTime = SystemClock.elapsedRealtime();
+        this.windowStartDeviceCount = this.deviceRegistry.size();
+        this.handler.postDelayed(this.closeWindow, SCAN_WINDOW_MILLIS);
+    }
+
+    /**
+     * Stops the scan window, measures it and schedules the next one after the adapted idle interval
+     */
+    private void closeWindow() {
+        this.bleScanner.stop();
+        this.deviceRegistry.flush();
+        this.isWindowOpen = false;
+
+        long duration = SystemClock.elapsedRealtime() - this.windowStartTime;
+        this.windowCount++;
+        this.scanMillis += duration;
+        this.radioOnMillis += duration * this.windowRadioShare;
+
+        //Back off while nothing new shows up, return to short intervals as soon as it does
+        //Results delivered after the window (batched by the controller) count for the next one
+        this.lastNewDeviceCount = this.deviceRegistry.size() - this.windowStartDeviceCount;
+        long minIdle = isPowerSaving() ? MIN_IDLE_MILLIS_POWER_SAVING : MIN_IDLE_MILLIS;
+        long maxIdle = isPowerSaving() ? MAX_IDLE_MILLIS_POWER_SAVING : MAX_IDLE_MILLIS;
+        if (this.lastNewDeviceCount > 0) {
+            this.idleMillis = minIdle;
+        }
+        else {
+            this.idleMillis = Math.min(Math.max(this.idleMillis * 2, minIdle), maxIdle);
+        }
+
+        if (this.isRunning) {
+            this.handler.postDelayed(this.openWindow, this.idleMillis);
+        }
+    }
+
+    /**
+     * @return Boolean value indicating whether to save power (screen off or battery low)
+     */
+    private boolean isPowerSaving() {
+        return !this.isScreenOn || this.isBatteryLow;
+    }
+
+    /**
+     * Reads the battery state from the sticky ACTION_BATTERY_CHANGED-Intent (no receiver has to be registered for that)
+     */
+    private void updateBatteryState() {
+        Intent battery = this.context.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        if (battery == null) {
+            this.isBatteryLow = false;
+            return;
+        }
+
+        int level = battery.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+        int scale = battery.getIntExtra(BatteryManager.EXTRA_SCALE, 100);
+        boolean isCharging = battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+        this.isBatteryLow = !isCharging && level >= 0 && level * 100 / Math.max(scale, 1) <= LOW_BATTERY_PERCENT;
+    }
+
+    /**
+     * Shortens the idle interval as soon as the screen is turned on, lengthens it when turned off
+     */
+    private BroadcastReceiver screenReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            isScreenOn = Intent.ACTION_SCREEN_ON.equals(intent.getAction());
+
+            //Start the next window right away when the user looks at the screen
+            if (isScreenOn && isRunning && !isWindowOpen) {
+                handler.removeCallbacks(openWindow);
+                idleMillis = MIN_IDLE_MILLIS;
+                openWindow();
+            }
+        }
+    };
+
+    private Runnable openWindow = new Runnable() {
+        @Override
+        public void run() {
+            openWindow();
+        }
+    };
+
+    private Runnable closeWindow = new Runnable() {
+        @Override
+        public void run() {
+            closeWindow();
+        }
+    };
+
+    /**
+     * @return The current idle interval between two scan windows in milliseconds
+     */
+    public long getIdleMillis() {
+        return this.idleMillis;
+    }
+
+    /**
+     * @return Share of the time spent in scan windows since the scheduler has been started (e.g. 0.2 for 20 %)
+     */
+    public float getScanDutyCycle() {
+        long elapsed = SystemClock.elapsedRealtime() - this.startTime;
+        long scanning = this.scanMillis + (this.isWindowOpen ? SystemClock.elapsedRealtime() - this.windowStartTime : 0);
+        return elapsed > 0 ? (float) scanning / elapsed : 0;
+    }
+
+    /**
+     * @return Estimated share of the time the radio has been listening since the scheduler has been started, considering the scan modes used
+     */
+    public float getRadioDutyCycle() {
+        long elapsed = SystemClock.elapsedRealtime() - this.startTime;
+        float radioOn = this.radioOnMillis + (this.isWindowOpen ? (SystemClock.elapsedRealtime() - this.windowStartTime) * this.windowRadioShare : 0);
+        return elapsed > 0 ? radioOn / elapsed : 0;
+    }
+
+    /**
+     * @return A readable summary of the schedule and the metrics
+     */
+    public String getSummary() {
+        return String.format(Locale.US, "Schedule: %d ms scan, %d ms idle (%s)\nScreen %s, battery %s\nWindows: %d, new devices in last: %d\nScanning: %.1f %% of the time, radio on: ~%.1f %%",
+                SCAN_WINDOW_MILLIS, this.idleMillis, this.scanMode == BleScanner.SCAN_MODE_LOW_POWER ? "low power" : "balanced",
+                this.isScreenOn ? "on" : "off", this.isBatteryLow ? "low" : "ok",
+                this.windowCount, this.lastNewDeviceCount,
+                getScanDutyCycle() * 100, getRadioDutyCycle() * 100);
+    }
+}
@@ -0,0 +1,182 @@
+package de.hdmstuttgart.blueiot;
+
+import android.bluetooth.BluetoothDevice;
+
+import java.text.DateFormat;
+import java.util.Date;
+import java.util.UUID;
+
+/**
+ * A BluetoothDevice as shown in the list of the MainActivity, along with the values of its latest advertisement.
+ * Instances are created and updated by the BleDeviceRegistry on the UI-Thread only, so the ListAdapter can read them without synchronization.
+ * The texts shown in the list are computed once when the device is found (or when its RSSI changes), not each time its row is drawn.
+ */
+public class ScannedDevice {
+    private static final UUID BLUEIOT_SERVICE_UUID = UUID.fromString(BlueIOTHelper.BLUEIOT_PRIMARY_SERVICE_UUID);
+
+    private final BluetoothDevice device;
+    private final String address;
+
+    //Values of the latest advertisement
+    private int rssi;
+    private float smoothedRssi;
+    private long lastSeen;
+    private int advertisementCount;
+
+    //Indicates whether the device is a blueIOT, which is listed first: by its address or name, or by its latest advertisement (see update())
+    private boolean isBlueIOT;
+    private final boolean isBlueIOTByName;
+
+    //Parsed payload of the latest advertisement
+    private AdvertisementRecord advertisement;
+    private final boolean hasDeviceName;
+
+    //Display model of the row
+    private String displayName;
+    private String displayDetails;
+    //Shown instead of the advertisement for a known device that hasn't been seen yet, null for other devices
+    private final String displayKnown;
+
+    /**
+     * Constructor
+     * @param device The BluetoothDevice that has been found
+     * @param knownDevice The stored information on the device, null if it hasn't been connected to before
+     */
+    public ScannedDevice(BluetoothDevice device, KnownDeviceStore.KnownDevice knownDevice) {
+        this.device = device;
+        this.address = device.getAddress();
+
+        //Devices created by BluetoothAdapter.getRemoteDevice() might not have a name yet, use the stored one instead
+        String name = device.getName();
+        if ((name == null || name.length() == 0) && knownDevice != null) {
+            name = knownDevice.getName();
+        }
+        this.hasDeviceName = name != null && name.length() > 0;
+        this.displayName = this.hasDeviceName ? name : "Unknown Device";
+        this.isBlueIOTByName = BlueIOTHelper.isBlueIOT(device) || (name != null && name.contains(BlueIOTHelper.BLUEIOT_DEVICE_NAME));
+        this.isBlueIOT = this.isBlueIOTByName;
+
+        if (knownDevice != null) {
+            this.displayKnown = "Known device, last connected " + DateFormat.getDateTimeInstance(DateFormat.SHORT, DateFormat.SHORT).format(new Date(knownDevice.getLastConnected()));
+        }
+        else {
+            this.displayKnown = null;
+        }
+    }
+
+    /**
+     * Updates the values of the latest advertisement
+     * @param rssi Signal strength in dBm
+     * @param smoothedRssi Smoothed signal strength in dBm
+     * @param lastSeen Time of the advertisement in milliseconds (see SystemClock.elapsedRealtime())
+     * @param advertisementCount Number of advertisements received from the device in total
+     * @param advertisement Parsed payload of the latest advertisement
+     */
+    void update(int rssi, float smoothedRssi, long lastSeen, int advertisementCount, AdvertisementRecord advertisement) {
+        //Use the advertised name if the device isn't known by name yet (the record only changes along with the payload)
+        if (advertisement != null && advertisement != this.advertisement && !this.hasDeviceName && advertisement.getLocalName() != null && advertisement.getLocalName().length() > 0) {
+            this.displayName = advertisement.getLocalName();
+        }
+        //The advertisement arrives after the device has been created, it might advertise the blueIOT service or name
+        if (advertisement != this.advertisement) {
+            this.isBlueIOT = this.isBlueIOTByName || isBlueIOTAdvertisement(advertisement);
+        }
+        this.advertisement = advertisement;
+
+        if (advertisementCount == 0) {
+            this.displayDetails = this.address;
+        }
+        else if (this.displayDetails == null || this.advertisementCount == 0 || Math.round(smoothedRssi) != Math.round(this.smoothedRssi)) {
+            this.displayDetails = this.address + "   " + Math.round(smoothedRssi) + " dBm";
+        }
+
+        this.rssi = rssi;
+        this.smoothedRssi = smoothedRssi;
+        this.lastSeen = lastSeen;
+        this.advertisementCount = advertisementCount;
+    }
+
+    /**
+     * @param advertisement Parsed payload of an advertisement, might be null
+     * @return Boolean value indicating whether the advertisement contains the primary service or the name of blueIOT
+     */
+    private static boolean isBlueIOTAdvertisement(AdvertisementRecord advertisement) {
+        if (advertisement == null) {
+            return false;
+        }
+
+        String localName = advertisement.getLocalName();
+        return advertisement.getServiceUuids().contains(BLUEIOT_SERVICE_UUID) || (localName != null && localName.contains(BlueIOTHelper.BLUEIOT_DEVICE_NAME));
+    }
+
+    public BluetoothDevice getDevice() {
+        return this.device;
+    }
+
+    public String getAddress() {
+        return this.address;
+    }
+
+    /**
+     * @return The name shown in the list
+     */
+    public String getDisplayName() {
+        return this.displayName;
+    }
+
+    /**
+     * @return The address and signal strength shown in the list
+     */
+    public String getDisplayDetails() {
+        return this.displayDetails;
+    }
+
+    /**
+     * @return Parsed payload of the latest advertisement
+     */
+    public AdvertisementRecord getAdvertisement() {
+        return this.advertisement;
+    }
+
+    /**
+     * @return The content of the advertisement shown in the list
+     */
+    public String getDisplayAdvertisement() {
+        if (this.advertisement != null) {
+            return this.advertisement.getSummary();
+        }
+        return this.displayKnown != null ? this.displayKnown : "";
+    }
+
+    /**
+     * @return Signal strength of the latest advertisement in dBm
+     */
+    public int getRssi() {
+        return this.rssi;
+    }
+
+    /**
+     * @return Smoothed signal strength in dBm, used as the estimated proximity
+     */
+    public float getSmoothedRssi() {
+        return this.smoothedRssi;
+    }
+
+    public boolean isBlueIOT() {
+        return this.isBlueIOT;
+    }
+
+    /**
+     * @return Time of the latest advertisement in milliseconds (see SystemClock.elapsedRealtime())
+     */
+    public long getLastSeen() {
+        return this.lastSeen;
+    }
+
+    /**
+     * @return Number of advertisements received from the device in total
+     */
+    public int getAdvertisementCount() {
+        return this.advertisementCount;
+    }
+}
@@ -0,0 +1,112 @@
+package de.hdmstuttgart.blueiot;
+
+import android.view.Choreographer;
+import android.widget.AbsListView;
+
+import java.util.Locale;
+
+/**
+ * Measures how smoothly a ListView (or ExpandableListView) scrolls.
+ * While the list is being scrolled, the time between two display frames is recorded (see Choreographer). A frame that took longer than one refresh interval
+ * is counted as janky, along with the number of refresh intervals that have been missed.
+ * Register an instance with AbsListView.setOnScrollListener(), all methods have to be called from the UI-Thread.
+ */
+public class ScrollJankMonitor implements AbsListView.OnScrollListener {
+    private final long frameIntervalNanos;
+    private final Choreographer choreographer = Choreographer.getInstance();
+
+    private boolean isScrolling;
+    private long lastFrameTimeNanos;
+
+    private long frameCount;
+    private long jankyFrameCount;
+    private long missedFrameCount;
+    private long maxFrameNanos;
+
+    /**
+     * Constructor
+     * @param refreshRate Refresh rate of the display in frames per second (see Display.getRefreshRate())
+     */
+    public ScrollJankMonitor(float refreshRate) {
+        this.frameIntervalNanos = (long) (1000000000 / Math.max(refreshRate, 1));
+    }
+
+    @Override
+    public void onScrollStateChanged(AbsListView view, int scrollState) {
+        if (scrollState != SCROLL_STATE_IDLE && !this.isScrolling) {
+            this.isScrolling = true;
+            this.lastFrameTimeNanos = 0;
+            this.choreographer.postFrameCallback(this.frameCallback);
+        }
+        else if (scrollState == SCROLL_STATE_IDLE && this.isScrolling) {
+            this.isScrolling = false;
+            this.choreographer.removeFrameCallback(this.frameCallback);
+        }
+    }
+
+    @Override
+    public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount, int totalItemCount) {
+        //Nothing to do, frames are measured by the FrameCallback
+    }
+
+    /**
+     * FrameCallback executed once per display frame while scrolling
+     */
+    private Choreographer.FrameCallback frameCallback = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            if (!isScrolling) {
+                return;
+            }
+
+            if (lastFrameTimeNanos > 0) {
+                long frameNanos = frameTimeNanos - lastFrameTimeNanos;
+                frameCount++;
+                maxFrameNanos = Math.max(maxFrameNanos, frameNanos);
+
+                //Allow for a bit of jitter before counting a frame as janky
+                long missed = (frameNanos + frameIntervalNanos / 2) / frameIntervalNanos - 1;
+                if (missed > 0) {
+                    jankyFrameCount++;
+                    missedFrameCount += missed;
+                }
+            }
+            lastFrameTimeNanos = frameTimeNanos;
+
+            choreographer.postFrameCallback(this);
+        }
+    };
+
+    /**
+     * Resets the statistics
+     */
+    public void reset() {
+        this.frameCount = 0;
+        this.jankyFrameCount = 0;
+        this.missedFrameCount = 0;
+        this.maxFrameNanos = 0;
+    }
+
+    /**
+     * @return Number of frames measured while scrolling
+     */
+    public long getFrameCount() {
+        return this.frameCount;
+    }
+
+    /**
+     * @return Share of the frames while scrolling that took longer than one refresh interval (e.g. 0.05 for 5 %)
+     */
+    public float getJankRate() {
+        return this.frameCount > 0 ? (float) this.jankyFrameCount / this.frameCount : 0;
+    }
+
+    /**
+     * @return A readable summary of the statistics
+     */
+    public String getSummary() {
+        return String.format(Locale.US, "Frames while scrolling: %d\nJanky frames: %d (%.1f %%), missed refreshes: %d\nLongest frame: %.1f ms (refresh interval %.1f ms)",
+                this.frameCount, this.jankyFrameCount, getJankRate() * 100, this.missedFrameCount,
+                this.maxFrameNanos / 1000000f, this.frameIntervalNanos / 1000000f);
+    }
+}
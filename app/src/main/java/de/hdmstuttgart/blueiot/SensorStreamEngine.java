@@ -0,0 +1,500 @@
+package de.hdmstuttgart.blueiot;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.bluetooth.BluetoothProfile;
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.UUID;
+
+/**
+ * Owns the connection to a single blueIOT and streams its sensor-values to any number of registered SampleListeners.
+ * There is only one engine per BluetoothDevice: Views that are interested in the same device share the engine (and thus the connection) by using acquire() and release().
+ * The engine connects with the first acquire(). After the last release() the connection is kept in low power for IDLE_DISCONNECT_MILLIS, so a view that comes back
+ * (e.g. after a rotation or a short trip to another app) continues streaming without reconnecting. After that, the engine disconnects and releases the BluetoothGatt.
+ * The time from connecting until the first sample is recorded by the StartupMetrics.
+ * All GATT operations on the connection (including those of other classes, see getOperationQueue()) go through a GattOperationQueue.
+ * While a chart or the ball view is in the foreground (see setStreamingEnabled()), the engine requests a larger MTU and a high connection priority,
+ * otherwise the connection is switched to low power. The MTU, the estimated connection interval and the samples per second are available as metrics (see getLinkSummary()).
+ * Every notification is decoded only once and the resulting samples are handed over to each listener on the Binder-Thread of the BluetoothGattCallback.
+ * Once the services have been discovered, the device is stored in the KnownDeviceStore, so it can be connected to without scanning next time.
+ */
+public class SensorStreamEngine {
+    //All engines that are currently in use, identified by the address of their BluetoothDevice
+    private static final HashMap<String, SensorStreamEngine> engines = new HashMap<>();
+
+    private Context context;
+    private BluetoothDevice device;
+    private BluetoothGatt bluetoothGatt;
+
+    //Number of acquire()-calls that have not been released yet
+    private int referenceCount;
+
+    private boolean isConnected;
+    //Indicates whether the current connection has reached STATE_CONNECTED, a STATE_DISCONNECTED before that is a late callback of the previous connection
+    private volatile boolean isLinkUp;
+
+    //Time the connection is kept in low power after the last release() before disconnecting in milliseconds
+    private static final long IDLE_DISCONNECT_MILLIS = 10000;
+    //Used to disconnect once the engine has been idle
+    private final Handler handler = new Handler(Looper.getMainLooper());
+
+    //Devices that have been connected to before
+    private KnownDeviceStore knownDeviceStore;
+
+    //Time the connection has been initiated and the first sample has been received in milliseconds (see SystemClock.elapsedRealtime()), -1 if not yet
+    private volatile long connectTime = -1;
+    private volatile long firstSampleTime = -1;
+
+    //MTU requested for streaming and the default MTU of every connection in bytes
+    private static final int STREAMING_MTU = 185;
+    private static final int DEFAULT_MTU = 23;
+
+    //Notifications received less than this apart in nanoseconds are considered part of the same connection event
+    private static final long SAME_CONNECTION_EVENT_NANOS = 2500000;
+    //Length of the window the throughput and the connection interval are measured in nanoseconds
+    private static final long LINK_WINDOW_NANOS = 1000000000;
+
+    //Number of views in the foreground that stream from this engine
+    private int streamingCount;
+    //Indicates whether the notifications have been enabled on the current connection (link parameters can be requested)
+    private volatile boolean isSubscribed;
+    private volatile boolean isMtuRequested;
+    private volatile int mtu = DEFAULT_MTU;
+    private volatile int connectionPriority = -1;
+
+    //Link metrics, written on the Binder-Thread
+    private long lastNotificationNanos;
+    private long linkWindowStartNanos;
+    private long linkWindowStartSamples;
+    private long minNotificationGapNanos = Long.MAX_VALUE;
+    private volatile float samplesPerSecond;
+    private volatile float connectionIntervalMillis = -1;
+
+    //Serializes the GATT operations on the connection
+    private final GattOperationQueue operationQueue = new GattOperationQueue();
+
+    //Decoder for the notifications sent by blueIOT
+    private SampleDecoder sampleDecoder = new SampleDecoder();
+
+    //Registered listeners, replaced as a whole when changed so the Binder-Thread can iterate without locking
+    private volatile SampleListener[] sampleListeners = new SampleListener[0];
+
+    /**
+     * Constructor
+     * @param context Context used to connect to blueIOT from (the ApplicationContext will be used)
+     * @param device The BluetoothDevice to connect to
+     */
+    private SensorStreamEngine(Context context, BluetoothDevice device) {
+        this.context = context.getApplicationContext();
+        this.device = device;
+        this.knownDeviceStore = new KnownDeviceStore(this.context);
+    }
+
+    /**
+     * Returns the engine for the specified device, creating and connecting it if necessary.
+     * Each call has to be paired with a call to release().
+     * @param context Context used to connect to blueIOT from
+     * @param device The BluetoothDevice to stream from
+     * @return The shared SensorStreamEngine for this device
+     */
+    public static synchronized SensorStreamEngine acquire(Context context, BluetoothDevice device) {
+        SensorStreamEngine engine = engines.get(device.getAddress());
+        if (engine == null) {
+            engine = new SensorStreamEngine(context, device);
+            engines.put(device.getAddress(), engine);
+        }
+
+        if (engine.referenceCount == 0) {
+            engine.handler.removeCallbacks(engine.disconnectIdle);
+            //Does nothing if the connection has been kept alive
+            engine.connect();
+        }
+        engine.referenceCount++;
+
+        return engine;
+    }
+
+    /**
+     * Releases the engine. Once every acquire() has been released, the connection is switched to low power and kept for IDLE_DISCONNECT_MILLIS,
+     * then the engine disconnects from blueIOT.
+     */
+    public void release() {
+        synchronized (SensorStreamEngine.class) {
+            if (this.referenceCount == 0) {
+                return;
+            }
+
+            this.referenceCount--;
+            if (this.referenceCount == 0) {
+                //No view is streaming anymore (setStreamingEnabled() has been paired), so this requests low power
+                if (this.isSubscribed) {
+                    requestLinkParameters();
+                }
+                this.handler.postDelayed(this.disconnectIdle, IDLE_DISCONNECT_MILLIS);
+            }
+        }
+    }
+
+    /**
+     * Disconnects if the engine hasn't been acquired again in the meantime
+     */
+    private Runnable disconnectIdle = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (SensorStreamEngine.class) {
+                if (referenceCount == 0) {
+                    disconnect();
+                    engines.remove(device.getAddress());
+                }
+            }
+        }
+    };
+
+    /**
+     * Registers a listener that will receive every sample decoded from now on
+     * @param listener The SampleListener to add
+     */
+    public synchronized void addSampleListener(SampleListener listener) {
+        SampleListener[] listeners = new SampleListener[this.sampleListeners.length + 1];
+        System.arraycopy(this.sampleListeners, 0, listeners, 0, this.sampleListeners.length);
+        listeners[listeners.length - 1] = listener;
+        this.sampleListeners = listeners;
+    }
+
+    /**
+     * Unregisters a listener
+     * @param listener The SampleListener to remove
+     */
+    public synchronized void removeSampleListener(SampleListener listener) {
+        for (int i = 0; i < this.sampleListeners.length; i++) {
+            if (this.sampleListeners[i] == listener) {
+                SampleListener[] listeners = new SampleListener[this.sampleListeners.length - 1];
+                System.arraycopy(this.sampleListeners, 0, listeners, 0, i);
+                System.arraycopy(this.sampleListeners, i + 1, listeners, i, listeners.length - i);
+                this.sampleListeners = listeners;
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return The BluetoothDevice this engine streams from
+     */
+    public BluetoothDevice getDevice() {
+        return this.device;
+    }
+
+    /**
+     * @return The BluetoothGatt of the connection or null if it has been closed
+     */
+    public BluetoothGatt getBluetoothGatt() {
+        return this.bluetoothGatt;
+    }
+
+    /**
+     * @return The number of samples that have been decoded since the engine was created
+     */
+    public long getDecodedSampleCount() {
+        return this.sampleDecoder.getDecodedSampleCount();
+    }
+
+    /**
+     * @return The number of notifications that have been rejected by the decoder
+     */
+    public long getRejectedFrameCount() {
+        return this.sampleDecoder.getRejectedFrameCount();
+    }
+
+    /**
+     * @return Time in milliseconds from initiating the connection until the first sample has been received, -1 if no sample has been received yet
+     */
+    public long getTimeToFirstSample() {
+        long first = this.firstSampleTime;
+        return first >= 0 ? first - this.connectTime : -1;
+    }
+
+    /**
+     * Returns the queue all GATT operations on this connection have to go through (the services are available once the first sample has been received)
+     * @return The GattOperationQueue of the connection
+     */
+    public GattOperationQueue getOperationQueue() {
+        return this.operationQueue;
+    }
+
+    /**
+     * Switches the connection between streaming (large MTU, high connection priority) and low power.
+     * Views that show the samples enable streaming while they are in the foreground and disable it before they are paused, each call to true has to be paired with a call to false.
+     * Below API 21 the link parameters can't be changed and the connection stays as it is.
+     * @param isEnabled True if a view streaming from this engine has come to the foreground, false if it has left it
+     */
+    public synchronized void setStreamingEnabled(boolean isEnabled) {
+        this.streamingCount = Math.max(0, this.streamingCount + (isEnabled ? 1 : -1));
+        if (this.isSubscribed) {
+            requestLinkParameters();
+        }
+    }
+
+    /**
+     * Requests the MTU (once per connection) and the connection priority according to the streaming state
+     */
+    private synchronized void requestLinkParameters() {
+        boolean isStreaming = this.streamingCount > 0;
+        if (isStreaming && !this.isMtuRequested) {
+            this.isMtuRequested = true;
+            this.operationQueue.requestMtu(STREAMING_MTU, null);
+        }
+
+        int priority = isStreaming ? BluetoothGatt.CONNECTION_PRIORITY_HIGH : BluetoothGatt.CONNECTION_PRIORITY_LOW_POWER;
+        if (priority != this.connectionPriority) {
+            this.connectionPriority = priority;
+            this.operationQueue.requestConnectionPriority(priority, null);
+        }
+    }
+
+    /**
+     * @return The MTU of the connection in bytes
+     */
+    public int getMtu() {
+        return this.mtu;
+    }
+
+    /**
+     * Android doesn't report the connection interval, it is estimated from the shortest time between two notifications that arrived in different connection events
+     * (i.e. only if blueIOT sends at least as often as the connection interval, otherwise the estimate is a multiple of it)
+     * @return The estimated connection interval in milliseconds, rounded to a multiple of 1.25 ms, -1 if not yet known
+     */
+    public float getConnectionIntervalMillis() {
+        return this.connectionIntervalMillis;
+    }
+
+    /**
+     * @return The number of samples decoded during the last second
+     */
+    public float getSamplesPerSecond() {
+        return this.samplesPerSecond;
+    }
+
+    /**
+     * @return MTU, requested connection priority, estimated connection interval and samples per second as text
+     */
+    public String getLinkSummary() {
+        String priority;
+        switch (this.connectionPriority) {
+            case BluetoothGatt.CONNECTION_PRIORITY_HIGH:
+                priority = "high";
+                break;
+            case BluetoothGatt.CONNECTION_PRIORITY_LOW_POWER:
+                priority = "low power";
+                break;
+            default:
+                priority = "balanced";
+                break;
+        }
+
+        float interval = this.connectionIntervalMillis;
+        return String.format(Locale.US, "MTU: %d bytes\nConnection priority: %s\nConnection interval: %s\nThroughput: %.0f samples/s",
+                this.mtu, priority, interval >= 0 ? String.format(Locale.US, "~%.2f ms", interval) : "unknown", this.samplesPerSecond);
+    }
+
+    /**
+     * Updates the samples per second and the estimated connection interval, called for each notification on the Binder-Thread
+     * @param nanos Time the notification has been received in nanoseconds (see SystemClock.elapsedRealtimeNanos())
+     */
+    private void updateLinkMetrics(long nanos) {
+        long gap = nanos - this.lastNotificationNanos;
+        if (this.lastNotificationNanos > 0 && gap >= SAME_CONNECTION_EVENT_NANOS && gap < this.minNotificationGapNanos) {
+            this.minNotificationGapNanos = gap;
+        }
+        this.lastNotificationNanos = nanos;
+
+        if (this.linkWindowStartNanos == 0) {
+            this.linkWindowStartNanos = nanos;
+            this.linkWindowStartSamples = this.sampleDecoder.getDecodedSampleCount();
+        }
+        else if (nanos - this.linkWindowStartNanos >= LINK_WINDOW_NANOS) {
+            long samples = this.sampleDecoder.getDecodedSampleCount();
+            this.samplesPerSecond = (samples - this.linkWindowStartSamples) * 1e9f / (nanos - this.linkWindowStartNanos);
+            if (this.minNotificationGapNanos != Long.MAX_VALUE) {
+                //Connection intervals are multiples of 1.25 ms
+                this.connectionIntervalMillis = Math.round(this.minNotificationGapNanos / 1250000f) * 1.25f;
+            }
+
+            this.linkWindowStartNanos = nanos;
+            this.linkWindowStartSamples = samples;
+            this.minNotificationGapNanos = Long.MAX_VALUE;
+        }
+    }
+
+    /**
+     * SampleListener handing each decoded sample over to all of the registered listeners
+     */
+    private SampleListener fanOut = new SampleListener() {
+        @Override
+        public void onSample(long timestamp, float x, float y, float z, float height) {
+            SampleListener[] listeners = sampleListeners;
+            for (int i = 0; i < listeners.length; i++) {
+                listeners[i].onSample(timestamp, x, y, z, height);
+            }
+        }
+    };
+
+    /**
+     * BluetoothGattCallback that is used to connect to blueIOT.
+     * Connects, discovers the services and enables the notifications, after that each notification is decoded and handed over to the listeners.
+     */
+    private BluetoothGattCallback gattCallback = new BluetoothGattCallback() {
+        @Override
+        public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
+            if (newState == BluetoothProfile.STATE_CONNECTED) {
+                isLinkUp = true;
+
+                //Start discovering all Services on the BLE-Remote-Device (i.e. blueIOT)
+                gatt.discoverServices();
+            }
+            else if (newState == BluetoothProfile.STATE_DISCONNECTED && isLinkUp) {
+                //The connection has been lost, operations can't complete anymore (disconnect() has cleared the queue already if the connection has been closed by the app)
+                isLinkUp = false;
+                isSubscribed = false;
+                operationQueue.clear();
+            }
+        }
+
+        @Override
+        public void onServicesDiscovered(BluetoothGatt gatt, int status) {
+            //Remember the device for the next start of the app
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                knownDeviceStore.storeConnection(device.getAddress(), device.getName());
+            }
+
+            enableNotifications(gatt);
+        }
+
+        @Override
+        public void onCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+            operationQueue.onCharacteristicRead(characteristic, status);
+        }
+
+        @Override
+        public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+            operationQueue.onCharacteristicWrite(characteristic, status);
+        }
+
+        @Override
+        public void onDescriptorRead(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
+            operationQueue.onDescriptorRead(descriptor, status);
+        }
+
+        @Override
+        public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
+            operationQueue.onDescriptorWrite(descriptor, status);
+        }
+
+        @Override
+        public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                SensorStreamEngine.this.mtu = mtu;
+            }
+            operationQueue.onMtuChanged(status);
+        }
+
+        @Override
+        public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
+            //Decode the raw value of the Characteristic once and hand the samples over to every listener
+            long timestamp = SystemClock.elapsedRealtime();
+            updateLinkMetrics(SystemClock.elapsedRealtimeNanos());
+            if (firstSampleTime < 0) {
+                firstSampleTime = timestamp;
+                StartupMetrics.onFirstSample(timestamp);
+                StartupMetrics.onConnectionMeasured(timestamp - connectTime);
+            }
+            sampleDecoder.decode(characteristic.getValue(), timestamp, fanOut);
+        }
+    };
+
+    /**
+     * Enables the notifications of the sensor-values, locally and on blueIOT
+     * @param gatt The BluetoothGatt whose services have been discovered
+     */
+    private void enableNotifications(BluetoothGatt gatt) {
+        //Find the correct Service on blueIOT
+        BluetoothGattService gattService = gatt.getService(UUID.fromString(BlueIOTHelper.BLUEIOT_PRIMARY_SERVICE_UUID));
+        if (gattService != null) {
+            //Find the correct Characteristic where we can set a notification for ourselves
+            BluetoothGattCharacteristic characteristic = gattService.getCharacteristic(UUID.fromString(BlueIOTHelper.BLUEIOT_CHARACTERISTIC_NOTIFICATION_UUID));
+            if (characteristic != null) {
+                //Enable local notifications (i.e. Android-Application)
+                gatt.setCharacteristicNotification(characteristic, true);
+
+                //Enable remote notifications on the BLE-Server (i.e. blueIOT), unbonded devices don't keep this across connections
+                BluetoothGattDescriptor descriptor = characteristic.getDescriptor(UUID.fromString(BlueIOTHelper.BLUEIOT_DESCRIPTOR_NOTIFICATION_UUID));
+                if (descriptor != null) {
+                    /*
+                     *   After both types of notifications have been set, the BLE-Remote-Device will continuously push new values
+                     *   into the Android-App. These push notifications will be dealt with inside regular calls to onCharacteristicChanged()
+                     */
+                    this.operationQueue.writeDescriptor(descriptor, BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE, new GattOperationQueue.Callback() {
+                        @Override
+                        public void onComplete(GattOperationQueue.Operation operation, int status) {
+                            if (status == BluetoothGatt.GATT_SUCCESS) {
+                                //Negotiate the link now that the notifications are running
+                                isSubscribed = true;
+                                requestLinkParameters();
+                            }
+                        }
+                    });
+                }
+            }
+        }
+    }
+
+    /**
+     * Connects to the blueIOT with the predefined BluetoothGattCallback
+     */
+    private void connect() {
+        if (!this.isConnected) {
+            this.connectTime = SystemClock.elapsedRealtime();
+            this.firstSampleTime = -1;
+            this.isLinkUp = false;
+
+            //Every connection starts with the default link parameters
+            this.isSubscribed = false;
+            this.isMtuRequested = false;
+            this.mtu = DEFAULT_MTU;
+            this.connectionPriority = -1;
+            this.samplesPerSecond = 0;
+            this.connectionIntervalMillis = -1;
+            this.lastNotificationNanos = 0;
+            this.linkWindowStartNanos = 0;
+            this.minNotificationGapNanos = Long.MAX_VALUE;
+            this.bluetoothGatt = this.device.connectGatt(this.context, false, this.gattCallback);
+            this.operationQueue.setGatt(this.bluetoothGatt);
+            this.isConnected = true;
+        }
+    }
+
+    /**
+     * Disconnects from blueIOT and releases the BluetoothGatt
+     */
+    private void disconnect() {
+        if (this.isConnected && this.bluetoothGatt != null) {
+            this.isLinkUp = false;
+            this.bluetoothGatt.disconnect();
+            this.bluetoothGatt.close();
+            this.bluetoothGatt = null;
+            this.operationQueue.clear();
+            this.operationQueue.setGatt(null);
+            this.isSubscribed = false;
+            this.isConnected = false;
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package de.hdmstuttgart.blueiot;
+
+import android.os.SystemClock;
+
+/**
+ * Measures the time from the launch of the app (creation of the MainActivity) until the first sample has been received from blueIOT.
+ * Only the first sample after the launch counts, later connections don't change the result.
+ * In addition, the time from connecting until the first sample is averaged over all connections (see SensorStreamEngine).
+ */
+public class StartupMetrics {
+    //Times in milliseconds (see SystemClock.elapsedRealtime()), -1 if not reached yet
+    private static long launchTime = -1;
+    private static long firstSampleTime = -1;
+
+    //Sum and number of the times from connecting until the first sample
+    private static long connectionMillis;
+    private static int connectionCount;
+
+    private StartupMetrics() {
+    }
+
+    /**
+     * Records the launch of the app, called when the MainActivity is created for the first time
+     */
+    public static synchronized void onLaunch() {
+        if (launchTime < 0) {
+            launchTime = SystemClock.elapsedRealtime();
+        }
+    }
+
+    /**
+     * Records the first sample after the launch (later calls are ignored)
+     * @param timestamp Time the sample has been received in milliseconds (see SystemClock.elapsedRealtime())
+     */
+    public static synchronized void onFirstSample(long timestamp) {
+        if (launchTime >= 0 && firstSampleTime < 0) {
+            firstSampleTime = timestamp;
+        }
+    }
+
+    /**
+     * @return Time in milliseconds from the launch of the app until the first sample, -1 if no sample has been received yet
+     */
+    public static synchronized long getLaunchToFirstSampleMillis() {
+        return firstSampleTime >= 0 ? firstSampleTime - launchTime : -1;
+    }
+
+    /**
+     * Records the time from connecting until the first sample
+     * @param millis The time in milliseconds
+     */
+    public static synchronized void onConnectionMeasured(long millis) {
+        connectionMillis += millis;
+        connectionCount++;
+    }
+
+    /**
+     * @return The average time in milliseconds from connecting until the first sample, -1 if no connection has received a sample yet
+     */
+    public static synchronized long getAverageTimeToFirstSample() {
+        return connectionCount > 0 ? connectionMillis / connectionCount : -1;
+    }
+}
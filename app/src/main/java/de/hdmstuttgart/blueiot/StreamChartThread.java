@@ -0,0 +1,307 @@
+package de.hdmstuttgart.blueiot;
+
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.os.Looper;
+import android.view.Choreographer;
+import android.view.SurfaceHolder;
+
+/**
+ * Thread drawing the line chart of a StreamChartView.
+ * The Thread runs its own Looper and draws once per display frame (see Choreographer), but only if new samples have arrived or the surface has changed.
+ * New samples are taken from a SampleRingBuffer and kept in a small SampleHistory of its own, so the Thread doesn't share any data with the UI-Thread.
+ * Each series is drawn from a preallocated float-buffer with a single call to Canvas.drawLines(), no objects are created per point or frame.
+ */
+public class StreamChartThread extends Thread {
+    //Width of the visible window in milliseconds
+    private static final int WINDOW_MILLISECONDS = 10000;
+
+    //Space for the legend and the margins in pixels
+    private static final float MARGIN = 10;
+    private static final float LEGEND_TEXT_SIZE = 20;
+
+    private SurfaceHolder surfaceHolder;
+
+    //Samples written by the Binder-Thread, read by this Thread
+    private SampleRingBuffer pendingSamples;
+
+    //Samples of the visible window (and a bit more)
+    private SampleHistory history = new SampleHistory(1 << 14);
+
+    //Series configuration
+    private String[] titles;
+    private int[] columns;
+    private Paint[] linePaints;
+    private Paint legendPaint = new Paint();
+
+    //Points of each series: X in milliseconds, Y as value
+    private float[][] pointXs;
+    private float[][] pointYs;
+    private int[] pointCounts;
+
+    //Line segments of each series in pixels (4 floats per segment: startX, startY, stopX, stopY)
+    private float[][] lines;
+
+    //Display size, set within setSurfaceSize(width, height)
+    private int canvasWidth;
+    private int canvasHeight;
+
+    private volatile boolean run;
+    private volatile boolean isDirty;
+
+    //Looper and Choreographer of this Thread, available once the Thread has started
+    private Looper looper;
+    private Choreographer choreographer;
+
+    /**
+     * Constructor
+     * @param surfaceHolder The SurfaceHolder that encapsulates the underlying Canvas-Element
+     * @param pendingSamples The ring buffer to read new samples from
+     * @param titles The title of each series (shown in the legend)
+     * @param colors The color of each series
+     * @param columns The column of each series (see SampleHistory.COLUMN-constants)
+     */
+    public StreamChartThread(SurfaceHolder surfaceHolder, SampleRingBuffer pendingSamples, String[] titles, int[] colors, int[] columns) {
+        this.surfaceHolder = surfaceHolder;
+        this.pendingSamples = pendingSamples;
+        this.titles = titles;
+        this.columns = columns;
+
+        this.linePaints = new Paint[titles.length];
+        for (int i = 0; i < titles.length; i++) {
+            this.linePaints[i] = new Paint();
+            this.linePaints[i].setColor(colors[i]);
+            this.linePaints[i].setStrokeWidth(3);
+            this.linePaints[i].setAntiAlias(true);
+        }
+
+        this.legendPaint.setTextSize(LEGEND_TEXT_SIZE);
+        this.legendPaint.setAntiAlias(true);
+
+        this.pointXs = new float[titles.length][];
+        this.pointYs = new float[titles.length][];
+        this.pointCounts = new int[titles.length];
+        this.lines = new float[titles.length][];
+        allocateBuffers(1);
+    }
+
+    @Override
+    public void run() {
+        super.run();
+
+        //Samples that arrived before the chart became visible are outdated
+        this.pendingSamples.clear();
+
+        Looper.prepare();
+        synchronized (this) {
+            //Stopped before the Looper was available
+            if (!this.run) {
+                return;
+            }
+
+            this.looper = Looper.myLooper();
+            this.choreographer = Choreographer.getInstance();
+        }
+
+        this.choreographer.postFrameCallback(this.frameCallback);
+        Looper.loop();
+    }
+
+    /**
+     * Start/Stop the Thread
+     * @param doRun Boolean value indicating whether to start|stop the Thread
+     */
+    public void setRunning(boolean doRun) {
+        this.run = doRun;
+
+        //Leave the Looper, so the Thread can finish
+        if (!doRun) {
+            synchronized (this) {
+                if (this.looper != null) {
+                    this.looper.quit();
+                }
+            }
+        }
+    }
+
+    /**
+     * Called when the surface size changes
+     * @param width Pixel Width of the Surface
+     * @param height Pixel Height of the Surface
+     */
+    public void setSurfaceSize(int width, int height) {
+        synchronized (this.surfaceHolder) {
+            this.canvasWidth = width;
+            this.canvasHeight = height;
+            allocateBuffers(width);
+            this.isDirty = true;
+        }
+    }
+
+    /**
+     * Allocates the point- and line-buffers for the specified width: at most 2 points per pixel (plus the points at the edges)
+     * @param width Pixel Width of the Surface
+     */
+    private void allocateBuffers(int width) {
+        int maxPoints = 2 * width + 8;
+        for (int i = 0; i < this.titles.length; i++) {
+            this.pointXs[i] = new float[maxPoints];
+            this.pointYs[i] = new float[maxPoints];
+            this.lines[i] = new float[4 * maxPoints];
+        }
+    }
+
+    /**
+     * FrameCallback executed on this Thread once per display frame
+     */
+    private Choreographer.FrameCallback frameCallback = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            if (!run) {
+                return;
+            }
+
+            if (pendingSamples.drain(appendToHistory, pendingSamples.getCapacity()) > 0) {
+                isDirty = true;
+            }
+
+            if (isDirty) {
+                Canvas canvas = null;
+                try {
+                    canvas = surfaceHolder.lockCanvas();
+                    if (canvas != null) {
+                        synchronized (surfaceHolder) {
+                            doDraw(canvas);
+                            isDirty = false;
+                        }
+                    }
+                }
+                finally {
+                    if (canvas != null) {
+                        surfaceHolder.unlockCanvasAndPost(canvas);
+                    }
+                }
+            }
+
+            choreographer.postFrameCallback(this);
+        }
+    };
+
+    /**
+     * SampleListener putting the drained samples into the history
+     */
+    private SampleListener appendToHistory = new SampleListener() {
+        @Override
+        public void onSample(long timestamp, float x, float y, float z, float height) {
+            history.append(timestamp, x, y, z, height);
+        }
+    };
+
+    /**
+     * Draws the chart onto the Canvas
+     * @param canvas The Canvas to draw onto
+     */
+    private void doDraw(Canvas canvas) {
+        canvas.drawColor(Color.WHITE);
+
+        if (this.history.isEmpty() || this.canvasWidth <= 0) {
+            drawLegend(canvas);
+            return;
+        }
+
+        //Visible window: the newest WINDOW_MILLISECONDS
+        long endIndex = this.history.getEndIndex();
+        int endTime = this.history.getTime(endIndex - 1);
+        int startTime = Math.max(0, endTime - WINDOW_MILLISECONDS);
+        long startIndex = Math.max(this.history.findIndex(startTime) - 1, this.history.getFirstIndex());
+
+        float chartWidth = this.canvasWidth - 2 * MARGIN;
+        float chartHeight = this.canvasHeight - 2 * MARGIN;
+        int level = this.history.selectLevel(startIndex, endIndex, (int) chartWidth);
+
+        //Collect the points of each series and determine the common range of values
+        float minY = Float.MAX_VALUE;
+        float maxY = -Float.MAX_VALUE;
+        for (int i = 0; i < this.titles.length; i++) {
+            collectPoints(i, level, startIndex, endIndex);
+            for (int p = 0; p < this.pointCounts[i]; p++) {
+                minY = Math.min(minY, this.pointYs[i][p]);
+                maxY = Math.max(maxY, this.pointYs[i][p]);
+            }
+        }
+        if (maxY - minY < 1e-3f) {
+            minY -= 1;
+            maxY += 1;
+        }
+
+        float scaleX = chartWidth / WINDOW_MILLISECONDS;
+        float scaleY = chartHeight / (maxY - minY);
+
+        //Convert the points into line segments and draw each series at once
+        for (int i = 0; i < this.titles.length; i++) {
+            float[] segments = this.lines[i];
+            int segmentLength = 0;
+            for (int p = 1; p < this.pointCounts[i]; p++) {
+                segments[segmentLength++] = MARGIN + (this.pointXs[i][p - 1] - startTime) * scaleX;
+                segments[segmentLength++] = MARGIN + (maxY - this.pointYs[i][p - 1]) * scaleY;
+                segments[segmentLength++] = MARGIN + (this.pointXs[i][p] - startTime) * scaleX;
+                segments[segmentLength++] = MARGIN + (maxY - this.pointYs[i][p]) * scaleY;
+            }
+
+            canvas.drawLines(segments, 0, segmentLength, this.linePaints[i]);
+        }
+
+        drawLegend(canvas);
+    }
+
+    /**
+     * Reads the points of a series from the history (raw samples or pyramid level) into its point-buffers
+     * @param series Index of the series
+     * @param level Level of the pyramid to read from, -1 for the raw samples
+     * @param startIndex Index of the first sample
+     * @param endIndex Index after the last sample
+     */
+    private void collectPoints(int series, int level, long startIndex, long endIndex) {
+        int column = this.columns[series];
+        float[] xs = this.pointXs[series];
+        float[] ys = this.pointYs[series];
+        int count = 0;
+
+        if (level < 0) {
+            for (long index = startIndex; index < endIndex && count < xs.length; index++) {
+                xs[count] = this.history.getTime(index);
+                ys[count] = this.history.getValue(column, index);
+                count++;
+            }
+        }
+        else {
+            long startBucket = Math.max(this.history.getBucketIndex(level, startIndex), this.history.getFirstBucketIndex(level));
+            long endBucket = this.history.getBucketIndex(level, endIndex - 1) + 1;
+            for (long bucket = startBucket; bucket < endBucket && count + 1 < xs.length; bucket++) {
+                xs[count] = this.history.getBucketTime(level, bucket);
+                ys[count] = this.history.getBucketMinimum(level, column, bucket);
+                count++;
+                xs[count] = xs[count - 1];
+                ys[count] = this.history.getBucketMaximum(level, column, bucket);
+                count++;
+            }
+        }
+
+        this.pointCounts[series] = count;
+    }
+
+    /**
+     * Draws the legend (title in the color of each series) in the top right corner
+     * @param canvas The Canvas to draw onto
+     */
+    private void drawLegend(Canvas canvas) {
+        float y = MARGIN + LEGEND_TEXT_SIZE;
+        for (int i = 0; i < this.titles.length; i++) {
+            this.legendPaint.setColor(this.linePaints[i].getColor());
+            float textWidth = this.legendPaint.measureText(this.titles[i]);
+            canvas.drawText(this.titles[i], this.canvasWidth - MARGIN - textWidth, y, this.legendPaint);
+            y += LEGEND_TEXT_SIZE + 4;
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package de.hdmstuttgart.blueiot;
+
+import android.content.Context;
+import android.util.AttributeSet;
+import android.view.SurfaceHolder;
+import android.view.SurfaceView;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Lightweight line chart for high sample rates, used as an alternative to the GraphView.
+ * The chart is drawn by a separate background-thread (see StreamChartThread) that shows the newest sensor-values in a fixed time window.
+ * New samples are handed over to the chart by calling onSample() from the thread that receives them (i.e. the Binder-Thread of the BluetoothGattCallback).
+ */
+public class StreamChartView extends SurfaceView implements SampleListener {
+    private StreamChartThread thread;
+
+    //Samples handed over to the drawing-thread
+    private SampleRingBuffer pendingSamples = new SampleRingBuffer(4096);
+
+    //Only accept samples while the drawing-thread is running
+    private volatile boolean isRunning;
+
+    //Series configuration
+    private List<String> titles = new ArrayList<>();
+    private List<Integer> colors = new ArrayList<>();
+    private List<Integer> columns = new ArrayList<>();
+
+    /**
+     * Constructor
+     * @param context ApplicationContext used to inflate layout components
+     */
+    public StreamChartView(Context context) {
+        super(context);
+        initialize();
+    }
+
+    /**
+     * Constructor used when inflating the View from a layout resource
+     * @param context ApplicationContext used to inflate layout components
+     * @param attrs The attributes of the XML tag
+     */
+    public StreamChartView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+        initialize();
+    }
+
+    /**
+     * Adds a series to the chart, has to be called before the chart becomes visible
+     * @param title The title shown in the legend
+     * @param color The color of the line
+     * @param column The column to display (see SampleHistory.COLUMN-constants)
+     */
+    public void addSeries(String title, int color, int column) {
+        this.titles.add(title);
+        this.colors.add(color);
+        this.columns.add(column);
+    }
+
+    /**
+     * Hands a new sample over to the drawing-thread. Must always be called from the same thread.
+     */
+    @Override
+    public void onSample(long timestamp, float x, float y, float z, float height) {
+        if (this.isRunning) {
+            this.pendingSamples.offer(timestamp, x, y, z, height);
+        }
+    }
+
+    /**
+     * Implements the lifecycle-callback-methods of the SurfaceHolder: the drawing-thread runs as long as the surface exists
+     */
+    private void initialize() {
+        this.getHolder().addCallback(new SurfaceHolder.Callback() {
+            @Override
+            public void surfaceCreated(SurfaceHolder holder) {
+                //Start new 'Drawing'-Thread with the configured series
+                int count = titles.size();
+                String[] seriesTitles = titles.toArray(new String[count]);
+                int[] seriesColors = new int[count];
+                int[] seriesColumns = new int[count];
+                for (int i = 0; i < count; i++) {
+                    seriesColors[i] = colors.get(i);
+                    seriesColumns[i] = columns.get(i);
+                }
+
+                thread = new StreamChartThread(holder, pendingSamples, seriesTitles, seriesColors, seriesColumns);
+                thread.setRunning(true);
+                thread.start();
+                isRunning = true;
+            }
+
+            @Override
+            public void surfaceChanged(SurfaceHolder holder, int format, int width, int height) {
+                //Update the Surface Size
+                thread.setSurfaceSize(width, height);
+            }
+
+            @Override
+            public void surfaceDestroyed(SurfaceHolder holder) {
+                //Stop the Thread when the Surface is destroyed
+                isRunning = false;
+
+                boolean retry = true;
+                thread.setRunning(false);
+                while (retry) {
+                    try {
+                        thread.join();
+                        retry = false;
+                    } catch (InterruptedException ex) {}
+                }
+            }
+        });
+    }
+}